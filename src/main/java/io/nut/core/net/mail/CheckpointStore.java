@@ -0,0 +1,46 @@
+/*
+ *  CheckpointStore.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Persistent storage of the {@link ImapCheckpoint} of each synced folder, so
+ * a restarted process resumes from the last processed UID.
+ *
+ * @author franci
+ */
+public interface CheckpointStore extends Closeable
+{
+    /**
+     * @param key folder identifier, see {@link IMAP#getCheckpointKey()}
+     * @return the saved checkpoint or {@link ImapCheckpoint#NONE}
+     * @throws IOException if the store cannot be read
+     */
+    ImapCheckpoint load(String key) throws IOException;
+
+    void save(String key, ImapCheckpoint checkpoint) throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,113 @@
+/*
+ *  FileCheckpointStore.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * {@link CheckpointStore} kept in a properties file. The whole file is loaded
+ * in memory and rewritten on each save through a temporary file and an atomic
+ * rename, so a crash never leaves it half written. It suits a few folders;
+ * {@link MapDBCheckpointStore} is better for many of them.
+ *
+ * @author franci
+ */
+public class FileCheckpointStore implements CheckpointStore
+{
+    private static final String SEPARATOR = ":";
+
+    private final Object lock = new Object();
+
+    private final Path path;
+    private final Path temp;
+    private final Properties values = new Properties();
+
+    public FileCheckpointStore(Path path) throws IOException
+    {
+        this.path = path;
+        this.temp = path.resolveSibling(path.getFileName()+".tmp");
+        if(Files.exists(path))
+        {
+            try(InputStream in = Files.newInputStream(path))
+            {
+                values.load(in);
+            }
+        }
+    }
+
+    @Override
+    public ImapCheckpoint load(String key) throws IOException
+    {
+        String value;
+        synchronized (lock)
+        {
+            value = values.getProperty(key);
+        }
+        if(value==null)
+        {
+            return ImapCheckpoint.NONE;
+        }
+        String[] fields = value.split(SEPARATOR);
+        try
+        {
+            long modseq = fields.length>2 ? Long.parseLong(fields[2]) : 0;
+            return new ImapCheckpoint(Long.parseLong(fields[0]), Long.parseLong(fields[1]), modseq);
+        }
+        catch (NumberFormatException | IndexOutOfBoundsException ex)
+        {
+            throw new IOException("invalid checkpoint "+key+"="+value, ex);
+        }
+    }
+
+    @Override
+    public void save(String key, ImapCheckpoint checkpoint) throws IOException
+    {
+        synchronized (lock)
+        {
+            values.setProperty(key, checkpoint.uidValidity+SEPARATOR+checkpoint.lastUID+SEPARATOR+checkpoint.highestModSeq);
+            try(OutputStream out = Files.newOutputStream(temp))
+            {
+                values.store(out, null);
+            }
+            try
+            {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException ex)
+            {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    @Override
+    public void close()
+    {
+    }
+}
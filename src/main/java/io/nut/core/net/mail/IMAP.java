@@ -22,23 +22,57 @@
 package io.nut.core.net.mail;
 
 import io.nut.base.security.SecureChars;
+import jakarta.mail.FetchProfile;
+import jakarta.mail.Flags;
 import jakarta.mail.Folder;
 import jakarta.mail.Message;
 import jakarta.mail.MessagingException;
 import jakarta.mail.Session;
 import jakarta.mail.Store;
 import jakarta.mail.UIDFolder;
+import jakarta.mail.event.MailEvent;
+import jakarta.mail.event.MessageChangedEvent;
 import jakarta.mail.event.MessageCountAdapter;
 import jakarta.mail.event.MessageCountEvent;
 import jakarta.mail.event.MessageCountListener;
 import jakarta.mail.search.ComparisonTerm;
 import jakarta.mail.search.ReceivedDateTerm;
 import jakarta.mail.search.SearchTerm;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
+import java.util.RandomAccess;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.eclipse.angus.mail.iap.Argument;
+import org.eclipse.angus.mail.iap.ByteArray;
+import org.eclipse.angus.mail.iap.Response;
 import org.eclipse.angus.mail.imap.IMAPFolder;
+import org.eclipse.angus.mail.imap.IMAPMessage;
+import org.eclipse.angus.mail.imap.IMAPStore;
+import org.eclipse.angus.mail.imap.MessageVanishedEvent;
+import org.eclipse.angus.mail.imap.ResyncData;
+import org.eclipse.angus.mail.imap.SortTerm;
+import org.eclipse.angus.mail.imap.protocol.BASE64MailboxEncoder;
+import org.eclipse.angus.mail.imap.protocol.BODY;
+import org.eclipse.angus.mail.imap.protocol.BODYSTRUCTURE;
+import org.eclipse.angus.mail.imap.protocol.FetchResponse;
+import org.eclipse.angus.mail.imap.protocol.MessageSet;
+import org.eclipse.angus.mail.imap.protocol.Status;
+import org.eclipse.angus.mail.imap.protocol.UID;
+import org.eclipse.angus.mail.imap.protocol.UIDSet;
 
 /**
  *
@@ -56,14 +90,27 @@ public class IMAP implements MailReader
     private static final String MAIL_IMAP_SSL_ENABLE = "mail.imap.ssl.enable";
     private static final String MAIL_IMAP_PORT = "mail.imap.port";
     private static final String MAIL_IMAP_HOST = "mail.imap.host";
+    private static final String MAIL_IMAP_CLASS = "mail.imap.class";
+    private static final String MAIL_IMAP_COMPRESS_ENABLE = "mail.imap.compress.enable";
+    private static final String MAIL_IMAP_COMPRESS_LEVEL = "mail.imap.compress.level";
 
     public static final int SAFE_PORT_993 = 993;
+    public static final String INBOX = "INBOX";
+    public static final int DEFAULT_PART_CHUNK_SIZE = 256*1024;
+    /** UID ranges sent per command, keeps the command lines of scattered sets within server limits */
+    private static final int MAX_UID_RANGES = 500;
     
-    static final int TYPE_TEXT = 1;
-    static final int TYPE_IMAGE = 2;
-    static final int TYPE_AUDIO = 3;
-    static final int TYPE_VIDEO = 4;
-    static final int TYPE_APPLICATION = 5;
+    public static final int TYPE_TEXT = 1;
+    public static final int TYPE_IMAGE = 2;
+    public static final int TYPE_AUDIO = 3;
+    public static final int TYPE_VIDEO = 4;
+    public static final int TYPE_APPLICATION = 5;
+
+    private static final String FETCH_UID_BODYSTRUCTURE = "UID BODYSTRUCTURE";
+    private static final String FETCH_UID_BODY = "UID BODY.PEEK[]";
+    private static final String FETCH_UID_HEADER = "UID BODY.PEEK[HEADER]";
+    private static final int CACHE_WINDOW_MESSAGES = 100;
+    private static final long CACHE_WINDOW_BYTES = 8L*1024*1024;
 
     private final Object lock = new Object();
     
@@ -83,6 +130,15 @@ public class IMAP implements MailReader
     private volatile long uidValidity;
     private volatile long lastUID;
 
+    private volatile MailTLS tls;
+    private volatile String folder = INBOX;
+    private volatile MailCache cache;
+    private volatile boolean cacheBodies;
+    private volatile int partChunkSize = DEFAULT_PART_CHUNK_SIZE;
+    private volatile boolean compress;
+    private volatile int compressLevel = -1;
+    private volatile MailTraffic traffic;
+
     public IMAP(String host, int port, boolean auth, boolean sslEnable, boolean readonly, String username, SecureChars password)
     {
         this.host = host;
@@ -98,6 +154,99 @@ public class IMAP implements MailReader
         this(host, port, auth, sslEnable, readonly, username, new SecureChars(password));
     }
     
+    /**
+     * @param tls SSL context shared with other mail connections, null to use {@link MailTLS#getDefault()}
+     * @return this
+     */
+    public IMAP setTLS(MailTLS tls)
+    {
+        this.tls = tls;
+        return this;
+    }
+
+    /**
+     * @param folder full name of the folder opened by {@link #connect()}, {@link #INBOX} by default
+     * @return this
+     */
+    public IMAP setFolder(String folder)
+    {
+        this.folder = folder;
+        return this;
+    }
+
+    public String getFolder()
+    {
+        return folder;
+    }
+
+    /**
+     * Serves the messages already downloaded from a local cache, see
+     * {@link #getCachedMessages()}.
+     * @param cache the cache, null to disable it
+     * @param bodies true to cache whole messages, false only their headers
+     * @return this
+     */
+    public IMAP setCache(MailCache cache, boolean bodies)
+    {
+        this.cache = cache;
+        this.cacheBodies = bodies;
+        return this;
+    }
+
+    /**
+     * @param partChunkSize bytes requested per FETCH by {@link #fetchPart(long, String, long, long, WritableByteChannel)}
+     * @return this
+     */
+    public IMAP setPartChunkSize(int partChunkSize)
+    {
+        this.partChunkSize = partChunkSize;
+        return this;
+    }
+
+    /**
+     * Negotiates COMPRESS=DEFLATE (RFC 4978) on {@link #connect()} when the
+     * server advertises it, worth it on slow links where the CPU is idle
+     * waiting for the network. Use {@link #setTraffic(MailTraffic)} to know
+     * whether it was negotiated and the ratio it achieves.
+     * @param compress true to compress the connection if the server supports it
+     * @return this
+     */
+    public IMAP setCompress(boolean compress)
+    {
+        this.compress = compress;
+        return this;
+    }
+
+    /**
+     * @param level deflate level, 1 (fastest) to 9 (best), -1 for the default
+     * @return this
+     */
+    public IMAP setCompressLevel(int level)
+    {
+        this.compressLevel = level;
+        return this;
+    }
+
+    /**
+     * Counts the traffic of the next connections, it can be shared by several
+     * instances to aggregate them.
+     * @param traffic the counters, null to stop counting
+     * @return this
+     */
+    public IMAP setTraffic(MailTraffic traffic)
+    {
+        this.traffic = traffic;
+        return this;
+    }
+
+    /**
+     * @return the traffic counters, null if not enabled
+     */
+    public MailTraffic getTraffic()
+    {
+        return traffic;
+    }
+
     public void setImapListener(ImapListener listener, long uidValidity, long lastUID)
     {
         this.imapListener = listener;
@@ -136,34 +285,80 @@ public class IMAP implements MailReader
         {
             Properties props = new Properties();
             props.put(MAIL_STORE_PROTOCOL, IMAP);
+            props.put(MAIL_IMAP_CLASS, IMAPStore.class.getName()); // avoids other providers in the classpath
             props.put(MAIL_IMAP_HOST, host);
             props.put(MAIL_IMAP_PORT, Integer.toString(port));
             props.put(MAIL_IMAP_SSL_ENABLE, sslEnable?"true":"false"); // enables SSL
+            if(sslEnable)
+            {
+                MailTLS.apply(tls, props, IMAP);
+            }
+            if(compress)
+            {
+                props.put(MAIL_IMAP_COMPRESS_ENABLE, "true");
+                if(compressLevel>=0)
+                {
+                    props.put(MAIL_IMAP_COMPRESS_LEVEL, Integer.toString(compressLevel));
+                }
+            }
+            if(traffic!=null)
+            {
+                traffic.apply(props, IMAP);
+            }
             
             Session session = Session.getInstance(props);
-            store = session.getStore(IMAP);
+            store = traffic!=null ? session.getStore(MailTraffic.provider(IMAP)) : session.getStore(IMAP);
 
             store.connect(host, username, password.apply((pass)-> new String(pass)));
-            inbox = store.getFolder("INBOX");
-            inbox.open(readonly ? Folder.READ_ONLY:Folder.READ_WRITE);
-            imapInbox = (inbox instanceof IMAPFolder) ? (IMAPFolder)inbox : null;
+            open(folder);
+        }
+    }
 
-            if(imapListener!=null)
+    /**
+     * Switches the connection to another folder, closing the current one,
+     * without logging in again.
+     * @param name full name of the folder
+     * @throws MessagingException if the folder cannot be opened
+     */
+    public void openFolder(String name) throws MessagingException
+    {
+        synchronized (lock)
+        {
+            if(inbox!=null && inbox.isOpen())
             {
-                inbox.addMessageCountListener(listener);
-                if(imapInbox!=null)
+                inbox.close(false);
+            }
+            folder = name;
+            open(name);
+        }
+    }
+
+    private void open(String name) throws MessagingException
+    {
+        inbox = store.getFolder(name);
+        inbox.open(readonly ? Folder.READ_ONLY:Folder.READ_WRITE);
+        imapInbox = (inbox instanceof IMAPFolder) ? (IMAPFolder)inbox : null;
+
+        if(imapListener!=null)
+        {
+            inbox.addMessageCountListener(listener);
+            if(imapInbox!=null)
+            {
+                long uid = imapInbox.getUIDValidity();
+                if(uid!=uidValidity)
                 {
-                    long uid = imapInbox.getUIDValidity();
-                    if(uid!=uidValidity)
-                    {
-                        lastUID = 0;
-                        uidValidity = uid;
-                    }
+                    lastUID = 0;
+                    uidValidity = uid;
                 }
             }
         }
     }
     
+    /**
+     * Loops in IDLE on the caller thread until the connection is closed,
+     * see {@link ImapIdleService} for a managed alternative.
+     * @throws MessagingException if IDLE fails
+     */
     public void idle() throws MessagingException
     {
         if(imapInbox!=null)
@@ -172,8 +367,11 @@ public class IMAP implements MailReader
             for (Message msg : list) 
             {
                 long uid = imapInbox.getUID(msg);
-                lastUID = Math.max(lastUID, uid);
-                imapListener.send(msg, uidValidity, lastUID);
+                if(uid>lastUID)
+                {
+                    lastUID = uid;
+                    imapListener.send(msg, uidValidity, lastUID);
+                }
             }
             while(isConnected()) 
             {
@@ -182,6 +380,25 @@ public class IMAP implements MailReader
         }
     }
 
+    /**
+     * Waits in IDLE until the server reports a change or another thread sends
+     * a command to the folder.
+     * @throws MessagingException if IDLE fails or the connection is lost
+     */
+    void idleOnce() throws MessagingException
+    {
+        imapInbox.idle(true);
+    }
+
+    public long getUID(Message message) throws MessagingException
+    {
+        if(message instanceof MailCache.CachedMessage)
+        {
+            return ((MailCache.CachedMessage) message).getUID();
+        }
+        return imapInbox.getUID(message);
+    }
+
     @Override
     public boolean isConnected()
     {
@@ -191,6 +408,81 @@ public class IMAP implements MailReader
         }
     }
 
+    /**
+     * The store and the open folder use different connections, so both are
+     * pinged; IMAPFolder sends a NOOP on getMessageCount() when its
+     * connection has been idle.
+     */
+    @Override
+    public boolean keepAlive() throws MessagingException
+    {
+        synchronized (lock)
+        {
+            if(store==null || !store.isConnected())
+            {
+                return false;
+            }
+            if(inbox!=null && inbox.isOpen())
+            {
+                inbox.getMessageCount();
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public void fetch(Message[] messages, FetchProfile profile) throws MessagingException
+    {
+        synchronized (lock)
+        {
+            inbox.fetch(cache==null ? messages : remote(messages), profile);
+        }
+    }
+
+    @Override
+    public Message[] getMessages(FetchProfile profile) throws MessagingException
+    {
+        synchronized (lock)
+        {
+            Message[] messages = inbox.getMessages();
+            inbox.fetch(messages, profile);
+            return messages;
+        }
+    }
+
+    @Override
+    public int getMessageCount() throws MessagingException
+    {
+        synchronized (lock)
+        {
+            return inbox.getMessageCount();
+        }
+    }
+
+    @Override
+    public Message[] getMessages(int start, int end) throws MessagingException
+    {
+        synchronized (lock)
+        {
+            return inbox.getMessages(start, end);
+        }
+    }
+
+    @Override
+    public void release(Message[] messages)
+    {
+        synchronized (lock)
+        {
+            for(Message msg : messages)
+            {
+                if(msg instanceof IMAPMessage)
+                {
+                    ((IMAPMessage) msg).invalidateHeaders();
+                }
+            }
+        }
+    }
+
     @Override
     public Message[] getMessages() throws MessagingException
     {
@@ -200,6 +492,792 @@ public class IMAP implements MailReader
         }
     }
 
+    /**
+     * Returns the messages of the folder served from the cache set with
+     * {@link #setCache(MailCache, boolean)}. Only UIDs and sizes are fetched
+     * for the messages already cached; the rest are downloaded with one FETCH
+     * per window of at most {@code CACHE_WINDOW_MESSAGES} messages or
+     * {@code CACHE_WINDOW_BYTES} bytes, and each window is committed to the
+     * cache before the next one. Each message is parsed from the cache when
+     * the list item is read, so the folder is never held in memory. The
+     * items are {@link MailCache.CachedMessage}, detached from the folder,
+     * except those evicted from the cache meanwhile, which are returned as
+     * the live message.
+     * @return the messages of the folder in sequence order
+     * @throws MessagingException if the fetch fails
+     */
+    public List<Message> getCachedMessages() throws MessagingException
+    {
+        synchronized (lock)
+        {
+            return cached(inbox.getMessages());
+        }
+    }
+
+    /**
+     * @param start first UID
+     * @param end last UID, or {@link UIDFolder#LASTUID}
+     * @return the messages in the UID range served from the cache, see {@link #getCachedMessages()}
+     * @throws MessagingException if the fetch fails
+     */
+    public List<Message> getCachedMessagesByUID(long start, long end) throws MessagingException
+    {
+        synchronized (lock)
+        {
+            return cached(imapInbox.getMessagesByUID(start, end));
+        }
+    }
+
+    /**
+     * Messages parsed from the cache on each read, falling back to the live
+     * message when its entry is no longer cached.
+     */
+    private static class CachedMessages extends AbstractList<Message> implements RandomAccess
+    {
+        private final MailCache cache;
+        private final String folder;
+        private final Message[] messages;
+        private final long[] uids;
+
+        CachedMessages(MailCache cache, String folder, Message[] messages, long[] uids)
+        {
+            this.cache = cache;
+            this.folder = folder;
+            this.messages = messages;
+            this.uids = uids;
+        }
+
+        @Override
+        public Message get(int index)
+        {
+            try
+            {
+                MailCache.CachedMessage msg = cache.get(folder, uids[index]);
+                if(msg!=null)
+                {
+                    return msg;
+                }
+            }
+            catch (MessagingException ex)
+            {
+                Logger.getLogger(IMAP.class.getName()).log(Level.WARNING, "cannot parse cached UID "+uids[index], ex);
+            }
+            return messages[index];
+        }
+
+        @Override
+        public int size()
+        {
+            return messages.length;
+        }
+    }
+
+    private List<Message> cached(Message[] messages) throws MessagingException
+    {
+        MailCache mc = cache;
+        if(mc==null)
+        {
+            throw new IllegalStateException("no cache set, see setCache()");
+        }
+        String key = getCheckpointKey();
+        mc.validate(key, imapInbox.getUIDValidity());
+        imapInbox.fetch(messages, MailUtils.newFetchProfile(false, false, true, cacheBodies));
+
+        long[] uids = new long[messages.length];
+        List<Integer> window = new ArrayList<>();
+        long windowBytes = 0;
+        for(int i=0;i<messages.length;i++)
+        {
+            uids[i] = imapInbox.getUID(messages[i]);
+            if(mc.contains(key, uids[i], cacheBodies))
+            {
+                continue;
+            }
+            long size = cacheBodies ? Math.max(0, messages[i].getSize()) : 0;
+            if(!window.isEmpty() && (window.size()>=CACHE_WINDOW_MESSAGES || windowBytes+size>CACHE_WINDOW_BYTES))
+            {
+                download(mc, key, window);
+                window.clear();
+                windowBytes = 0;
+            }
+            window.add(messages[i].getMessageNumber());
+            windowBytes += size;
+        }
+        if(!window.isEmpty())
+        {
+            download(mc, key, window);
+        }
+        return new CachedMessages(mc, key, messages, uids);
+    }
+
+    /**
+     * Downloads the raw messages, or only their headers, with a single FETCH
+     * that does not load them into the folder messages, and commits them.
+     */
+    private void download(MailCache mc, String key, List<Integer> numbers) throws MessagingException
+    {
+        int[] sorted = new int[numbers.size()];
+        for(int i=0;i<sorted.length;i++)
+        {
+            sorted[i] = numbers.get(i);
+        }
+        Arrays.sort(sorted);
+        final MessageSet[] sets = MessageSet.createMessageSets(sorted);
+        final String items = cacheBodies ? FETCH_UID_BODY : FETCH_UID_HEADER;
+        Response[] responses = (Response[]) imapInbox.doCommand(p ->
+        {
+            Response[] r = p.fetch(sets, items);
+            p.notifyResponseHandlers(r);
+            p.handleResult(r[r.length-1]);
+            return r;
+        });
+        Map<Long, byte[]> data = new LinkedHashMap<>();
+        for(Response item : responses)
+        {
+            if(item instanceof FetchResponse)
+            {
+                FetchResponse fetch = (FetchResponse) item;
+                UID uid = fetch.getItem(UID.class);
+                BODY body = fetch.getItem(BODY.class);
+                ByteArray bytes = body==null ? null : body.getByteArray();
+                if(uid!=null && bytes!=null)
+                {
+                    data.put(uid.uid, Arrays.copyOfRange(bytes.getBytes(), bytes.getStart(), bytes.getStart()+bytes.getCount()));
+                }
+            }
+        }
+        mc.putAll(key, data, cacheBodies);
+    }
+
+    private static Message[] remote(Message[] messages)
+    {
+        List<Message> list = new ArrayList<>(messages.length);
+        for(Message msg : messages)
+        {
+            if(!(msg instanceof MailCache.CachedMessage))
+            {
+                list.add(msg);
+            }
+        }
+        return list.size()==messages.length ? messages : list.toArray(new Message[0]);
+    }
+
+    /**
+     * @param start first UID
+     * @param end last UID, or {@link UIDFolder#LASTUID}
+     * @param profile attributes to load in one batch, null for none
+     * @return the messages in the UID range
+     * @throws MessagingException if the fetch fails
+     */
+    public Message[] getMessagesByUID(long start, long end, FetchProfile profile) throws MessagingException
+    {
+        synchronized (lock)
+        {
+            Message[] messages = imapInbox.getMessagesByUID(start, end);
+            if(profile!=null)
+            {
+                imapInbox.fetch(messages, profile);
+            }
+            return messages;
+        }
+    }
+
+    /**
+     * Copies a byte range of a MIME part to the channel with partial fetches
+     * of {@code partChunkSize} bytes, so memory use does not depend on the
+     * size of the part and only the requested range is transferred. The
+     * bytes are the part as stored on the server, still in its
+     * Content-Transfer-Encoding; wrap the result with
+     * {@link jakarta.mail.internet.MimeUtility#decode(java.io.InputStream, String)}
+     * to decode it.
+     * @param uid UID of the message
+     * @param section IMAP section, like "2" or "1.3", empty for the whole message
+     * @param offset first byte of the range
+     * @param length bytes to copy, -1 up to the end of the part
+     * @param out where the bytes are written
+     * @return the bytes copied, fewer than {@code length} if the part ends before
+     * @throws MessagingException if the message does not exist or the fetch fails
+     * @throws IOException if the channel cannot be written
+     */
+    public long fetchPart(long uid, String section, long offset, long length, WritableByteChannel out) throws MessagingException, IOException
+    {
+        int chunk = partChunkSize;
+        ByteArray buffer = new ByteArray(chunk+1024);
+        long done = 0;
+        while(length<0 || done<length)
+        {
+            final int size = (int) (length<0 ? chunk : Math.min(chunk, length-done));
+            final int start = Math.toIntExact(offset+done);
+            ByteArray data;
+            synchronized (lock)
+            {
+                Message message = imapInbox.getMessageByUID(uid);
+                if(message==null)
+                {
+                    throw new MessagingException("no message with UID "+uid);
+                }
+                final int msgno = message.getMessageNumber();
+                BODY body = (BODY) imapInbox.doCommand(p -> p.peekBody(msgno, section, start, size, buffer));
+                data = body==null ? null : body.getByteArray();
+            }
+            if(data==null || data.getCount()==0)
+            {
+                break;
+            }
+            ByteBuffer bytes = ByteBuffer.wrap(data.getBytes(), data.getStart(), data.getCount());
+            while(bytes.hasRemaining())
+            {
+                out.write(bytes);
+            }
+            done += data.getCount();
+            if(data.getCount()<size)
+            {
+                break;
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Downloads a MIME part to a file, resuming from the end of the file if
+     * it already exists, so an interrupted transfer can be completed by
+     * calling it again.
+     * @param uid UID of the message
+     * @param section IMAP section, like "2" or "1.3", empty for the whole message
+     * @param file destination, still in the Content-Transfer-Encoding of the part
+     * @return the size of the file
+     * @throws MessagingException if the message does not exist or the fetch fails
+     * @throws IOException if the file cannot be written
+     */
+    public long downloadPart(long uid, String section, Path file) throws MessagingException, IOException
+    {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND))
+        {
+            fetchPart(uid, section, channel.size(), -1, channel);
+            return channel.size();
+        }
+    }
+
+    /**
+     * @param primaryType MIME primary type, like "image"
+     * @return the matching {@code TYPE_*} constant, 0 for other types
+     */
+    static int typeOf(String primaryType)
+    {
+        switch (primaryType.toLowerCase(Locale.ROOT))
+        {
+            case "text":
+                return TYPE_TEXT;
+            case "image":
+                return TYPE_IMAGE;
+            case "audio":
+                return TYPE_AUDIO;
+            case "video":
+                return TYPE_VIDEO;
+            case "application":
+                return TYPE_APPLICATION;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Fetches only UID and BODYSTRUCTURE of a range of messages in a single
+     * command and indexes their MIME structure, no header or body is
+     * downloaded.
+     * @param start first sequence number
+     * @param end last sequence number, inclusive
+     * @return the index of each message in the range
+     * @throws MessagingException if the fetch fails
+     */
+    public MimeIndex[] indexStructure(int start, int end) throws MessagingException
+    {
+        return indexStructure(new MessageSet[]{ new MessageSet(start, end) });
+    }
+
+    /**
+     * @param messages messages of this folder
+     * @return the index of each message, in sequence order
+     * @throws MessagingException if the fetch fails
+     */
+    public MimeIndex[] indexStructure(Message[] messages) throws MessagingException
+    {
+        int[] numbers = new int[messages.length];
+        for(int i=0;i<messages.length;i++)
+        {
+            numbers[i] = messages[i].getMessageNumber();
+        }
+        Arrays.sort(numbers);
+        return numbers.length==0 ? new MimeIndex[0] : indexStructure(MessageSet.createMessageSets(numbers));
+    }
+
+    private MimeIndex[] indexStructure(MessageSet[] sets) throws MessagingException
+    {
+        synchronized (lock)
+        {
+            Response[] responses = (Response[]) imapInbox.doCommand(p ->
+            {
+                Response[] r = p.fetch(sets, FETCH_UID_BODYSTRUCTURE);
+                p.notifyResponseHandlers(r);
+                p.handleResult(r[r.length-1]);
+                return r;
+            });
+            List<MimeIndex> list = new ArrayList<>(responses.length);
+            for(Response item : responses)
+            {
+                if(item instanceof FetchResponse)
+                {
+                    FetchResponse fetch = (FetchResponse) item;
+                    BODYSTRUCTURE bs = fetch.getItem(BODYSTRUCTURE.class);
+                    UID uid = fetch.getItem(UID.class);
+                    if(bs!=null)
+                    {
+                        list.add(MimeIndex.of(fetch.getNumber(), uid==null ? -1 : uid.uid, bs));
+                    }
+                }
+            }
+            return list.toArray(new MimeIndex[0]);
+        }
+    }
+
+    /**
+     * Iterates by UID the messages present when it is created, it is not
+     * affected by messages expunged meanwhile. Each window covers
+     * {@code windowSize} UIDs, so folders with large gaps in their UIDs are
+     * better walked with {@link MailIterator#bySequence(MailReader, int, FetchProfile)}.
+     * @param firstUID first UID, 1 for the whole folder
+     * @param windowSize UIDs per window
+     * @param profile attributes loaded in one batch per window, null for none
+     * @return the iterator
+     * @throws MessagingException if the folder cannot be read
+     */
+    public MailIterator iterateByUID(long firstUID, int windowSize, FetchProfile profile) throws MessagingException
+    {
+        long lastUID;
+        synchronized (lock)
+        {
+            int count = inbox.getMessageCount();
+            lastUID = count==0 ? 0 : imapInbox.getUID(inbox.getMessage(count));
+        }
+        return new MailIterator(this, (start, end) -> getMessagesByUID(start, end, null), firstUID, lastUID, windowSize, profile);
+    }
+
+    /**
+     * @return key identifying the account and folder in a {@link CheckpointStore}
+     */
+    public String getCheckpointKey()
+    {
+        return username+"@"+host+":"+port+"/"+folder;
+    }
+
+    /**
+     * Fetches only the messages with a UID above the checkpoint, with a single
+     * UID FETCH instead of a search over the whole folder. If the UIDVALIDITY
+     * of the folder changed the checkpoint is discarded and every message is
+     * returned. Flag changes are not looked at, so the MODSEQ of the
+     * checkpoint is kept as is, see {@link #resync(ImapCheckpoint, FetchProfile)}.
+     * @param checkpoint position of the last sync, null or {@link ImapCheckpoint#NONE} to start from the beginning
+     * @param profile attributes to load in one batch, null for none
+     * @return the new messages and the checkpoint to save once they are processed
+     * @throws MessagingException if the fetch fails
+     */
+    public ImapSync syncSince(ImapCheckpoint checkpoint, FetchProfile profile) throws MessagingException
+    {
+        synchronized (lock)
+        {
+            long validity = imapInbox.getUIDValidity();
+            boolean reset = checkpoint!=null && checkpoint.uidValidity!=0 && !checkpoint.isValid(validity);
+            long last = checkpoint==null || reset ? 0 : checkpoint.lastUID;
+            // starting from scratch every flag is loaded now, otherwise the changes since the old one are still pending
+            long modseq = last==0 ? highestModSeq() : checkpoint.highestModSeq;
+
+            // UID FETCH n:* always returns the last message, even if its UID is lower than n
+            Message[] found = imapInbox.getMessagesByUID(last+1, UIDFolder.LASTUID);
+            ArrayList<Message> messages = new ArrayList<>(found.length);
+            long maxUID = last;
+            for(Message msg : found)
+            {
+                long uid = msg==null ? -1 : imapInbox.getUID(msg);
+                if(uid>last)
+                {
+                    messages.add(msg);
+                    maxUID = Math.max(maxUID, uid);
+                }
+            }
+            Message[] list = messages.toArray(new Message[0]);
+            if(profile!=null && list.length>0)
+            {
+                imapInbox.fetch(list, profile);
+            }
+            return new ImapSync(list, new ImapCheckpoint(validity, maxUID, modseq), reset);
+        }
+    }
+
+    /**
+     * Same as {@link #syncSince(ImapCheckpoint, FetchProfile)} loading the
+     * checkpoint from a store; save the returned one with
+     * {@code store.save(imap.getCheckpointKey(), sync.checkpoint)} after
+     * processing the messages.
+     * @param store where the checkpoints are kept
+     * @param profile attributes to load in one batch, null for none
+     * @return the new messages and the checkpoint to save once they are processed
+     * @throws MessagingException if the fetch fails
+     * @throws IOException if the store cannot be read
+     */
+    public ImapSync syncSince(CheckpointStore store, FetchProfile profile) throws MessagingException, IOException
+    {
+        return syncSince(store.load(getCheckpointKey()), profile);
+    }
+
+    /**
+     * @return true if the server supports CONDSTORE, so MODSEQs can be used
+     * @throws MessagingException if the capabilities cannot be read
+     */
+    public boolean hasCondStore() throws MessagingException
+    {
+        return store instanceof IMAPStore && ((IMAPStore) store).hasCapability("CONDSTORE");
+    }
+
+    /**
+     * @return true if the server supports QRESYNC, so expunges can be learned on reopening
+     * @throws MessagingException if the capabilities cannot be read
+     */
+    public boolean hasQResync() throws MessagingException
+    {
+        return store instanceof IMAPStore && ((IMAPStore) store).hasCapability("QRESYNC");
+    }
+
+    private long highestModSeq() throws MessagingException
+    {
+        return hasCondStore() ? imapInbox.getHighestModSeq() : 0;
+    }
+
+    /**
+     * {@link IMAPFolder#getHighestModSeq()} keeps the value sent on SELECT,
+     * so a STATUS is needed to know how far the server is now.
+     */
+    private long statusModSeq() throws MessagingException
+    {
+        String name = imapInbox.getFullName();
+        Status status = (Status) imapInbox.doCommand(p -> p.status(name, new String[]{"HIGHESTMODSEQ"}));
+        return status.highestmodseq;
+    }
+
+    /**
+     * Brings a checkpoint up to date after a reconnection: the new messages as
+     * {@link #syncSince(ImapCheckpoint, FetchProfile)} does plus the already
+     * known ones whose flags changed and, when the server can tell, the
+     * expunged ones. With QRESYNC the folder is reopened with the MODSEQ of
+     * the checkpoint and the server sends just the changes and the VANISHED
+     * UIDs; with CONDSTORE alone a STATUS reads the current HIGHESTMODSEQ and
+     * a UID FETCH CHANGEDSINCE returns the changed messages, but expunges
+     * cannot be known. Without them, or if the
+     * checkpoint has no MODSEQ, the flags of every known message are fetched
+     * and all of them are returned as changed.
+     * @param checkpoint position of the last sync, null or {@link ImapCheckpoint#NONE} to start from the beginning
+     * @param profile attributes to load for the new messages in one batch, null for none
+     * @return the new, changed and vanished messages and the checkpoint to save once they are processed
+     * @throws MessagingException if the fetch fails
+     */
+    public ImapSync resync(ImapCheckpoint checkpoint, FetchProfile profile) throws MessagingException
+    {
+        synchronized (lock)
+        {
+            long validity = imapInbox.getUIDValidity();
+            if(checkpoint==null || checkpoint.lastUID==0 || !checkpoint.isValid(validity))
+            {
+                // nothing known or nothing valid, every message is new
+                return syncSince(checkpoint, profile);
+            }
+            // read before the changes, any change done meanwhile is reported again next time
+            long modseq = highestModSeq();
+            Message[] changed;
+            long[] vanished = null;
+            if(checkpoint.highestModSeq>0 && hasQResync())
+            {
+                inbox.close(false);
+                List<MailEvent> events = imapInbox.open(readonly ? Folder.READ_ONLY:Folder.READ_WRITE, new ResyncData(validity, checkpoint.highestModSeq));
+                modseq = imapInbox.getHighestModSeq();
+                ArrayList<Message> list = new ArrayList<>();
+                for(MailEvent event : events)
+                {
+                    if(event instanceof MessageVanishedEvent)
+                    {
+                        long[] uids = ((MessageVanishedEvent) event).getUIDs();
+                        vanished = vanished==null ? uids : concat(vanished, uids);
+                    }
+                    else if(event instanceof MessageChangedEvent)
+                    {
+                        Message msg = ((MessageChangedEvent) event).getMessage();
+                        if(imapInbox.getUID(msg)<=checkpoint.lastUID)
+                        {
+                            list.add(msg);
+                        }
+                    }
+                }
+                changed = list.toArray(new Message[0]);
+                if(vanished==null)
+                {
+                    vanished = new long[0];
+                }
+            }
+            else if(checkpoint.highestModSeq>0 && hasCondStore())
+            {
+                // the HIGHESTMODSEQ of the SELECT is stale, ask for the current one
+                modseq = statusModSeq();
+                changed = imapInbox.getMessagesByUIDChangedSince(1, checkpoint.lastUID, checkpoint.highestModSeq);
+            }
+            else
+            {
+                changed = imapInbox.getMessagesByUID(1, checkpoint.lastUID);
+                FetchProfile flags = new FetchProfile();
+                flags.add(FetchProfile.Item.FLAGS);
+                flags.add(UIDFolder.FetchProfileItem.UID);
+                imapInbox.fetch(changed, flags);
+            }
+            ImapSync sync = syncSince(checkpoint, profile);
+            ImapCheckpoint next = new ImapCheckpoint(validity, sync.checkpoint.lastUID, modseq);
+            return new ImapSync(sync.messages, next, false, changed, vanished);
+        }
+    }
+
+    private static long[] concat(long[] a, long[] b)
+    {
+        long[] c = Arrays.copyOf(a, a.length+b.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+
+    /**
+     * Same as {@link #resync(ImapCheckpoint, FetchProfile)} loading the
+     * checkpoint from a store; save the returned one after processing the
+     * changes.
+     * @param store where the checkpoints are kept
+     * @param profile attributes to load for the new messages in one batch, null for none
+     * @return the new, changed and vanished messages and the checkpoint to save once they are processed
+     * @throws MessagingException if the fetch fails
+     * @throws IOException if the store cannot be read
+     */
+    public ImapSync resync(CheckpointStore store, FetchProfile profile) throws MessagingException, IOException
+    {
+        return resync(store.load(getCheckpointKey()), profile);
+    }
+
+    /**
+     * @param messages messages of the open folder
+     * @return their UIDs, in the same order
+     * @throws MessagingException if the UIDs cannot be fetched
+     */
+    public long[] getUIDs(Message... messages) throws MessagingException
+    {
+        synchronized (lock)
+        {
+            FetchProfile profile = new FetchProfile();
+            profile.add(UIDFolder.FetchProfileItem.UID);
+            imapInbox.fetch(messages, profile);
+            long[] uids = new long[messages.length];
+            for(int i=0;i<messages.length;i++)
+            {
+                uids[i] = getUID(messages[i]);
+            }
+            return uids;
+        }
+    }
+
+    /**
+     * Sets or clears flags on many messages with UID STORE, the UIDs are
+     * sorted and sent as ranges, so consecutive UIDs cost a few bytes each
+     * command.
+     * @param uids UIDs of the messages, in any order
+     * @param flags flags to change
+     * @param set true to set them, false to clear them
+     * @throws MessagingException if the server rejects the command
+     */
+    public void setFlags(long[] uids, Flags flags, boolean set) throws MessagingException
+    {
+        Argument args = new Argument();
+        args.writeAtom(set ? "+FLAGS.SILENT" : "-FLAGS.SILENT");
+        args.writeAtom(flagList(flags));
+        uidCommand("UID STORE", uids, args);
+    }
+
+    /**
+     * Copies many messages to another folder with UID COPY.
+     * @param uids UIDs of the messages, in any order
+     * @param folder full name of the destination folder
+     * @throws MessagingException if the server rejects the command
+     */
+    public void copy(long[] uids, String folder) throws MessagingException
+    {
+        uidCommand("UID COPY", uids, mailbox(folder));
+    }
+
+    /**
+     * Moves many messages to another folder, with UID MOVE if the server
+     * supports it; otherwise they are copied, flagged as deleted and, with
+     * UIDPLUS, expunged by UID, without UIDPLUS they are left deleted, to
+     * not expunge other messages, until {@link #expunge(long[])} or the folder
+     * is closed with expunge.
+     * @param uids UIDs of the messages, in any order
+     * @param folder full name of the destination folder
+     * @throws MessagingException if the server rejects the command
+     */
+    public void move(long[] uids, String folder) throws MessagingException
+    {
+        if(store instanceof IMAPStore && ((IMAPStore) store).hasCapability("MOVE"))
+        {
+            uidCommand("UID MOVE", uids, mailbox(folder));
+            return;
+        }
+        synchronized (lock)
+        {
+            copy(uids, folder);
+            setFlags(uids, new Flags(Flags.Flag.DELETED), true);
+            if(hasUIDPlus())
+            {
+                uidCommand("UID EXPUNGE", uids, null);
+            }
+        }
+    }
+
+    /**
+     * Deletes many messages: flags them as deleted and expunges them with UID
+     * EXPUNGE. Servers without UIDPLUS only have the plain EXPUNGE, that also
+     * removes any other message already flagged as deleted in the folder.
+     * @param uids UIDs of the messages, in any order
+     * @throws MessagingException if the server rejects the command
+     */
+    public void expunge(long[] uids) throws MessagingException
+    {
+        synchronized (lock)
+        {
+            setFlags(uids, new Flags(Flags.Flag.DELETED), true);
+            if(hasUIDPlus())
+            {
+                uidCommand("UID EXPUNGE", uids, null);
+            }
+            else
+            {
+                inbox.expunge();
+            }
+        }
+    }
+
+    private boolean hasUIDPlus() throws MessagingException
+    {
+        return store instanceof IMAPStore && ((IMAPStore) store).hasCapability("UIDPLUS");
+    }
+
+    private static Argument mailbox(String folder)
+    {
+        Argument args = new Argument();
+        args.writeString(BASE64MailboxEncoder.encode(folder));
+        return args;
+    }
+
+    private static final Map<Flags.Flag, String> SYSTEM_FLAGS = new LinkedHashMap<>();
+    static
+    {
+        SYSTEM_FLAGS.put(Flags.Flag.ANSWERED, "\\Answered");
+        SYSTEM_FLAGS.put(Flags.Flag.DELETED, "\\Deleted");
+        SYSTEM_FLAGS.put(Flags.Flag.DRAFT, "\\Draft");
+        SYSTEM_FLAGS.put(Flags.Flag.FLAGGED, "\\Flagged");
+        SYSTEM_FLAGS.put(Flags.Flag.SEEN, "\\Seen");
+    }
+
+    private static String flagList(Flags flags)
+    {
+        StringBuilder sb = new StringBuilder("(");
+        for(Flags.Flag flag : flags.getSystemFlags())
+        {
+            String name = SYSTEM_FLAGS.get(flag);
+            // \Recent and \* cannot be stored
+            if(name!=null)
+            {
+                sb.append(sb.length()>1 ? " " : "").append(name);
+            }
+        }
+        for(String flag : flags.getUserFlags())
+        {
+            sb.append(sb.length()>1 ? " " : "").append(flag);
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * Runs a UID command over a set of UIDs compressed into ranges, split in
+     * several commands if there are too many ranges for one command line.
+     */
+    private void uidCommand(String command, long[] uids, Argument tail) throws MessagingException
+    {
+        if(uids.length==0)
+        {
+            return;
+        }
+        long[] sorted = uids.clone();
+        Arrays.sort(sorted);
+        UIDSet[] sets = UIDSet.createUIDSets(sorted);
+        synchronized (lock)
+        {
+            for(int i=0;i<sets.length;i+=MAX_UID_RANGES)
+            {
+                final UIDSet[] chunk = Arrays.copyOfRange(sets, i, Math.min(sets.length, i+MAX_UID_RANGES));
+                imapInbox.doCommand(p ->
+                {
+                    Argument args = new Argument();
+                    args.writeAtom(UIDSet.toString(chunk));
+                    if(tail!=null)
+                    {
+                        args.append(tail);
+                    }
+                    Response[] r = p.command(command, args);
+                    p.notifyResponseHandlers(r);
+                    p.handleResult(r[r.length-1]);
+                    return null;
+                });
+            }
+        }
+    }
+
+    /**
+     * Sorts on the server with a single SORT command when it is advertised,
+     * otherwise on the client.
+     */
+    @Override
+    public Message[] getSortedMessages(boolean descending, MailSort... keys) throws MessagingException
+    {
+        synchronized (lock)
+        {
+            if(!(store instanceof IMAPStore) || !((IMAPStore) store).hasCapability("SORT"))
+            {
+                return MailReader.super.getSortedMessages(descending, keys);
+            }
+            List<SortTerm> terms = new ArrayList<>();
+            for(MailSort key : keys)
+            {
+                if(descending)
+                {
+                    terms.add(SortTerm.REVERSE);
+                }
+                terms.add(key.term);
+            }
+            return imapInbox.getSortedMessages(terms.toArray(new SortTerm[0]));
+        }
+    }
+
+    /**
+     * Runs the query on the server, only the matching messages are returned.
+     */
+    @Override
+    public Message[] search(MailQuery query) throws MessagingException
+    {
+        synchronized (lock)
+        {
+            SearchTerm term = query.toSearchTerm();
+            return term==null ? inbox.getMessages() : inbox.search(term);
+        }
+    }
+
     @Override
     public Message[] getMessages(Date after) throws MessagingException
     {
@@ -221,8 +1299,14 @@ public class IMAP implements MailReader
         {
             try
             {
-                inbox.close(false);
-                store.close();
+                if(inbox!=null && inbox.isOpen())
+                {
+                    inbox.close(false);
+                }
+                if(store!=null)
+                {
+                    store.close();
+                }
             }
             catch (MessagingException ex)
             {
@@ -0,0 +1,93 @@
+/*
+ *  ImapCheckpoint.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import java.io.Serializable;
+
+/**
+ * Position of an incremental {@link IMAP} sync: the UIDVALIDITY of the folder,
+ * the highest UID already processed and, on servers with CONDSTORE, the
+ * highest MODSEQ seen, used by {@link IMAP#resync(ImapCheckpoint, jakarta.mail.FetchProfile)}
+ * to fetch only the flag changes and expunges since then. UIDs are only
+ * comparable while the UIDVALIDITY does not change, so a checkpoint taken
+ * with a different one is discarded and the folder synced from the start.
+ *
+ * @author franci
+ */
+public class ImapCheckpoint implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    public static final ImapCheckpoint NONE = new ImapCheckpoint(0, 0);
+
+    public final long uidValidity;
+    public final long lastUID;
+    /** 0 if unknown or not supported by the server */
+    public final long highestModSeq;
+
+    public ImapCheckpoint(long uidValidity, long lastUID, long highestModSeq)
+    {
+        this.uidValidity = uidValidity;
+        this.lastUID = lastUID;
+        this.highestModSeq = highestModSeq;
+    }
+    public ImapCheckpoint(long uidValidity, long lastUID)
+    {
+        this(uidValidity, lastUID, 0);
+    }
+
+    /**
+     * @param uidValidity current UIDVALIDITY of the folder
+     * @return true if the UIDs of this checkpoint are still valid in the folder
+     */
+    public boolean isValid(long uidValidity)
+    {
+        return this.uidValidity==uidValidity;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if(this==obj)
+        {
+            return true;
+        }
+        if(!(obj instanceof ImapCheckpoint))
+        {
+            return false;
+        }
+        ImapCheckpoint other = (ImapCheckpoint) obj;
+        return uidValidity==other.uidValidity && lastUID==other.lastUID && highestModSeq==other.highestModSeq;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return (Long.hashCode(uidValidity)*31 + Long.hashCode(lastUID))*31 + Long.hashCode(highestModSeq);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ImapCheckpoint{" + "uidValidity=" + uidValidity + ", lastUID=" + lastUID + ", highestModSeq=" + highestModSeq + '}';
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ *  ImapIdleService.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import io.nut.core.net.mail.IMAP.ImapListener;
+import jakarta.mail.FetchProfile;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps an {@link IMAP} folder in IDLE from a dedicated thread and delivers
+ * every new message to an {@link ImapListener}. After each notification the
+ * new UIDs are fetched with {@link IMAP#syncSince(ImapCheckpoint, FetchProfile)},
+ * so messages that arrived while the connection was down are not lost. The
+ * IDLE command is renewed before servers drop it, broken connections are
+ * reopened with exponential backoff and the listener runs in a bounded
+ * {@link SendQueue} so a slow listener never blocks the socket.
+ * <p>
+ * A failed listener call is retried with the reconnection backoff up to
+ * {@link #setMaxAttempts(int)} times; after that the message is logged,
+ * handed to the dead letter listener if there is one and counted as done.
+ * The checkpoint only advances past messages that are done along with all
+ * the previous ones, so after a restart the ones still in flight are
+ * delivered again.
+ *
+ * @author franci
+ */
+public class ImapIdleService implements Closeable
+{
+    public static final long DEFAULT_RENEW_MILLIS = 9*60_000;
+    public static final long DEFAULT_BASE_BACKOFF_MILLIS = 1_000;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 300_000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    private final IMAP imap;
+    private final ImapListener listener;
+
+    private volatile ImapCheckpoint fetched;
+    private volatile ImapCheckpoint checkpoint;
+
+    // UIDs handed to the listener and not yet part of the checkpoint, true once done
+    private final TreeMap<Long, Boolean> pending = new TreeMap<>();
+    private long pendingValidity;
+
+    private volatile SendQueue queue;
+    private volatile boolean ownQueue;
+    private volatile CheckpointStore store;
+    private volatile FetchProfile profile = MailUtils.newFetchProfile(true, true, true, true);
+    private volatile long renewMillis = DEFAULT_RENEW_MILLIS;
+    private volatile long baseBackoffMillis = DEFAULT_BASE_BACKOFF_MILLIS;
+    private volatile long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+    private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private volatile ImapListener deadLetter;
+
+    private volatile Thread worker;
+    private volatile ScheduledExecutorService renewer;
+    private volatile boolean running;
+
+    /**
+     * @param imap the folder to watch, it is connected by the service
+     * @param listener receives each new message with its UIDVALIDITY and UID
+     * @param checkpoint last message already processed, null or {@link ImapCheckpoint#NONE} for all of them
+     */
+    public ImapIdleService(IMAP imap, ImapListener listener, ImapCheckpoint checkpoint)
+    {
+        this.imap = imap;
+        this.listener = listener;
+        this.fetched = checkpoint==null ? ImapCheckpoint.NONE : checkpoint;
+        this.checkpoint = this.fetched;
+        this.pendingValidity = this.fetched.uidValidity;
+    }
+
+    /**
+     * @param queue where the listener runs, by default a single thread so messages are delivered in UID order
+     * @return this
+     */
+    public ImapIdleService setQueue(SendQueue queue)
+    {
+        this.queue = queue;
+        return this;
+    }
+
+    /**
+     * @param store where the checkpoint is saved after each message is processed by the listener
+     * @return this
+     */
+    public ImapIdleService setCheckpointStore(CheckpointStore store)
+    {
+        this.store = store;
+        return this;
+    }
+
+    /**
+     * @param profile attributes loaded with the new messages so the listener does not need to interrupt IDLE to read them
+     * @return this
+     */
+    public ImapIdleService setFetchProfile(FetchProfile profile)
+    {
+        this.profile = profile;
+        return this;
+    }
+
+    /**
+     * @param renewMillis time after which IDLE is restarted, lower than the server and NAT timeouts
+     * @return this
+     */
+    public ImapIdleService setRenewMillis(long renewMillis)
+    {
+        this.renewMillis = renewMillis;
+        return this;
+    }
+
+    public ImapIdleService setBackoff(long baseBackoffMillis, long maxBackoffMillis)
+    {
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        return this;
+    }
+
+    /**
+     * @param maxAttempts listener calls per message before giving up on it, 1 for no retries
+     * @return this
+     */
+    public ImapIdleService setMaxAttempts(int maxAttempts)
+    {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        return this;
+    }
+
+    /**
+     * @param deadLetter receives the messages the listener failed on {@code maxAttempts} times, null to only log them
+     * @return this
+     */
+    public ImapIdleService setDeadLetter(ImapListener deadLetter)
+    {
+        this.deadLetter = deadLetter;
+        return this;
+    }
+
+    /**
+     * @return the last message processed by the listener
+     */
+    public ImapCheckpoint getCheckpoint()
+    {
+        return checkpoint;
+    }
+
+    long backoffMillis(int attempts)
+    {
+        long delay = baseBackoffMillis << Math.min(attempts, 30);
+        return delay<0 ? maxBackoffMillis : Math.min(delay, maxBackoffMillis);
+    }
+
+    public synchronized ImapIdleService start()
+    {
+        if(worker==null)
+        {
+            if(queue==null)
+            {
+                queue = new SendQueue(SendQueue.newFixedExecutor(1), SendQueue.DEFAULT_CAPACITY, SendQueue.DEFAULT_OFFER_TIMEOUT_MILLIS);
+                ownQueue = true;
+            }
+            running = true;
+            renewer = Executors.newSingleThreadScheduledExecutor(r ->
+            {
+                Thread t = new Thread(r, "ImapIdleService-renew");
+                t.setDaemon(true);
+                return t;
+            });
+            // any command sent to the folder from another thread ends the IDLE, the worker starts a new one
+            renewer.scheduleWithFixedDelay(this::renew, renewMillis, renewMillis, TimeUnit.MILLISECONDS);
+            worker = new Thread(this::run, "ImapIdleService");
+            worker.setDaemon(true);
+            worker.start();
+        }
+        return this;
+    }
+
+    private void renew()
+    {
+        try
+        {
+            imap.keepAlive();
+        }
+        catch (MessagingException | RuntimeException ex)
+        {
+            Logger.getLogger(ImapIdleService.class.getName()).log(Level.FINE, (String) null, ex);
+        }
+    }
+
+    private void run()
+    {
+        int attempts = 0;
+        boolean reconnect = !imap.isConnected();
+        while(running)
+        {
+            try
+            {
+                if(reconnect)
+                {
+                    imap.close();
+                    imap.connect();
+                    reconnect = false;
+                }
+                catchUp();
+                attempts = 0;
+                imap.idleOnce();
+            }
+            catch (Exception ex)
+            {
+                if(!running)
+                {
+                    break;
+                }
+                reconnect = true;
+                Logger.getLogger(ImapIdleService.class.getName()).log(Level.WARNING, (String) null, ex);
+                try
+                {
+                    Thread.sleep(backoffMillis(attempts++));
+                }
+                catch (InterruptedException ie)
+                {
+                    break;
+                }
+            }
+        }
+    }
+
+    private void catchUp() throws MessagingException, InterruptedException
+    {
+        ImapSync sync = imap.syncSince(fetched, profile);
+        if(sync.isReset())
+        {
+            Logger.getLogger(ImapIdleService.class.getName()).log(Level.WARNING, "UIDVALIDITY changed from {0} to {1}", new Object[]{fetched.uidValidity, sync.checkpoint.uidValidity});
+        }
+        long uidValidity = sync.checkpoint.uidValidity;
+        synchronized (pending)
+        {
+            if(pendingValidity!=uidValidity)
+            {
+                pending.clear();
+                pendingValidity = uidValidity;
+            }
+        }
+        for(Message msg : sync.messages)
+        {
+            long uid = imap.getUID(msg);
+            synchronized (pending)
+            {
+                pending.put(uid, Boolean.FALSE);
+            }
+            CompletableFuture<Void> future = deliver(msg, uidValidity, uid);
+            rejected(future, uid);
+            future.whenComplete((v, ex) -> completed(msg, uidValidity, uid, 1, ex));
+            fetched = new ImapCheckpoint(uidValidity, uid);
+        }
+        fetched = sync.checkpoint;
+    }
+
+    private CompletableFuture<Void> deliver(Message msg, long uidValidity, long uid)
+    {
+        return queue.submit(() ->
+        {
+            listener.send(msg, uidValidity, uid);
+            return null;
+        });
+    }
+
+    /**
+     * Throws if the queue did not accept the task, the rest of the messages
+     * are fetched again on the next attempt. Failures of the listener itself
+     * are left to {@link #completed(Message, long, long, int, Throwable)}.
+     */
+    private void rejected(CompletableFuture<Void> future, long uid) throws InterruptedException
+    {
+        if(!future.isCompletedExceptionally())
+        {
+            return;
+        }
+        try
+        {
+            future.getNow(null);
+        }
+        catch (CompletionException ex)
+        {
+            Throwable cause = ex.getCause();
+            if(cause instanceof RejectedExecutionException || cause instanceof InterruptedException)
+            {
+                synchronized (pending)
+                {
+                    pending.remove(uid);
+                }
+                if(cause instanceof InterruptedException)
+                {
+                    throw (InterruptedException) cause;
+                }
+                throw (RejectedExecutionException) cause;
+            }
+        }
+    }
+
+    private void completed(Message msg, long uidValidity, long uid, int attempt, Throwable error)
+    {
+        if(error!=null)
+        {
+            Throwable cause = error instanceof CompletionException && error.getCause()!=null ? error.getCause() : error;
+            if(attempt<maxAttempts && retry(msg, uidValidity, uid, attempt))
+            {
+                Logger.getLogger(ImapIdleService.class.getName()).log(Level.WARNING, "listener failed for UID "+uid+", attempt "+attempt, cause);
+                return;
+            }
+            if(!running)
+            {
+                // left pending, it is delivered again after a restart
+                return;
+            }
+            Logger.getLogger(ImapIdleService.class.getName()).log(Level.SEVERE, "listener failed for UID "+uid+" "+attempt+" times, giving up", cause);
+            ImapListener dl = deadLetter;
+            if(dl!=null)
+            {
+                try
+                {
+                    dl.send(msg, uidValidity, uid);
+                }
+                catch (RuntimeException ex)
+                {
+                    Logger.getLogger(ImapIdleService.class.getName()).log(Level.SEVERE, (String) null, ex);
+                }
+            }
+        }
+        synchronized (pending)
+        {
+            if(uidValidity!=pendingValidity || pending.replace(uid, Boolean.TRUE)==null)
+            {
+                return;
+            }
+            ImapCheckpoint value = null;
+            while(!pending.isEmpty() && pending.firstEntry().getValue())
+            {
+                value = new ImapCheckpoint(uidValidity, pending.pollFirstEntry().getKey());
+            }
+            if(value!=null)
+            {
+                processed(value);
+            }
+        }
+    }
+
+    /**
+     * Schedules the next listener call after the backoff of the attempt.
+     * @return false if the service is stopping
+     */
+    private boolean retry(Message msg, long uidValidity, long uid, int attempt)
+    {
+        ScheduledExecutorService scheduler = renewer;
+        if(!running || scheduler==null)
+        {
+            return false;
+        }
+        try
+        {
+            scheduler.schedule(() -> deliver(msg, uidValidity, uid).whenComplete((v, ex) -> completed(msg, uidValidity, uid, attempt+1, ex)), backoffMillis(attempt-1), TimeUnit.MILLISECONDS);
+            return true;
+        }
+        catch (RejectedExecutionException ex)
+        {
+            return false;
+        }
+    }
+
+    private void processed(ImapCheckpoint value)
+    {
+        checkpoint = value;
+        CheckpointStore cs = store;
+        if(cs!=null)
+        {
+            try
+            {
+                cs.save(imap.getCheckpointKey(), value);
+            }
+            catch (IOException ex)
+            {
+                Logger.getLogger(ImapIdleService.class.getName()).log(Level.SEVERE, (String) null, ex);
+            }
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        Thread t;
+        synchronized (this)
+        {
+            running = false;
+            t = worker;
+            worker = null;
+            if(renewer!=null)
+            {
+                renewer.shutdownNow();
+                renewer = null;
+            }
+        }
+        if(t!=null)
+        {
+            t.interrupt();
+            imap.close();
+            try
+            {
+                t.join(SendQueue.DEFAULT_OFFER_TIMEOUT_MILLIS);
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+            if(ownQueue)
+            {
+                queue.close();
+                queue = null;
+                ownQueue = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,520 @@
+/*
+ *  ImapPool.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import io.nut.base.security.SecureChars;
+import jakarta.mail.MessagingException;
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of {@link IMAP} connections to several accounts and folders, so
+ * parallel workers can fetch different folders or UID ranges at the same
+ * time. Each account has its own limit of open connections, as servers
+ * usually restrict them per user, and the pool has a global one. An idle
+ * connection of the account is switched to the requested folder with
+ * {@link IMAP#openFolder(String)} when none is idle on that folder, which
+ * avoids a new login; when the global limit is reached the least recently
+ * used idle connection of any account is closed to make room.
+ *
+ * @author franci
+ */
+public class ImapPool implements Closeable
+{
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 30_000;
+    public static final long DEFAULT_VALIDATE_AFTER_MILLIS = 60_000;
+
+    /**
+     * Work done with a borrowed connection, the messages it returns must not
+     * be used once the connection is back in the pool.
+     * @param <T> result type
+     */
+    public interface Task<T>
+    {
+        T run(IMAP imap) throws MessagingException;
+    }
+
+    private static class Pooled
+    {
+        final IMAP imap;
+        final long releasedNanos;
+
+        Pooled(IMAP imap, long releasedNanos)
+        {
+            this.imap = imap;
+            this.releasedNanos = releasedNanos;
+        }
+    }
+
+    private class Account
+    {
+        final String host;
+        final int port;
+        final boolean auth;
+        final boolean sslEnable;
+        final boolean readonly;
+        final String username;
+        final SecureChars password;
+        final Semaphore permits;
+        final LinkedBlockingDeque<Pooled> idle = new LinkedBlockingDeque<>();
+        final AtomicInteger size = new AtomicInteger();
+
+        Account(String host, int port, boolean auth, boolean sslEnable, boolean readonly, String username, SecureChars password, int maxConnections)
+        {
+            this.host = host;
+            this.port = port;
+            this.auth = auth;
+            this.sslEnable = sslEnable;
+            this.readonly = readonly;
+            this.username = username;
+            this.password = password;
+            this.permits = new Semaphore(maxConnections, true);
+        }
+
+        IMAP newImap(String folder)
+        {
+            return new IMAP(host, port, auth, sslEnable, readonly, username, password).setTLS(tls).setFolder(folder);
+        }
+    }
+
+    private final Object lock = new Object();
+
+    private final Map<String, Account> accounts = new ConcurrentHashMap<>();
+    private final Map<IMAP, Account> owners = new ConcurrentHashMap<>();
+    private final int maxSize;
+    private final Semaphore permits;
+    private final AtomicInteger size = new AtomicInteger();
+    private final long idleTimeoutMillis;
+
+    private volatile long maxWaitMillis = DEFAULT_MAX_WAIT_MILLIS;
+    private volatile long validateAfterMillis = DEFAULT_VALIDATE_AFTER_MILLIS;
+    private volatile MailTLS tls;
+    private volatile ScheduledExecutorService evictor;
+    private volatile boolean closed;
+
+    /**
+     * @param maxSize maximum connections open at the same time for all the accounts
+     * @param idleTimeoutMillis idle connections unused for longer are closed, 0 to keep them
+     */
+    public ImapPool(int maxSize, long idleTimeoutMillis)
+    {
+        if(maxSize<1)
+        {
+            throw new IllegalArgumentException("invalid pool size max="+maxSize);
+        }
+        this.maxSize = maxSize;
+        this.permits = new Semaphore(maxSize, true);
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Registers an account.
+     * @param name name used to borrow connections of this account
+     * @param host IMAP server
+     * @param port IMAP port
+     * @param auth true to authenticate
+     * @param sslEnable true for IMAPS
+     * @param readonly true to open the folders in read only mode
+     * @param username user
+     * @param password password
+     * @param maxConnections maximum connections open at the same time for this account
+     * @return this pool
+     */
+    public ImapPool addAccount(String name, String host, int port, boolean auth, boolean sslEnable, boolean readonly, String username, SecureChars password, int maxConnections)
+    {
+        if(maxConnections<1)
+        {
+            throw new IllegalArgumentException("invalid account connections max="+maxConnections);
+        }
+        accounts.put(name, new Account(host, port, auth, sslEnable, readonly, username, password, maxConnections));
+        return this;
+    }
+    public ImapPool addAccount(String name, String host, int port, boolean auth, boolean sslEnable, boolean readonly, String username, char[] password, int maxConnections)
+    {
+        return addAccount(name, host, port, auth, sslEnable, readonly, username, new SecureChars(password), maxConnections);
+    }
+
+    public ImapPool setMaxWaitMillis(long maxWaitMillis)
+    {
+        this.maxWaitMillis = maxWaitMillis;
+        return this;
+    }
+
+    /**
+     * @param validateAfterMillis idle connections unused for longer are pinged before being handed out
+     * @return this pool
+     */
+    public ImapPool setValidateAfterMillis(long validateAfterMillis)
+    {
+        this.validateAfterMillis = validateAfterMillis;
+        return this;
+    }
+
+    /**
+     * @param tls SSL context shared by every pooled connection so they can resume TLS sessions
+     * @return this pool
+     */
+    public ImapPool setTLS(MailTLS tls)
+    {
+        this.tls = tls;
+        return this;
+    }
+
+    /**
+     * Starts the background evictor of idle connections.
+     * @return this pool
+     */
+    public synchronized ImapPool start()
+    {
+        if(evictor==null && idleTimeoutMillis>0)
+        {
+            evictor = Executors.newSingleThreadScheduledExecutor(r ->
+            {
+                Thread t = new Thread(r, "ImapPool-evictor");
+                t.setDaemon(true);
+                return t;
+            });
+            long period = Math.max(1, idleTimeoutMillis/2);
+            evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    private Account getAccount(String name)
+    {
+        Account account = accounts.get(name);
+        if(account==null)
+        {
+            throw new IllegalArgumentException("unknown account "+name);
+        }
+        return account;
+    }
+
+    /**
+     * Takes a connection of the account with the folder open. The caller must
+     * give it back with {@link #release(IMAP)} or {@link #invalidate(IMAP)}.
+     * @param account name of the account
+     * @param folder full name of the folder
+     * @param timeoutMillis maximum time to wait for a free connection
+     * @return a connected IMAP with the folder open
+     * @throws MessagingException if no connection was available in time or it cannot connect
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public IMAP borrow(String account, String folder, long timeoutMillis) throws MessagingException, InterruptedException
+    {
+        if(closed)
+        {
+            throw new IllegalStateException("ImapPool is closed");
+        }
+        Account acc = getAccount(account);
+        long deadline = System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        if(!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS))
+        {
+            throw new MessagingException("no IMAP connection available after "+timeoutMillis+"ms");
+        }
+        if(!acc.permits.tryAcquire(Math.max(0, deadline-System.nanoTime()), TimeUnit.NANOSECONDS))
+        {
+            permits.release();
+            throw new MessagingException("no IMAP connection available for "+account+" after "+timeoutMillis+"ms");
+        }
+        try
+        {
+            IMAP imap = take(acc, folder);
+            owners.put(imap, acc);
+            return imap;
+        }
+        catch(MessagingException | RuntimeException ex)
+        {
+            acc.permits.release();
+            permits.release();
+            throw ex;
+        }
+    }
+    public IMAP borrow(String account, String folder) throws MessagingException, InterruptedException
+    {
+        return borrow(account, folder, maxWaitMillis);
+    }
+
+    private IMAP take(Account acc, String folder) throws MessagingException
+    {
+        Pooled pooled = null;
+        synchronized (lock)
+        {
+            for(Pooled item : acc.idle)
+            {
+                if(folder.equals(item.imap.getFolder()) && acc.idle.removeFirstOccurrence(item))
+                {
+                    pooled = item;
+                    break;
+                }
+            }
+            if(pooled==null)
+            {
+                pooled = acc.idle.pollFirst();
+            }
+            if(pooled==null)
+            {
+                if(size.get()>=maxSize)
+                {
+                    evictOldest();
+                }
+                acc.size.incrementAndGet();
+                size.incrementAndGet();
+            }
+        }
+        IMAP imap = pooled!=null ? pooled.imap : acc.newImap(folder);
+        try
+        {
+            if(pooled==null)
+            {
+                imap.connect();
+                return imap;
+            }
+            boolean stale = System.nanoTime()-pooled.releasedNanos>TimeUnit.MILLISECONDS.toNanos(validateAfterMillis);
+            if(stale && !isAlive(imap))
+            {
+                imap.close();
+                imap.setFolder(folder).connect();
+                return imap;
+            }
+            if(!folder.equals(imap.getFolder()))
+            {
+                imap.openFolder(folder);
+            }
+            return imap;
+        }
+        catch(Exception ex)
+        {
+            acc.size.decrementAndGet();
+            size.decrementAndGet();
+            imap.close();
+            throw ex instanceof MessagingException ? (MessagingException) ex : new MessagingException(ex.getMessage(), ex);
+        }
+    }
+
+    private static boolean isAlive(IMAP imap)
+    {
+        try
+        {
+            return imap.keepAlive();
+        }
+        catch (MessagingException | RuntimeException ex)
+        {
+            Logger.getLogger(ImapPool.class.getName()).log(Level.FINE, (String) null, ex);
+            return false;
+        }
+    }
+
+    /**
+     * Closes the least recently used idle connection of any account.
+     */
+    private void evictOldest()
+    {
+        Account oldest = null;
+        Pooled victim = null;
+        for(Account acc : accounts.values())
+        {
+            Pooled item = acc.idle.peekLast();
+            if(item!=null && (victim==null || item.releasedNanos<victim.releasedNanos))
+            {
+                oldest = acc;
+                victim = item;
+            }
+        }
+        if(victim!=null && oldest.idle.removeLastOccurrence(victim))
+        {
+            oldest.size.decrementAndGet();
+            size.decrementAndGet();
+            victim.imap.close();
+        }
+    }
+
+    /**
+     * Gives back a healthy connection obtained with {@link #borrow(String, String, long)}.
+     * @param imap the connection
+     */
+    public void release(IMAP imap)
+    {
+        Account acc = owners.remove(imap);
+        if(acc==null)
+        {
+            throw new IllegalArgumentException("not borrowed from this pool");
+        }
+        if(closed)
+        {
+            acc.size.decrementAndGet();
+            size.decrementAndGet();
+            imap.close();
+        }
+        else
+        {
+            acc.idle.offerFirst(new Pooled(imap, System.nanoTime()));
+        }
+        acc.permits.release();
+        permits.release();
+    }
+
+    /**
+     * Discards a broken connection obtained with {@link #borrow(String, String, long)}.
+     * @param imap the connection
+     */
+    public void invalidate(IMAP imap)
+    {
+        Account acc = owners.remove(imap);
+        if(acc==null)
+        {
+            throw new IllegalArgumentException("not borrowed from this pool");
+        }
+        acc.size.decrementAndGet();
+        size.decrementAndGet();
+        imap.close();
+        acc.permits.release();
+        permits.release();
+    }
+
+    /**
+     * Runs the task with a connection of the account with the folder open,
+     * giving it back to the pool afterwards.
+     * @param <T> result type
+     * @param account name of the account
+     * @param folder full name of the folder
+     * @param task the work to do
+     * @return the result of the task
+     * @throws MessagingException if no connection could be obtained or the task fails
+     * @throws InterruptedException if interrupted while waiting for a connection
+     */
+    public <T> T execute(String account, String folder, Task<T> task) throws MessagingException, InterruptedException
+    {
+        IMAP imap = borrow(account, folder);
+        T result;
+        try
+        {
+            result = task.run(imap);
+        }
+        catch(MessagingException | RuntimeException ex)
+        {
+            if(imap.isConnected())
+            {
+                release(imap);
+            }
+            else
+            {
+                invalidate(imap);
+            }
+            throw ex;
+        }
+        release(imap);
+        return result;
+    }
+
+    /**
+     * Closes idle connections that have not been used for more than
+     * {@code idleTimeoutMillis}.
+     * @return the number of connections closed
+     */
+    public int evictIdle()
+    {
+        long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        long now = System.nanoTime();
+        int count = 0;
+        for(Account acc : accounts.values())
+        {
+            for(Iterator<Pooled> it = acc.idle.descendingIterator(); it.hasNext(); )
+            {
+                Pooled item = it.next();
+                if(now-item.releasedNanos>idleTimeoutNanos && acc.idle.removeLastOccurrence(item))
+                {
+                    acc.size.decrementAndGet();
+                    size.decrementAndGet();
+                    item.imap.close();
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    public int getSize()
+    {
+        return size.get();
+    }
+
+    /**
+     * @param account name of the account
+     * @return connections open for the account, idle or borrowed
+     */
+    public int getSize(String account)
+    {
+        return getAccount(account).size.get();
+    }
+
+    public int getIdleCount()
+    {
+        int count = 0;
+        for(Account acc : accounts.values())
+        {
+            count += acc.idle.size();
+        }
+        return count;
+    }
+
+    @Override
+    public void close()
+    {
+        closed = true;
+        synchronized (this)
+        {
+            if(evictor!=null)
+            {
+                evictor.shutdownNow();
+                evictor = null;
+            }
+        }
+        for(Account acc : accounts.values())
+        {
+            Pooled item;
+            while((item = acc.idle.pollFirst())!=null)
+            {
+                acc.size.decrementAndGet();
+                size.decrementAndGet();
+                try
+                {
+                    item.imap.close();
+                }
+                catch (RuntimeException ex)
+                {
+                    Logger.getLogger(ImapPool.class.getName()).log(Level.SEVERE, (String) null, ex);
+                }
+            }
+        }
+    }
+}
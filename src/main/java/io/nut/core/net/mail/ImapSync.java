@@ -0,0 +1,73 @@
+/*
+ *  ImapSync.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import jakarta.mail.Message;
+
+/**
+ * Result of {@link IMAP#syncSince(ImapCheckpoint, jakarta.mail.FetchProfile)}
+ * and {@link IMAP#resync(ImapCheckpoint, jakarta.mail.FetchProfile)}.
+ * The checkpoint should be saved only after the messages have been processed,
+ * so a crash in between delivers them again instead of losing them.
+ *
+ * @author franci
+ */
+public class ImapSync
+{
+    private static final Message[] EMPTY = new Message[0];
+
+    /** messages added since the checkpoint */
+    public final Message[] messages;
+    public final ImapCheckpoint checkpoint;
+    public final boolean reset;
+    /** messages already known whose flags may have changed, with the flags loaded; only filled by resync */
+    public final Message[] changed;
+    /** UIDs of the known messages expunged, null if the server cannot report them; only filled by resync */
+    public final long[] vanished;
+
+    public ImapSync(Message[] messages, ImapCheckpoint checkpoint, boolean reset, Message[] changed, long[] vanished)
+    {
+        this.messages = messages;
+        this.checkpoint = checkpoint;
+        this.reset = reset;
+        this.changed = changed;
+        this.vanished = vanished;
+    }
+    public ImapSync(Message[] messages, ImapCheckpoint checkpoint, boolean reset)
+    {
+        this(messages, checkpoint, reset, EMPTY, null);
+    }
+
+    /**
+     * @return true if the UIDVALIDITY of the folder changed and all its messages are returned again
+     */
+    public boolean isReset()
+    {
+        return reset;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ImapSync{" + "messages=" + messages.length + ", checkpoint=" + checkpoint + ", reset=" + reset + ", changed=" + changed.length + '}';
+    }
+}
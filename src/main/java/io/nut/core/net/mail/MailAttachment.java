@@ -0,0 +1,226 @@
+/*
+ *  MailAttachment.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import jakarta.activation.DataSource;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Attachment of an {@link OutgoingMail}. It is a {@link DataSource} that
+ * opens a new stream over the file or buffer every time JavaMail writes the
+ * message, so the content is streamed to the server while it is encoded and
+ * never copied whole into the heap.
+ *
+ * @author franci
+ */
+public abstract class MailAttachment implements DataSource, Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    public static final String APPLICATION_OCTET_STREAM = "application/octet-stream";
+
+    private static final int BUFFER_SIZE = 64*1024;
+
+    private final String name;
+    private final String contentType;
+
+    MailAttachment(String name, String contentType)
+    {
+        this.name = name;
+        this.contentType = contentType;
+    }
+
+    @Override
+    public String getName()
+    {
+        return name;
+    }
+
+    @Override
+    public String getContentType()
+    {
+        return contentType;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException
+    {
+        throw new IOException("read-only attachment "+name);
+    }
+
+    public static MailAttachment of(Path path, String contentType)
+    {
+        return new FileAttachment(path, contentType);
+    }
+    public static MailAttachment of(Path path) throws IOException
+    {
+        String contentType = Files.probeContentType(path);
+        return new FileAttachment(path, contentType!=null ? contentType : APPLICATION_OCTET_STREAM);
+    }
+
+    /**
+     * The buffer is not copied, each send reads a duplicate of it from its
+     * current position to its limit.
+     * @param name file name of the attachment
+     * @param buffer the content, it can be a direct or mapped buffer
+     * @param contentType MIME type of the content
+     * @return the attachment
+     */
+    public static MailAttachment of(String name, ByteBuffer buffer, String contentType)
+    {
+        return new BufferAttachment(name, buffer, contentType);
+    }
+
+    /**
+     * Maps the file in memory instead of reading it through a stream.
+     * @param path the file
+     * @param contentType MIME type of the content
+     * @return the attachment
+     * @throws IOException if the file cannot be mapped
+     */
+    public static MailAttachment mapped(Path path, String contentType) throws IOException
+    {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new BufferAttachment(path.getFileName().toString(), buffer, contentType);
+        }
+    }
+
+    private static class FileAttachment extends MailAttachment
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final String path;
+
+        FileAttachment(Path path, String contentType)
+        {
+            super(path.getFileName().toString(), contentType);
+            this.path = path.toString();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException
+        {
+            return new BufferedInputStream(Files.newInputStream(Paths.get(path)), BUFFER_SIZE);
+        }
+    }
+
+    private static class BufferAttachment extends MailAttachment
+    {
+        private static final long serialVersionUID = 1L;
+
+        private transient ByteBuffer buffer;
+
+        BufferAttachment(String name, ByteBuffer buffer, String contentType)
+        {
+            super(name, contentType);
+            this.buffer = buffer;
+        }
+
+        @Override
+        public InputStream getInputStream()
+        {
+            return new ByteBufferInputStream(buffer.duplicate());
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException
+        {
+            out.defaultWriteObject();
+            ByteBuffer src = buffer.duplicate();
+            byte[] chunk = new byte[Math.min(BUFFER_SIZE, src.remaining())];
+            out.writeInt(src.remaining());
+            while(src.hasRemaining())
+            {
+                int n = Math.min(chunk.length, src.remaining());
+                src.get(chunk, 0, n);
+                out.write(chunk, 0, n);
+            }
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+        {
+            in.defaultReadObject();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            buffer = ByteBuffer.wrap(data);
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream
+    {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read()
+        {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        {
+            if(len==0)
+            {
+                return 0;
+            }
+            if(!buffer.hasRemaining())
+            {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n)
+        {
+            int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position()+count);
+            return count;
+        }
+
+        @Override
+        public int available()
+        {
+            return buffer.remaining();
+        }
+    }
+}
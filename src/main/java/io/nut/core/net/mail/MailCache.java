@@ -0,0 +1,316 @@
+/*
+ *  MailCache.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeMessage;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import org.mapdb.Atomic;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.HTreeMap;
+import org.mapdb.Serializer;
+import org.mapdb.serializer.GroupSerializer;
+
+/**
+ * Persistent cache of raw messages backed by a MapDB file, keyed by folder
+ * and UID. It keeps the headers, and optionally the whole message, of the
+ * messages already downloaded so {@link IMAP#getCachedMessages()} can
+ * rebuild them locally instead of fetching them again. The entries of a folder are dropped when
+ * its UIDVALIDITY changes, and the least recently used entries are evicted
+ * when the cached bytes exceed {@code maxBytes}. Reading an entry with
+ * {@link #get(String, long)} marks it as used; that mark is committed with
+ * the next write or on close, so a crash only loses the recency.
+ *
+ * @author franci
+ */
+public class MailCache implements Closeable
+{
+    public static final long DEFAULT_MAX_BYTES = 256L*1024*1024;
+
+    private static final String ENTRIES = "entries";
+    private static final String ORDER = "order";
+    private static final String ACCESS = "access";
+    private static final String VALIDITY = "validity";
+    private static final String SEQUENCE = "sequence";
+    private static final String BYTES = "bytes";
+    private static final char SEPARATOR = '\u0000';
+
+    static class Entry implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        final boolean complete;
+        final byte[] data;
+
+        Entry(boolean complete, byte[] data)
+        {
+            this.complete = complete;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Message rebuilt from the cache, it does not use the network. Flags are
+     * not cached, and a message cached without its body has empty content.
+     */
+    public static class CachedMessage extends MimeMessage
+    {
+        private final long uid;
+        private final boolean complete;
+
+        CachedMessage(long uid, boolean complete, byte[] data) throws MessagingException
+        {
+            super(null, new ByteArrayInputStream(data));
+            this.uid = uid;
+            this.complete = complete;
+        }
+
+        public long getUID()
+        {
+            return uid;
+        }
+
+        /**
+         * @return true if the body is cached, false if only the headers are
+         */
+        public boolean isComplete()
+        {
+            return complete;
+        }
+    }
+
+    private final Object lock = new Object();
+
+    private final DB db;
+    private final BTreeMap<String, Entry> entries;
+    // keys by last use, and the last use of each key, so a hit does not rewrite the entry
+    private final BTreeMap<Long, String> order;
+    private final HTreeMap<String, Long> access;
+    private final HTreeMap<String, Long> validity;
+    private final Atomic.Long sequence;
+    private final Atomic.Long bytes;
+    private final long maxBytes;
+
+    private boolean dirty;
+
+    @SuppressWarnings("unchecked")
+    public MailCache(File file, long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+        this.db = DBMaker.fileDB(file).fileMmapEnableIfSupported().transactionEnable().make();
+        GroupSerializer<Entry> serializer = (GroupSerializer<Entry>) Serializer.JAVA;
+        this.entries = db.treeMap(ENTRIES, Serializer.STRING, serializer).createOrOpen();
+        this.order = db.treeMap(ORDER, Serializer.LONG, Serializer.STRING).createOrOpen();
+        this.access = db.hashMap(ACCESS, Serializer.STRING, Serializer.LONG).createOrOpen();
+        this.validity = db.hashMap(VALIDITY, Serializer.STRING, Serializer.LONG).createOrOpen();
+        this.sequence = db.atomicLong(SEQUENCE).createOrOpen();
+        this.bytes = db.atomicLong(BYTES).createOrOpen();
+    }
+    public MailCache(File file)
+    {
+        this(file, DEFAULT_MAX_BYTES);
+    }
+
+    private static String key(String folder, long uid)
+    {
+        return folder+SEPARATOR+uid;
+    }
+
+    /**
+     * Drops the entries of the folder if they were cached with another UIDVALIDITY.
+     * @param folder folder identifier, see {@link IMAP#getCheckpointKey()}
+     * @param uidValidity current UIDVALIDITY of the folder
+     * @return false if the cached entries were dropped
+     */
+    public boolean validate(String folder, long uidValidity)
+    {
+        synchronized (lock)
+        {
+            Long current = validity.get(folder);
+            if(current!=null && current==uidValidity)
+            {
+                return true;
+            }
+            remove(folder);
+            validity.put(folder, uidValidity);
+            commit();
+            return current==null;
+        }
+    }
+
+    /**
+     * Drops all the entries of the folder.
+     * @param folder folder identifier
+     */
+    public void invalidate(String folder)
+    {
+        synchronized (lock)
+        {
+            remove(folder);
+            validity.remove(folder);
+            commit();
+        }
+    }
+
+    private void remove(String folder)
+    {
+        NavigableMap<String, Entry> range = entries.subMap(folder+SEPARATOR, true, folder+(char)(SEPARATOR+1), false);
+        List<String> keys = new ArrayList<>(range.keySet());
+        for(String key : keys)
+        {
+            remove(key, entries.get(key));
+        }
+    }
+
+    private void remove(String key, Entry entry)
+    {
+        entries.remove(key);
+        Long seq = access.remove(key);
+        if(seq!=null)
+        {
+            order.remove(seq);
+        }
+        bytes.addAndGet(-entry.data.length);
+    }
+
+    private void touch(String key)
+    {
+        Long old = access.get(key);
+        if(old!=null)
+        {
+            order.remove(old);
+        }
+        long seq = sequence.incrementAndGet();
+        order.put(seq, key);
+        access.put(key, seq);
+    }
+
+    private void commit()
+    {
+        db.commit();
+        dirty = false;
+    }
+
+    /**
+     * @param folder folder identifier
+     * @param uid UID of the message
+     * @return the cached message, null if it is not cached
+     * @throws MessagingException if the cached data cannot be parsed
+     */
+    public CachedMessage get(String folder, long uid) throws MessagingException
+    {
+        String key = key(folder, uid);
+        Entry entry;
+        synchronized (lock)
+        {
+            entry = entries.get(key);
+            if(entry==null)
+            {
+                return null;
+            }
+            touch(key);
+            dirty = true;
+        }
+        return new CachedMessage(uid, entry.complete, entry.data);
+    }
+
+    /**
+     * @param folder folder identifier
+     * @param uid UID of the message
+     * @param complete true to require the body, false if the headers are enough
+     * @return true if the message is cached, it is not parsed
+     */
+    public boolean contains(String folder, long uid, boolean complete)
+    {
+        Entry entry = entries.get(key(folder, uid));
+        return entry!=null && (entry.complete || !complete);
+    }
+
+    /**
+     * Stores several messages of a folder in one transaction.
+     * @param folder folder identifier
+     * @param items raw message, or only its headers, by UID
+     * @param complete true if the items include the body
+     */
+    public void putAll(String folder, Map<Long, byte[]> items, boolean complete)
+    {
+        synchronized (lock)
+        {
+            for(Map.Entry<Long, byte[]> item : items.entrySet())
+            {
+                String key = key(folder, item.getKey());
+                Entry old = entries.get(key);
+                if(old!=null)
+                {
+                    remove(key, old);
+                }
+                entries.put(key, new Entry(complete, item.getValue()));
+                touch(key);
+                bytes.addAndGet(item.getValue().length);
+            }
+            while(bytes.get()>maxBytes && !order.isEmpty())
+            {
+                String key = order.firstEntry().getValue();
+                remove(key, entries.get(key));
+            }
+            commit();
+        }
+    }
+
+    /**
+     * @return bytes of message data cached
+     */
+    public long getBytes()
+    {
+        return bytes.get();
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    @Override
+    public void close()
+    {
+        synchronized (lock)
+        {
+            if(!db.isClosed())
+            {
+                if(dirty)
+                {
+                    commit();
+                }
+                db.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ *  MailConverter.java
+ *
+ *  Copyright (C) 2025 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import jakarta.mail.Address;
+import jakarta.mail.FetchProfile;
+import jakarta.mail.Folder;
+import jakarta.mail.Header;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Multipart;
+import jakarta.mail.Part;
+import jakarta.mail.Session;
+import jakarta.mail.UIDFolder;
+import jakarta.mail.internet.ContentType;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.eclipse.angus.mail.imap.IMAPFolder;
+
+/**
+ * Converts messages into {@link MailData}. The raw messages are downloaded on
+ * the calling thread, in one batch per folder when the protocol allows it,
+ * and parsed in parallel on a {@link ForkJoinPool}, so while one batch is
+ * being parsed on every core the next one can be downloaded, see
+ * {@link #convert(MailReader, int, Consumer)}.
+ *
+ * @author franci
+ */
+public class MailConverter implements Closeable
+{
+    /** messages parsed per task, parsing one is already a coarse task */
+    private static final int THRESHOLD = 2;
+
+    private final ForkJoinPool pool;
+    private final boolean ownPool;
+    private final Session session = Session.getInstance(new Properties());
+
+    /**
+     * @param pool pool used for parsing, it is not shut down on close
+     */
+    public MailConverter(ForkJoinPool pool)
+    {
+        this.pool = pool;
+        this.ownPool = false;
+    }
+    public MailConverter(int parallelism)
+    {
+        this.pool = new ForkJoinPool(parallelism);
+        this.ownPool = true;
+    }
+    public MailConverter()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    private static class Raw
+    {
+        final int messageNumber;
+        final long uid;
+        final Date receivedDate;
+        final byte[] bytes;
+
+        Raw(int messageNumber, long uid, Date receivedDate, byte[] bytes)
+        {
+            this.messageNumber = messageNumber;
+            this.uid = uid;
+            this.receivedDate = receivedDate;
+            this.bytes = bytes;
+        }
+    }
+
+    private static class ParseTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Session session;
+        private final Raw[] raws;
+        private final MailData[] out;
+        private final int from;
+        private final int to;
+
+        ParseTask(Session session, Raw[] raws, MailData[] out, int from, int to)
+        {
+            this.session = session;
+            this.raws = raws;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if(to-from<=THRESHOLD)
+            {
+                for(int i=from;i<to;i++)
+                {
+                    out[i] = parse(session, raws[i]);
+                }
+                return;
+            }
+            int mid = (from+to)>>>1;
+            invokeAll(new ParseTask(session, raws, out, from, mid), new ParseTask(session, raws, out, mid, to));
+        }
+    }
+
+    /**
+     * Downloads the messages on the calling thread and starts parsing them in
+     * the pool. Once it returns the messages are no longer needed and can be
+     * released.
+     * @param messages the messages
+     * @return the task parsing them, its result has one item per message in the same order
+     * @throws MessagingException if the messages cannot be downloaded
+     */
+    public ForkJoinTask<List<MailData>> submit(Message[] messages) throws MessagingException
+    {
+        Raw[] raws = download(messages);
+        return pool.submit(() ->
+        {
+            MailData[] out = new MailData[raws.length];
+            new ParseTask(session, raws, out, 0, raws.length).invoke();
+            return new ArrayList<>(Arrays.asList(out));
+        });
+    }
+
+    /**
+     * Converts the messages and waits for them.
+     * @param messages the messages
+     * @return the data of the messages, in the same order, the ones that could not be read or parsed are {@link MailData#isFailed()}
+     * @throws MessagingException if the messages cannot be downloaded
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public List<MailData> convert(Message[] messages) throws MessagingException, InterruptedException
+    {
+        return join(submit(messages));
+    }
+
+    /**
+     * Converts the whole folder of a reader in batches, downloading each batch
+     * while the previous one is parsed. Every batch is released from the
+     * reader as soon as it is downloaded.
+     * @param reader the reader, connected
+     * @param batchSize messages per batch
+     * @param sink receives the data of each batch in folder order, on the calling thread, failed messages included
+     * @return the number of messages converted, not counting the failed ones
+     * @throws MessagingException if the messages cannot be read
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int convert(MailReader reader, int batchSize, Consumer<List<MailData>> sink) throws MessagingException, InterruptedException
+    {
+        int count = reader.getMessageCount();
+        int done = 0;
+        ForkJoinTask<List<MailData>> previous = null;
+        for(int start=1;start<=count;start+=batchSize)
+        {
+            Message[] batch = reader.getMessages(start, Math.min(count, start+batchSize-1));
+            ForkJoinTask<List<MailData>> next = submit(batch);
+            reader.release(batch);
+            if(previous!=null)
+            {
+                done += deliver(previous, sink);
+            }
+            previous = next;
+        }
+        if(previous!=null)
+        {
+            done += deliver(previous, sink);
+        }
+        return done;
+    }
+
+    private static int deliver(ForkJoinTask<List<MailData>> task, Consumer<List<MailData>> sink) throws MessagingException, InterruptedException
+    {
+        List<MailData> list = join(task);
+        sink.accept(list);
+        int count = 0;
+        for(MailData item : list)
+        {
+            if(!item.isFailed())
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static List<MailData> join(ForkJoinTask<List<MailData>> task) throws MessagingException, InterruptedException
+    {
+        try
+        {
+            return task.get();
+        }
+        catch (ExecutionException ex)
+        {
+            throw new MessagingException("conversion failed", ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex);
+        }
+    }
+
+    private static Raw[] download(Message[] messages) throws MessagingException
+    {
+        FetchProfile profile = new FetchProfile();
+        profile.add(FetchProfile.Item.ENVELOPE);
+        profile.add(UIDFolder.FetchProfileItem.UID);
+        profile.add(IMAPFolder.FetchProfileItem.MESSAGE);
+        MailUtils.prefetch(messages, profile);
+
+        List<Raw> raws = new ArrayList<>(messages.length);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for(Message message : messages)
+        {
+            if(message.isExpunged())
+            {
+                raws.add(new Raw(message.getMessageNumber(), -1, null, null));
+                continue;
+            }
+            out.reset();
+            try
+            {
+                message.writeTo(out);
+            }
+            catch (IOException ex)
+            {
+                throw new MessagingException("cannot read message "+message.getMessageNumber(), ex);
+            }
+            raws.add(new Raw(message.getMessageNumber(), uid(message), message.getReceivedDate(), out.toByteArray()));
+        }
+        return raws.toArray(new Raw[0]);
+    }
+
+    private static long uid(Message message) throws MessagingException
+    {
+        if(message instanceof MailCache.CachedMessage)
+        {
+            return ((MailCache.CachedMessage) message).getUID();
+        }
+        Folder folder = message.getFolder();
+        return folder instanceof UIDFolder ? ((UIDFolder) folder).getUID(message) : -1;
+    }
+
+    private static MailData parse(Session session, Raw raw)
+    {
+        if(raw.bytes==null)
+        {
+            return MailData.failed(raw.messageNumber, raw.uid, raw.receivedDate, 0, "message expunged");
+        }
+        try
+        {
+            MimeMessage message = new MimeMessage(session, new ByteArrayInputStream(raw.bytes));
+            Map<String, List<String>> headers = new LinkedHashMap<>();
+            for(Header header : Collections.list(message.getAllHeaders()))
+            {
+                headers.computeIfAbsent(header.getName(), k -> new ArrayList<>(1)).add(header.getValue());
+            }
+            List<MailData.Attachment> attachments = new ArrayList<>();
+            String text = walk(message, attachments, null);
+            return new MailData(raw.messageNumber, raw.uid, message.getMessageID(), message.getSubject(),
+                    addresses(message.getFrom()), addresses(message.getRecipients(Message.RecipientType.TO)), addresses(message.getRecipients(Message.RecipientType.CC)),
+                    message.getSentDate(), raw.receivedDate, headers, text, attachments, raw.bytes.length);
+        }
+        catch (MessagingException | IOException | RuntimeException ex)
+        {
+            Logger.getLogger(MailConverter.class.getName()).log(Level.SEVERE, "cannot parse message "+raw.messageNumber, ex);
+            return MailData.failed(raw.messageNumber, raw.uid, raw.receivedDate, raw.bytes.length, String.valueOf(ex));
+        }
+    }
+
+    /**
+     * Collects the attachments of the part and returns the first plain text.
+     */
+    private static String walk(Part part, List<MailData.Attachment> attachments, String text) throws MessagingException, IOException
+    {
+        if(part.isMimeType("multipart/*"))
+        {
+            Multipart multipart = (Multipart) part.getContent();
+            for(int i=0;i<multipart.getCount();i++)
+            {
+                text = walk(multipart.getBodyPart(i), attachments, text);
+            }
+            return text;
+        }
+        String disposition = part.getDisposition();
+        String fileName = part.getFileName();
+        if(Part.ATTACHMENT.equalsIgnoreCase(disposition) || fileName!=null)
+        {
+            String type = new ContentType(part.getContentType()).getBaseType().toLowerCase(Locale.ROOT);
+            attachments.add(new MailData.Attachment(fileName, type, part.getSize(), Part.INLINE.equalsIgnoreCase(disposition)));
+        }
+        else if(text==null && part.isMimeType("text/plain"))
+        {
+            Object content = part.getContent();
+            text = content instanceof String ? (String) content : null;
+        }
+        return text;
+    }
+
+    private static List<String> addresses(Address[] addresses)
+    {
+        if(addresses==null || addresses.length==0)
+        {
+            return Collections.emptyList();
+        }
+        List<String> list = new ArrayList<>(addresses.length);
+        for(Address address : addresses)
+        {
+            list.add(address instanceof InternetAddress ? ((InternetAddress) address).toUnicodeString() : address.toString());
+        }
+        return list;
+    }
+
+    @Override
+    public void close()
+    {
+        if(ownPool)
+        {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ *  MailData.java
+ *
+ *  Copyright (C) 2025 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable copy of the fields of a message most code reads: the headers,
+ * the plain-text body and the attachment descriptors, without the content of
+ * the attachments. It holds no reference to the folder or the connection, so
+ * it can be kept, queued or serialized after the message is released, see
+ * {@link MailConverter}.
+ *
+ * @author franci
+ */
+public final class MailData implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    public static final class Attachment implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        public final String fileName;
+        /** base type, without parameters, in lower case */
+        public final String contentType;
+        /** size in bytes as found in the message, still encoded, -1 if unknown */
+        public final int size;
+        public final boolean inline;
+
+        Attachment(String fileName, String contentType, int size, boolean inline)
+        {
+            this.fileName = fileName;
+            this.contentType = contentType;
+            this.size = size;
+            this.inline = inline;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Attachment{" + "fileName=" + fileName + ", contentType=" + contentType + ", size=" + size + ", inline=" + inline + '}';
+        }
+    }
+
+    public final int messageNumber;
+    /** IMAP UID, -1 if unknown */
+    public final long uid;
+    public final String messageId;
+    public final String subject;
+    public final List<String> from;
+    public final List<String> to;
+    public final List<String> cc;
+    private final long sentDate;
+    private final long receivedDate;
+    /** header names as found in the message, in order, with all their values */
+    public final Map<String, List<String>> headers;
+    /** first text/plain part that is not an attachment, null if none */
+    public final String text;
+    public final List<Attachment> attachments;
+    /** size of the raw message in bytes */
+    public final int size;
+    /** why the message could not be converted, null if it was */
+    public final String error;
+
+    MailData(int messageNumber, long uid, String messageId, String subject, List<String> from, List<String> to, List<String> cc, Date sentDate, Date receivedDate, Map<String, List<String>> headers, String text, List<Attachment> attachments, int size)
+    {
+        this.messageNumber = messageNumber;
+        this.uid = uid;
+        this.messageId = messageId;
+        this.subject = subject;
+        this.from = Collections.unmodifiableList(from);
+        this.to = Collections.unmodifiableList(to);
+        this.cc = Collections.unmodifiableList(cc);
+        this.sentDate = sentDate==null ? -1 : sentDate.getTime();
+        this.receivedDate = receivedDate==null ? -1 : receivedDate.getTime();
+        this.headers = Collections.unmodifiableMap(headers);
+        this.text = text;
+        this.attachments = Collections.unmodifiableList(attachments);
+        this.size = size;
+        this.error = null;
+    }
+
+    /**
+     * Placeholder of a message that could not be converted, it keeps its
+     * position in the results and tells which message it was.
+     */
+    private MailData(int messageNumber, long uid, Date receivedDate, int size, String error)
+    {
+        this.messageNumber = messageNumber;
+        this.uid = uid;
+        this.messageId = null;
+        this.subject = null;
+        this.from = Collections.emptyList();
+        this.to = Collections.emptyList();
+        this.cc = Collections.emptyList();
+        this.sentDate = -1;
+        this.receivedDate = receivedDate==null ? -1 : receivedDate.getTime();
+        this.headers = Collections.emptyMap();
+        this.text = null;
+        this.attachments = Collections.emptyList();
+        this.size = size;
+        this.error = error;
+    }
+
+    static MailData failed(int messageNumber, long uid, Date receivedDate, int size, String error)
+    {
+        return new MailData(messageNumber, uid, receivedDate, size, error);
+    }
+
+    /**
+     * @return true if the message could not be converted, see {@link #error}
+     */
+    public boolean isFailed()
+    {
+        return error!=null;
+    }
+
+    /**
+     * @return a copy of the sent date, null if unknown
+     */
+    public Date getSentDate()
+    {
+        return sentDate<0 ? null : new Date(sentDate);
+    }
+
+    /**
+     * @return a copy of the received date, null if unknown
+     */
+    public Date getReceivedDate()
+    {
+        return receivedDate<0 ? null : new Date(receivedDate);
+    }
+
+    /**
+     * @param name header name, ignoring case
+     * @return the first value of the header, null if missing
+     */
+    public String getHeader(String name)
+    {
+        for(Map.Entry<String, List<String>> entry : headers.entrySet())
+        {
+            if(entry.getKey().equalsIgnoreCase(name) && !entry.getValue().isEmpty())
+            {
+                return entry.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "MailData{" + "messageNumber=" + messageNumber + ", uid=" + uid + ", messageId=" + messageId + ", subject=" + subject + ", attachments=" + attachments.size() + ", size=" + size + (error!=null ? ", error=" + error : "") + '}';
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ *  MailDedup.java
+ *
+ *  Copyright (C) 2025 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import jakarta.mail.FetchProfile;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import java.io.Closeable;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
+
+/**
+ * Index of the messages already ingested, to skip the copies of the same
+ * mail delivered to several mailboxes before downloading their bodies. It is
+ * keyed by Message-ID or, for messages without one, by a hash of the
+ * originator headers, which are the same in every copy.
+ * <p>
+ * Each key is stored as a 128 bit digest in an exact set in a MapDB file and
+ * in an in-memory Bloom filter sized for {@code expectedItems}, so most new
+ * messages are told apart without reading the file; the filter takes about
+ * 1.2 bytes per expected item at 1% false positives, and is rebuilt from the
+ * file when it is opened.
+ *
+ * @author franci
+ */
+public class MailDedup implements Closeable
+{
+    public static final double DEFAULT_FPP = 0.01;
+
+    private static final String IDS = "ids";
+    private static final String[] KEY_HEADERS = {"Message-ID", "Date", "From", "To", "Cc", "Subject"};
+
+    /**
+     * Bloom filter over digests, the k positions are derived from two 64 bit
+     * halves of the digest (Kirsch-Mitzenmacher).
+     */
+    private static class Bloom
+    {
+        private final long[] bits;
+        private final long size;
+        private final int hashes;
+
+        Bloom(long expectedItems, double fpp)
+        {
+            long n = Math.max(1, expectedItems);
+            long m = (long) Math.ceil(-n*Math.log(fpp)/(Math.log(2)*Math.log(2)));
+            this.bits = new long[(int) Math.min(Integer.MAX_VALUE-8, (m+63)>>>6)];
+            this.size = bits.length*64L;
+            this.hashes = Math.max(1, (int) Math.round((double) size/n*Math.log(2)));
+        }
+
+        private long index(long h1, long h2, int i)
+        {
+            return ((h1+i*h2) & Long.MAX_VALUE) % size;
+        }
+
+        boolean mightContain(byte[] digest)
+        {
+            long h1 = toLong(digest, 0);
+            long h2 = toLong(digest, 8);
+            for(int i=0;i<hashes;i++)
+            {
+                long index = index(h1, h2, i);
+                if((bits[(int) (index>>>6)] & (1L<<index))==0)
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void put(byte[] digest)
+        {
+            long h1 = toLong(digest, 0);
+            long h2 = toLong(digest, 8);
+            for(int i=0;i<hashes;i++)
+            {
+                long index = index(h1, h2, i);
+                bits[(int) (index>>>6)] |= 1L<<index;
+            }
+        }
+
+        private static long toLong(byte[] b, int off)
+        {
+            long value = 0;
+            for(int i=0;i<8;i++)
+            {
+                value = (value<<8) | (b[off+i] & 0xFF);
+            }
+            return value;
+        }
+    }
+
+    private final Object lock = new Object();
+
+    private final DB db;
+    private final Set<byte[]> ids;
+    private final Bloom bloom;
+
+    private long lookups;
+    private long falsePositives;
+
+    /**
+     * @param file file of the exact set, null to keep it in memory
+     * @param expectedItems number of messages the Bloom filter is sized for
+     * @param fpp false positive probability of the Bloom filter at {@code expectedItems}
+     */
+    @SuppressWarnings("unchecked")
+    public MailDedup(File file, long expectedItems, double fpp)
+    {
+        this.db = file==null ? DBMaker.memoryDB().make() : DBMaker.fileDB(file).fileMmapEnableIfSupported().transactionEnable().make();
+        this.ids = (Set<byte[]>) db.hashSet(IDS, Serializer.BYTE_ARRAY).createOrOpen();
+        this.bloom = new Bloom(expectedItems, fpp);
+        for(byte[] id : ids)
+        {
+            bloom.put(id);
+        }
+    }
+    public MailDedup(File file, long expectedItems)
+    {
+        this(file, expectedItems, DEFAULT_FPP);
+    }
+
+    /**
+     * @param message the message, with the headers used by the key loaded to avoid one request per message
+     * @return "id:" and the Message-ID without angle brackets, or "hash:" and a hash of Date, From, To, Cc and Subject if it has none
+     * @throws MessagingException if the headers cannot be read
+     */
+    public static String keyOf(Message message) throws MessagingException
+    {
+        String[] id = message.getHeader("Message-ID");
+        if(id!=null && id.length>0 && !id[0].trim().isEmpty())
+        {
+            String value = id[0].trim();
+            if(value.startsWith("<") && value.endsWith(">"))
+            {
+                value = value.substring(1, value.length()-1).trim();
+            }
+            return "id:"+value;
+        }
+        StringBuilder sb = new StringBuilder();
+        for(int i=1;i<KEY_HEADERS.length;i++)
+        {
+            String[] values = message.getHeader(KEY_HEADERS[i]);
+            sb.append(values==null ? "" : String.join(",", values).trim()).append('\n');
+        }
+        StringBuilder hex = new StringBuilder("hash:");
+        for(byte b : digest(sb.toString()))
+        {
+            hex.append(Character.forDigit((b>>4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] digest(String key)
+    {
+        try
+        {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            byte[] digest = new byte[16];
+            System.arraycopy(hash, 0, digest, 0, digest.length);
+            return digest;
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private boolean contains(byte[] digest)
+    {
+        if(!bloom.mightContain(digest))
+        {
+            return false;
+        }
+        lookups++;
+        if(ids.contains(digest))
+        {
+            return true;
+        }
+        falsePositives++;
+        return false;
+    }
+
+    private boolean put(byte[] digest)
+    {
+        if(contains(digest))
+        {
+            return false;
+        }
+        ids.add(digest);
+        bloom.put(digest);
+        return true;
+    }
+
+    public boolean contains(String key)
+    {
+        synchronized (lock)
+        {
+            return contains(digest(key));
+        }
+    }
+
+    /**
+     * @param key key of the message, see {@link #keyOf(Message)}
+     * @return true if it was not known
+     */
+    public boolean add(String key)
+    {
+        synchronized (lock)
+        {
+            boolean added = put(digest(key));
+            if(added)
+            {
+                db.commit();
+            }
+            return added;
+        }
+    }
+
+    /**
+     * Returns the messages not seen yet, loading in one batch only the headers
+     * used by the keys. Copies of the same message within the array are
+     * returned once. Nothing is recorded, call {@link #add(Message[])} once
+     * they are processed.
+     * @param reader reader of the messages
+     * @param messages the messages
+     * @return the messages whose key is not known
+     * @throws MessagingException if the headers cannot be read
+     */
+    public Message[] unseen(MailReader reader, Message[] messages) throws MessagingException
+    {
+        reader.fetch(messages, profile());
+        List<Message> list = new ArrayList<>();
+        Set<String> batch = new HashSet<>();
+        synchronized (lock)
+        {
+            for(Message message : messages)
+            {
+                String key = keyOf(message);
+                if(batch.add(key) && !contains(digest(key)))
+                {
+                    list.add(message);
+                }
+            }
+        }
+        return list.toArray(new Message[0]);
+    }
+
+    /**
+     * Records the messages as seen with a single commit.
+     * @param messages the messages
+     * @return the number of them that were not known
+     * @throws MessagingException if the headers cannot be read
+     */
+    public int add(Message[] messages) throws MessagingException
+    {
+        String[] keys = new String[messages.length];
+        for(int i=0;i<messages.length;i++)
+        {
+            keys[i] = keyOf(messages[i]);
+        }
+        int count = 0;
+        synchronized (lock)
+        {
+            for(String key : keys)
+            {
+                if(put(digest(key)))
+                {
+                    count++;
+                }
+            }
+            if(count>0)
+            {
+                db.commit();
+            }
+        }
+        return count;
+    }
+
+    private static FetchProfile profile()
+    {
+        FetchProfile profile = new FetchProfile();
+        profile.add(FetchProfile.Item.ENVELOPE);
+        for(String header : KEY_HEADERS)
+        {
+            profile.add(header);
+        }
+        return profile;
+    }
+
+    public long size()
+    {
+        synchronized (lock)
+        {
+            return ids.size();
+        }
+    }
+
+    /**
+     * @return number of keys the Bloom filter let through to the exact set
+     */
+    public long getLookups()
+    {
+        synchronized (lock)
+        {
+            return lookups;
+        }
+    }
+
+    /**
+     * @return number of lookups in the exact set that were not found
+     */
+    public long getFalsePositives()
+    {
+        synchronized (lock)
+        {
+            return falsePositives;
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        synchronized (lock)
+        {
+            if(!db.isClosed())
+            {
+                db.commit();
+                db.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ *  MailIterator.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import jakarta.mail.FetchProfile;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Walks a folder in windows of a fixed number of messages instead of
+ * loading it whole. The attributes of the profile are fetched in one batch
+ * per window, the next window is loaded in the background while the current
+ * one is consumed, and the cached data of each window is released through
+ * {@link MailReader#release(Message[])} once it has been consumed, so the
+ * memory used does not depend on the size of the folder.
+ *
+ * @author franci
+ */
+public class MailIterator implements Iterator<Message>, Closeable
+{
+    public static final int DEFAULT_WINDOW_SIZE = 500;
+
+    /**
+     * Loads the messages of a range of positions.
+     */
+    public interface Loader
+    {
+        /**
+         * @param start first position, inclusive
+         * @param end last position, inclusive
+         * @return the messages found in the range, it can be empty
+         * @throws MessagingException if the load fails
+         */
+        Message[] load(long start, long end) throws MessagingException;
+    }
+
+    private static final Message[] EMPTY = new Message[0];
+
+    private final MailReader reader;
+    private final Loader loader;
+    private final long last;
+    private final int windowSize;
+    private final FetchProfile profile;
+    private final ExecutorService executor;
+
+    private long nextStart;
+    private Message[] window = EMPTY;
+    private int index;
+    private CompletableFuture<Message[]> pending;
+
+    /**
+     * @param reader used to fetch and release the windows
+     * @param loader loads the messages of each window
+     * @param first first position, a sequence number or a UID
+     * @param last last position, inclusive
+     * @param windowSize number of positions per window
+     * @param profile attributes loaded in one batch per window, null for none
+     */
+    public MailIterator(MailReader reader, Loader loader, long first, long last, int windowSize, FetchProfile profile)
+    {
+        if(windowSize<1)
+        {
+            throw new IllegalArgumentException("windowSize="+windowSize);
+        }
+        this.reader = reader;
+        this.loader = loader;
+        this.last = last;
+        this.windowSize = windowSize;
+        this.profile = profile;
+        this.nextStart = first;
+        this.executor = Executors.newSingleThreadExecutor(r ->
+        {
+            Thread t = new Thread(r, "MailIterator");
+            t.setDaemon(true);
+            return t;
+        });
+        this.pending = prefetch();
+    }
+
+    /**
+     * Iterates by sequence number the messages present when it is created;
+     * messages expunged meanwhile shift the positions, use
+     * {@link IMAP#iterateByUID(long, int, FetchProfile)} when that matters.
+     * @param reader the folder
+     * @param windowSize messages per window
+     * @param profile attributes loaded in one batch per window, null for none
+     * @return the iterator
+     * @throws MessagingException if the folder cannot be read
+     */
+    public static MailIterator bySequence(MailReader reader, int windowSize, FetchProfile profile) throws MessagingException
+    {
+        int count = reader.getMessageCount();
+        return new MailIterator(reader, (start, end) -> reader.getMessages((int) start, (int) end), 1, count, windowSize, profile);
+    }
+
+    private CompletableFuture<Message[]> prefetch()
+    {
+        if(nextStart>last)
+        {
+            return null;
+        }
+        final long start = nextStart;
+        final long end = Math.min(last, start+windowSize-1);
+        nextStart = end+1;
+        return CompletableFuture.supplyAsync(() ->
+        {
+            try
+            {
+                Message[] messages = loader.load(start, end);
+                if(profile!=null && messages.length>0)
+                {
+                    reader.fetch(messages, profile);
+                }
+                return messages;
+            }
+            catch (MessagingException ex)
+            {
+                throw new CompletionException(ex);
+            }
+        }, executor);
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        while(index>=window.length)
+        {
+            if(pending==null)
+            {
+                release();
+                executor.shutdown();
+                return false;
+            }
+            Message[] messages;
+            try
+            {
+                messages = pending.get();
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(ex);
+            }
+            catch (ExecutionException ex)
+            {
+                throw new IllegalStateException(ex.getCause());
+            }
+            release();
+            window = messages;
+            index = 0;
+            pending = prefetch();
+        }
+        return true;
+    }
+
+    @Override
+    public Message next()
+    {
+        if(!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+        return window[index++];
+    }
+
+    private void release()
+    {
+        if(window.length>0)
+        {
+            try
+            {
+                reader.release(window);
+            }
+            catch (MessagingException ex)
+            {
+                throw new IllegalStateException(ex);
+            }
+            window = EMPTY;
+            index = 0;
+        }
+    }
+
+    /**
+     * @return a sequential stream over the messages, closing it closes this iterator
+     */
+    public Stream<Message> stream()
+    {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED|Spliterator.NONNULL), false).onClose(this::close);
+    }
+
+    @Override
+    public void close()
+    {
+        if(pending!=null)
+        {
+            pending.cancel(false);
+            pending = null;
+        }
+        executor.shutdown();
+        window = EMPTY;
+        index = 0;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ *  MailKeepAlive.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a set of mail connections warm. {@link #warmUp(long)} opens all of
+ * them in parallel, typically during application startup, and
+ * {@link #start(long)} pings them periodically from a background thread so
+ * servers do not drop them while idle, reopening the ones found closed.
+ *
+ * @author franci
+ */
+public class MailKeepAlive implements Closeable
+{
+    private interface Target
+    {
+        void connect() throws Exception;
+        boolean ping() throws Exception;
+        void disconnect();
+    }
+
+    private final List<Target> targets = new CopyOnWriteArrayList<>();
+
+    private volatile ScheduledExecutorService scheduler;
+
+    public MailKeepAlive add(SMTP smtp)
+    {
+        targets.add(new Target()
+        {
+            @Override
+            public void connect() throws Exception
+            {
+                smtp.connect();
+            }
+            @Override
+            public boolean ping()
+            {
+                return smtp.keepAlive();
+            }
+            @Override
+            public void disconnect()
+            {
+                smtp.disconnect();
+            }
+        });
+        return this;
+    }
+
+    public MailKeepAlive add(SmtpPool pool)
+    {
+        targets.add(new Target()
+        {
+            @Override
+            public void connect() throws Exception
+            {
+                pool.start();
+            }
+            @Override
+            public boolean ping()
+            {
+                pool.keepAlive();
+                return true;
+            }
+            @Override
+            public void disconnect()
+            {
+            }
+        });
+        return this;
+    }
+
+    public MailKeepAlive add(MailReader reader)
+    {
+        targets.add(new Target()
+        {
+            @Override
+            public void connect() throws Exception
+            {
+                reader.connect();
+            }
+            @Override
+            public boolean ping() throws Exception
+            {
+                return reader.keepAlive();
+            }
+            @Override
+            public void disconnect()
+            {
+                reader.close();
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Connects every registered client in parallel and waits for them.
+     * @param timeoutMillis maximum time to wait for all the connections
+     * @return the errors of the connections that failed, empty if all succeeded
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public List<Exception> warmUp(long timeoutMillis) throws InterruptedException
+    {
+        List<Exception> errors = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, targets.size()), r ->
+        {
+            Thread t = new Thread(r, "MailKeepAlive-warmup");
+            t.setDaemon(true);
+            return t;
+        });
+        try
+        {
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for(Target target : targets)
+            {
+                futures.add(CompletableFuture.runAsync(() ->
+                {
+                    try
+                    {
+                        target.connect();
+                    }
+                    catch (Exception ex)
+                    {
+                        throw new RuntimeException(ex);
+                    }
+                }, executor));
+            }
+            long deadline = System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            for(CompletableFuture<Void> future : futures)
+            {
+                try
+                {
+                    future.get(Math.max(0, deadline-System.nanoTime()), TimeUnit.NANOSECONDS);
+                }
+                catch (ExecutionException ex)
+                {
+                    Throwable cause = ex.getCause() instanceof RuntimeException && ex.getCause().getCause()!=null ? ex.getCause().getCause() : ex.getCause();
+                    errors.add(cause instanceof Exception ? (Exception) cause : ex);
+                }
+                catch (TimeoutException ex)
+                {
+                    errors.add(ex);
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        return errors;
+    }
+
+    /**
+     * Pings every registered client once, closing and reconnecting the ones
+     * found dead.
+     * @return the number of clients that had to be reconnected
+     */
+    public int ping()
+    {
+        int count = 0;
+        for(Target target : targets)
+        {
+            boolean alive;
+            try
+            {
+                alive = target.ping();
+            }
+            catch (Exception ex)
+            {
+                Logger.getLogger(MailKeepAlive.class.getName()).log(Level.FINE, (String) null, ex);
+                alive = false;
+            }
+            if(!alive)
+            {
+                count++;
+                try
+                {
+                    target.disconnect(); // releases the dead transport or store before opening a new one
+                    target.connect();
+                }
+                catch (Exception ex)
+                {
+                    Logger.getLogger(MailKeepAlive.class.getName()).log(Level.WARNING, (String) null, ex);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Starts pinging the registered clients in a background thread.
+     * @param intervalMillis time between pings, it must be lower than the servers idle timeout
+     * @return this
+     */
+    public synchronized MailKeepAlive start(long intervalMillis)
+    {
+        if(scheduler==null)
+        {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r ->
+            {
+                Thread t = new Thread(r, "MailKeepAlive");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.scheduleWithFixedDelay(this::ping, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        if(scheduler!=null)
+        {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+}
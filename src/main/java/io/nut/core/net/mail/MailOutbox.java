@@ -0,0 +1,471 @@
+/*
+ *  MailOutbox.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.AddressException;
+import java.io.Closeable;
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.eclipse.angus.mail.smtp.SMTPAddressFailedException;
+import org.eclipse.angus.mail.smtp.SMTPSendFailedException;
+import org.mapdb.Atomic;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
+import org.mapdb.serializer.GroupSerializer;
+
+/**
+ * Persistent outbox backed by a MapDB file. {@link #enqueue(OutgoingMail)}
+ * only writes the mail to disk, a background dispatcher sends the pending
+ * mails in batches through a {@link MailSender} and retries the failed ones
+ * with exponential backoff. Mails still pending when the process stops are
+ * sent after the next {@link #start()}. Mails that fail permanently or exceed
+ * {@code maxAttempts} are moved to the failed list.
+ * <p>
+ * Enqueued mails are committed in groups, at most every
+ * {@link #setCommitMillis(long)} and on each dispatch and close, so
+ * {@code enqueue} does not wait for the disk; if the process dies the mails
+ * of the last uncommitted group are lost. A commit time of 0 commits every
+ * mail before {@code enqueue} returns. The pending mails are also indexed in
+ * memory by their next attempt, so each dispatch only reads the due ones.
+ *
+ * @author franci
+ */
+public class MailOutbox implements Closeable
+{
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final int DEFAULT_MAX_ATTEMPTS = 10;
+    public static final long DEFAULT_BASE_BACKOFF_MILLIS = 1_000;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 3_600_000;
+    public static final long DEFAULT_POLL_MILLIS = 1_000;
+    public static final long DEFAULT_COMMIT_MILLIS = 100;
+
+    private static final String OUTBOX = "outbox";
+    private static final String FAILED = "failed";
+    private static final String SEQUENCE = "sequence";
+
+    static class Entry implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        final OutgoingMail mail;
+        final int attempts;
+        final long nextAttemptMillis;
+        final String lastError;
+
+        Entry(OutgoingMail mail, int attempts, long nextAttemptMillis, String lastError)
+        {
+            this.mail = mail;
+            this.attempts = attempts;
+            this.nextAttemptMillis = nextAttemptMillis;
+            this.lastError = lastError;
+        }
+    }
+
+    /**
+     * Position of a pending mail in the due index.
+     */
+    private static final class Due implements Comparable<Due>
+    {
+        final long nextAttemptMillis;
+        final long id;
+
+        Due(long nextAttemptMillis, long id)
+        {
+            this.nextAttemptMillis = nextAttemptMillis;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(Due other)
+        {
+            int cmp = Long.compare(nextAttemptMillis, other.nextAttemptMillis);
+            return cmp!=0 ? cmp : Long.compare(id, other.id);
+        }
+    }
+
+    private final Object lock = new Object();
+
+    private final MailSender sender;
+    private final DB db;
+    private final BTreeMap<Long, Entry> pending;
+    private final BTreeMap<Long, Entry> failed;
+    private final Atomic.Long sequence;
+    // pending mails by next attempt, rebuilt on open
+    private final TreeSet<Due> due = new TreeSet<>();
+
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+    private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private volatile long baseBackoffMillis = DEFAULT_BASE_BACKOFF_MILLIS;
+    private volatile long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+    private volatile long pollMillis = DEFAULT_POLL_MILLIS;
+    private volatile long commitMillis = DEFAULT_COMMIT_MILLIS;
+
+    private boolean dirty;
+    private long lastCommit = System.nanoTime();
+
+    private volatile Thread dispatcher;
+    private volatile boolean running;
+
+    @SuppressWarnings("unchecked")
+    public MailOutbox(File file, MailSender sender)
+    {
+        this.sender = sender;
+        this.db = DBMaker.fileDB(file).fileMmapEnableIfSupported().transactionEnable().make();
+        GroupSerializer<Entry> serializer = (GroupSerializer<Entry>) Serializer.JAVA;
+        this.pending = db.treeMap(OUTBOX, Serializer.LONG, serializer).createOrOpen();
+        this.failed = db.treeMap(FAILED, Serializer.LONG, serializer).createOrOpen();
+        this.sequence = db.atomicLong(SEQUENCE).createOrOpen();
+        for(Map.Entry<Long, Entry> item : pending.entrySet())
+        {
+            due.add(new Due(item.getValue().nextAttemptMillis, item.getKey()));
+        }
+    }
+
+    public MailOutbox setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public MailOutbox setMaxAttempts(int maxAttempts)
+    {
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    public MailOutbox setBackoff(long baseBackoffMillis, long maxBackoffMillis)
+    {
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        return this;
+    }
+
+    public MailOutbox setPollMillis(long pollMillis)
+    {
+        this.pollMillis = pollMillis;
+        return this;
+    }
+
+    /**
+     * @param commitMillis maximum time an enqueued mail waits to be committed, 0 to commit each one before {@code enqueue} returns
+     * @return this outbox
+     */
+    public MailOutbox setCommitMillis(long commitMillis)
+    {
+        this.commitMillis = commitMillis;
+        return this;
+    }
+
+    private void commit()
+    {
+        db.commit();
+        dirty = false;
+        lastCommit = System.nanoTime();
+    }
+
+    /**
+     * Stores the mail on disk to be sent by the dispatcher, it is committed
+     * with the next group, see {@link #setCommitMillis(long)}.
+     * @param mail the mail to send
+     * @return the id of the mail in the outbox
+     */
+    public long enqueue(OutgoingMail mail)
+    {
+        synchronized (lock)
+        {
+            long id = sequence.incrementAndGet();
+            pending.put(id, new Entry(mail, 0, 0, null));
+            due.add(new Due(0, id));
+            dirty = true;
+            if(System.nanoTime()-lastCommit>=TimeUnit.MILLISECONDS.toNanos(commitMillis))
+            {
+                commit();
+            }
+            lock.notifyAll();
+            return id;
+        }
+    }
+
+    /**
+     * Sends up to {@code batchSize} pending mails whose retry time has come.
+     * Called by the dispatcher thread, it can also be called directly when
+     * the outbox is not started.
+     * @return the number of mails sent
+     * @throws InterruptedException if interrupted while waiting for the sender
+     */
+    public int dispatch() throws InterruptedException
+    {
+        long now = System.currentTimeMillis();
+        List<Due> ids = new ArrayList<>();
+        List<OutgoingMail> mails = new ArrayList<>();
+        synchronized (lock)
+        {
+            if(dirty)
+            {
+                commit();
+            }
+            for(Due item : due)
+            {
+                if(item.nextAttemptMillis>now || mails.size()>=batchSize)
+                {
+                    break;
+                }
+                ids.add(item);
+                mails.add(pending.get(item.id).mail);
+            }
+        }
+        if(mails.isEmpty())
+        {
+            return 0;
+        }
+        List<SendResult> results;
+        try
+        {
+            results = sender.sendBatch(mails);
+        }
+        catch (MessagingException ex)
+        {
+            results = new ArrayList<>();
+            for(OutgoingMail mail : mails)
+            {
+                results.add(new SendResult(mail, ex));
+            }
+        }
+        int sent = 0;
+        synchronized (lock)
+        {
+            for(int i=0;i<ids.size();i++)
+            {
+                Long id = ids.get(i).id;
+                SendResult result = results.get(i);
+                due.remove(ids.get(i));
+                if(result.isSent())
+                {
+                    pending.remove(id);
+                    sent++;
+                    continue;
+                }
+                Entry entry = pending.get(id);
+                int attempts = entry.attempts+1;
+                Entry retry = new Entry(entry.mail, attempts, now+backoffMillis(attempts), String.valueOf(result.error));
+                if(attempts>=maxAttempts || isPermanent(result.error))
+                {
+                    pending.remove(id);
+                    failed.put(id, retry);
+                }
+                else
+                {
+                    pending.put(id, retry);
+                    due.add(new Due(retry.nextAttemptMillis, id));
+                }
+            }
+            commit();
+        }
+        return sent;
+    }
+
+    /**
+     * @param error the send error
+     * @return true for malformed addresses and 5xx SMTP replies, which fail again on every retry
+     */
+    static boolean isPermanent(Exception error)
+    {
+        Exception ex = error;
+        while(ex!=null)
+        {
+            if(ex instanceof AddressException)
+            {
+                return true;
+            }
+            int code = ex instanceof SMTPSendFailedException ? ((SMTPSendFailedException) ex).getReturnCode()
+                     : ex instanceof SMTPAddressFailedException ? ((SMTPAddressFailedException) ex).getReturnCode() : 0;
+            if(code>=500 && code<600)
+            {
+                return true;
+            }
+            ex = ex instanceof MessagingException ? ((MessagingException) ex).getNextException() : null;
+        }
+        return false;
+    }
+
+    long backoffMillis(int attempts)
+    {
+        long delay = baseBackoffMillis << Math.min(attempts-1, 30);
+        return delay>0 ? Math.min(delay, maxBackoffMillis) : maxBackoffMillis;
+    }
+
+    /**
+     * Starts the dispatcher thread, any mail left by a previous run is sent
+     * as well.
+     * @return this outbox
+     */
+    public MailOutbox start()
+    {
+        synchronized (lock)
+        {
+            if(dispatcher==null)
+            {
+                running = true;
+                dispatcher = new Thread(this::run, "MailOutbox-dispatcher");
+                dispatcher.setDaemon(true);
+                dispatcher.start();
+            }
+            return this;
+        }
+    }
+
+    private void run()
+    {
+        int errors = 0;
+        while(running)
+        {
+            try
+            {
+                try
+                {
+                    int sent = dispatch();
+                    errors = 0;
+                    if(sent<batchSize)
+                    {
+                        pause(pollMillis, true);
+                    }
+                }
+                catch (RuntimeException ex)
+                {
+                    // e.g. a closed sender, retrying at once would spin and flood the log
+                    Logger.getLogger(MailOutbox.class.getName()).log(Level.SEVERE, (String) null, ex);
+                    pause(Math.max(pollMillis, backoffMillis(++errors)), false);
+                }
+            }
+            catch (InterruptedException ex)
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param millis time to wait
+     * @param wakeOnEnqueue true to return as soon as a mail is enqueued
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void pause(long millis, boolean wakeOnEnqueue) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis()+millis;
+        synchronized (lock)
+        {
+            long left;
+            while(running && (left = deadline-System.currentTimeMillis())>0)
+            {
+                lock.wait(left);
+                if(wakeOnEnqueue)
+                {
+                    return;
+                }
+            }
+        }
+    }
+
+    public int size()
+    {
+        return pending.size();
+    }
+
+    /**
+     * @return the mails discarded after a permanent error or too many attempts, by id
+     */
+    public Map<Long, OutgoingMail> getFailed()
+    {
+        Map<Long, OutgoingMail> map = new TreeMap<>();
+        for(Map.Entry<Long, Entry> item : failed.entrySet())
+        {
+            map.put(item.getKey(), item.getValue().mail);
+        }
+        return map;
+    }
+
+    /**
+     * Moves every failed mail back to the outbox to be sent again.
+     * @return the number of mails moved
+     */
+    public int retryFailed()
+    {
+        synchronized (lock)
+        {
+            int count = 0;
+            for(Map.Entry<Long, Entry> item : failed.entrySet())
+            {
+                pending.put(item.getKey(), new Entry(item.getValue().mail, 0, 0, null));
+                due.add(new Due(0, item.getKey()));
+                count++;
+            }
+            failed.clear();
+            commit();
+            lock.notifyAll();
+            return count;
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        Thread thread;
+        synchronized (lock)
+        {
+            running = false;
+            thread = dispatcher;
+            dispatcher = null;
+            lock.notifyAll();
+        }
+        if(thread!=null)
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException ex)
+            {
+                Logger.getLogger(MailOutbox.class.getName()).log(Level.SEVERE, (String) null, ex);
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (lock)
+        {
+            if(dirty)
+            {
+                commit();
+            }
+            db.close();
+        }
+    }
+}
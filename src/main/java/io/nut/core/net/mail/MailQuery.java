@@ -0,0 +1,256 @@
+/*
+ *  MailQuery.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import jakarta.mail.FetchProfile;
+import jakarta.mail.Flags;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.search.AndTerm;
+import jakarta.mail.search.ComparisonTerm;
+import jakarta.mail.search.FlagTerm;
+import jakarta.mail.search.FromStringTerm;
+import jakarta.mail.search.HeaderTerm;
+import jakarta.mail.search.OrTerm;
+import jakarta.mail.search.ReceivedDateTerm;
+import jakarta.mail.search.RecipientStringTerm;
+import jakarta.mail.search.SearchTerm;
+import jakarta.mail.search.SentDateTerm;
+import jakarta.mail.search.SizeTerm;
+import jakarta.mail.search.SubjectTerm;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Builder of the conditions passed to {@link MailReader#search(MailQuery)},
+ * all of them must match. {@link IMAP} sends them to the server as a single
+ * SEARCH command, so only the matching messages are transferred; other
+ * readers fetch just the headers needed and evaluate them locally.
+ *
+ * @author franci
+ */
+public class MailQuery
+{
+    private final List<SearchTerm> terms = new ArrayList<>();
+    private final Set<String> headers = new LinkedHashSet<>();
+    private Date receivedAfter;
+    private Date receivedBefore;
+    private boolean size;
+    private boolean flags;
+
+    public MailQuery from(String address)
+    {
+        terms.add(new FromStringTerm(address));
+        return this;
+    }
+
+    /**
+     * @param address matched against the To, Cc and Bcc recipients
+     * @return this
+     */
+    public MailQuery recipient(String address)
+    {
+        terms.add(new OrTerm(new SearchTerm[]
+        {
+            new RecipientStringTerm(Message.RecipientType.TO, address),
+            new RecipientStringTerm(Message.RecipientType.CC, address),
+            new RecipientStringTerm(Message.RecipientType.BCC, address)
+        }));
+        return this;
+    }
+
+    public MailQuery to(String address)
+    {
+        terms.add(new RecipientStringTerm(Message.RecipientType.TO, address));
+        return this;
+    }
+
+    /**
+     * @param pattern case insensitive substring of the subject
+     * @return this
+     */
+    public MailQuery subject(String pattern)
+    {
+        terms.add(new SubjectTerm(pattern));
+        return this;
+    }
+
+    /**
+     * @param name header name
+     * @param pattern case insensitive substring of the header value
+     * @return this
+     */
+    public MailQuery header(String name, String pattern)
+    {
+        terms.add(new HeaderTerm(name, pattern));
+        headers.add(name);
+        return this;
+    }
+
+    public MailQuery largerThan(int bytes)
+    {
+        terms.add(new SizeTerm(ComparisonTerm.GT, bytes));
+        size = true;
+        return this;
+    }
+
+    public MailQuery smallerThan(int bytes)
+    {
+        terms.add(new SizeTerm(ComparisonTerm.LT, bytes));
+        size = true;
+        return this;
+    }
+
+    /**
+     * @param flag the flag
+     * @param set true to match the messages with the flag, false the ones without it
+     * @return this
+     */
+    public MailQuery flag(Flags.Flag flag, boolean set)
+    {
+        terms.add(new FlagTerm(new Flags(flag), set));
+        flags = true;
+        return this;
+    }
+
+    public MailQuery seen(boolean seen)
+    {
+        return flag(Flags.Flag.SEEN, seen);
+    }
+
+    public MailQuery sentAfter(Date date)
+    {
+        terms.add(new SentDateTerm(ComparisonTerm.GT, date));
+        return this;
+    }
+
+    public MailQuery sentBefore(Date date)
+    {
+        terms.add(new SentDateTerm(ComparisonTerm.LT, date));
+        return this;
+    }
+
+    /**
+     * IMAP servers compare dates without the time, readers without a
+     * received date, like POP3, use the sent date instead.
+     * @param date exclusive lower bound
+     * @return this
+     */
+    public MailQuery receivedAfter(Date date)
+    {
+        receivedAfter = date;
+        return this;
+    }
+
+    public MailQuery receivedBefore(Date date)
+    {
+        receivedBefore = date;
+        return this;
+    }
+
+    /**
+     * @param term any other condition
+     * @return this
+     */
+    public MailQuery matching(SearchTerm term)
+    {
+        terms.add(term);
+        return this;
+    }
+
+    public boolean isEmpty()
+    {
+        return terms.isEmpty() && receivedAfter==null && receivedBefore==null;
+    }
+
+    /**
+     * @return the conditions to run on the server, null if there are none
+     */
+    public SearchTerm toSearchTerm()
+    {
+        return toSearchTerm(false);
+    }
+
+    /**
+     * @param sentAsReceived compare the received dates with the sent date, for messages without a received date
+     * @return the conditions, null if there are none
+     */
+    SearchTerm toSearchTerm(boolean sentAsReceived)
+    {
+        List<SearchTerm> list = new ArrayList<>(terms);
+        if(receivedAfter!=null)
+        {
+            list.add(sentAsReceived ? new SentDateTerm(ComparisonTerm.GT, receivedAfter) : new ReceivedDateTerm(ComparisonTerm.GT, receivedAfter));
+        }
+        if(receivedBefore!=null)
+        {
+            list.add(sentAsReceived ? new SentDateTerm(ComparisonTerm.LT, receivedBefore) : new ReceivedDateTerm(ComparisonTerm.LT, receivedBefore));
+        }
+        switch (list.size())
+        {
+            case 0:
+                return null;
+            case 1:
+                return list.get(0);
+            default:
+                return new AndTerm(list.toArray(new SearchTerm[0]));
+        }
+    }
+
+    /**
+     * @return the attributes needed to evaluate the conditions on the client
+     */
+    FetchProfile getFetchProfile()
+    {
+        return MailUtils.newFetchProfile(true, flags, false, size, headers.toArray(new String[0]));
+    }
+
+    /**
+     * Evaluates the conditions on the client, loading first in one batch
+     * only the headers and attributes they use.
+     * @param reader where the messages come from
+     * @param messages the messages to filter
+     * @return the messages that match
+     * @throws MessagingException if the fetch fails
+     */
+    Message[] filter(MailReader reader, Message[] messages) throws MessagingException
+    {
+        SearchTerm term = toSearchTerm(true);
+        if(term==null || messages.length==0)
+        {
+            return messages;
+        }
+        reader.fetch(messages, getFetchProfile());
+        List<Message> list = new ArrayList<>();
+        for(Message msg : messages)
+        {
+            if(term.match(msg))
+            {
+                list.add(msg);
+            }
+        }
+        return list.toArray(new Message[0]);
+    }
+}
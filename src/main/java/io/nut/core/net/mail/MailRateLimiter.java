@@ -0,0 +1,150 @@
+/*
+ *  MailRateLimiter.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import jakarta.mail.MessagingException;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.angus.mail.smtp.SMTPAddressFailedException;
+import org.eclipse.angus.mail.smtp.SMTPSendFailedException;
+
+/**
+ * Adaptive token bucket limiting the messages per second sent to one server.
+ * It can be shared by several {@link SMTP} instances, as {@link SmtpPool}
+ * does. When the server answers with a throttling reply the rate is halved
+ * (down to {@code minRate}) and the bucket emptied; every accepted message
+ * raises it again by a small step until it reaches {@code maxRate}.
+ *
+ * @author franci
+ */
+public class MailRateLimiter
+{
+    private static final double INCREASE_FACTOR = 0.01;
+
+    private final double maxRate;
+    private final double minRate;
+    private final double burst;
+
+    private double rate;
+    private double tokens;
+    private long lastRefill;
+
+    public MailRateLimiter(double maxRate, double minRate, int burst)
+    {
+        if(maxRate<=0 || minRate<=0 || minRate>maxRate || burst<1)
+        {
+            throw new IllegalArgumentException("invalid rate limit max="+maxRate+" min="+minRate+" burst="+burst);
+        }
+        this.maxRate = maxRate;
+        this.minRate = minRate;
+        this.burst = burst;
+        this.rate = maxRate;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+    public MailRateLimiter(double messagesPerSecond)
+    {
+        this(messagesPerSecond, Math.min(messagesPerSecond, 1.0/60), 1);
+    }
+
+    public static MailRateLimiter perMinute(int messagesPerMinute)
+    {
+        return new MailRateLimiter(messagesPerMinute/60.0);
+    }
+
+    private void refill(long now)
+    {
+        tokens = Math.min(burst, tokens + (now-lastRefill)*rate/TimeUnit.SECONDS.toNanos(1));
+        lastRefill = now;
+    }
+
+    /**
+     * Waits until a message can be sent and takes its token.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire() throws InterruptedException
+    {
+        while(true)
+        {
+            long waitNanos;
+            synchronized (this)
+            {
+                refill(System.nanoTime());
+                if(tokens>=1)
+                {
+                    tokens -= 1;
+                    return;
+                }
+                waitNanos = (long) ((1-tokens)*TimeUnit.SECONDS.toNanos(1)/rate);
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.max(1, waitNanos));
+        }
+    }
+
+    public synchronized void onSuccess()
+    {
+        rate = Math.min(maxRate, rate + maxRate*INCREASE_FACTOR);
+    }
+
+    public synchronized void onThrottle()
+    {
+        refill(System.nanoTime());
+        rate = Math.max(minRate, rate/2);
+        tokens = 0;
+    }
+
+    public synchronized double getRate()
+    {
+        return rate;
+    }
+
+    /**
+     * @param returnCode SMTP reply code
+     * @return true for the transient replies servers use to throttle clients
+     */
+    public static boolean isThrottle(int returnCode)
+    {
+        return returnCode==421 || returnCode==450 || returnCode==451 || returnCode==452;
+    }
+
+    /**
+     * Throttling replies to RCPT TO come as a {@link jakarta.mail.SendFailedException}
+     * with one {@link SMTPAddressFailedException} per recipient chained, so
+     * the whole chain is checked.
+     * @param error the send error
+     * @return true if the error or a chained one is a throttling reply
+     */
+    public static boolean isThrottle(MessagingException error)
+    {
+        Exception ex = error;
+        while(ex!=null)
+        {
+            int code = ex instanceof SMTPSendFailedException ? ((SMTPSendFailedException) ex).getReturnCode()
+                     : ex instanceof SMTPAddressFailedException ? ((SMTPAddressFailedException) ex).getReturnCode() : 0;
+            if(isThrottle(code))
+            {
+                return true;
+            }
+            ex = ex instanceof MessagingException ? ((MessagingException) ex).getNextException() : null;
+        }
+        return false;
+    }
+}
@@ -21,10 +21,13 @@
  */
 package io.nut.core.net.mail;
 
+import jakarta.mail.FetchProfile;
 import jakarta.mail.Message;
 import jakarta.mail.MessagingException;
 import java.io.Closeable;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.stream.Stream;
 
 /**
  *
@@ -37,6 +40,100 @@ public interface MailReader extends Closeable
     void connect() throws Exception;
     Message[] getMessages() throws MessagingException;
     Message[] getMessages(Date since) throws MessagingException;
+
+    default int getMessageCount() throws MessagingException
+    {
+        return getMessages().length;
+    }
+
+    /**
+     * @param start first sequence number, starting at 1
+     * @param end last sequence number, inclusive
+     * @return the messages in the range
+     * @throws MessagingException if the folder cannot be read
+     */
+    default Message[] getMessages(int start, int end) throws MessagingException
+    {
+        return Arrays.copyOfRange(getMessages(), start-1, end);
+    }
+
+    /**
+     * Drops the data cached in the messages, they are reloaded from the
+     * server if used again.
+     * @param messages messages of this reader already processed
+     * @throws MessagingException if the messages cannot be released
+     */
+    default void release(Message[] messages) throws MessagingException
+    {
+    }
+
+    /**
+     * Streams the folder in windows of messages, see {@link MailIterator}.
+     * The stream must be closed if it is not fully consumed.
+     * @param windowSize messages per window
+     * @param profile attributes loaded in one batch per window, null for none
+     * @return the messages in sequence order
+     * @throws MessagingException if the folder cannot be read
+     */
+    default Stream<Message> stream(int windowSize, FetchProfile profile) throws MessagingException
+    {
+        return MailIterator.bySequence(this, windowSize, profile).stream();
+    }
+
+    /**
+     * Loads in one batch the attributes listed in the profile for all the
+     * messages, instead of one request per message when they are read.
+     * @param messages messages of this reader
+     * @param profile attributes to load, see {@link MailUtils#newFetchProfile(boolean, boolean, boolean, boolean, String...)}
+     * @throws MessagingException if the fetch fails
+     */
+    default void fetch(Message[] messages, FetchProfile profile) throws MessagingException
+    {
+    }
+
+    default Message[] getMessages(FetchProfile profile) throws MessagingException
+    {
+        Message[] messages = getMessages();
+        fetch(messages, profile);
+        return messages;
+    }
+
+    /**
+     * Returns the messages matching all the conditions of the query. This
+     * implementation loads only the headers they need and evaluates them on
+     * the client.
+     * @param query the conditions
+     * @return the matching messages
+     * @throws MessagingException if the search fails
+     */
+    default Message[] search(MailQuery query) throws MessagingException
+    {
+        return query.filter(this, getMessages());
+    }
+
+    /**
+     * Returns all the messages sorted by several keys. This implementation
+     * loads the keys in one batch and sorts on the client, see
+     * {@link MailUtils#sort(Message[], boolean, MailSort...)}.
+     * @param descending true to reverse every key
+     * @param keys keys in order of precedence
+     * @return the sorted messages
+     * @throws MessagingException if the messages cannot be read
+     */
+    default Message[] getSortedMessages(boolean descending, MailSort... keys) throws MessagingException
+    {
+        return MailUtils.sort(getMessages(), descending, keys);
+    }
+
+    /**
+     * Pings the server so it does not drop the idle connection.
+     * @return true if the connection is alive
+     * @throws MessagingException if the ping fails
+     */
+    default boolean keepAlive() throws MessagingException
+    {
+        return isConnected();
+    }
     
     @Override
     void close();
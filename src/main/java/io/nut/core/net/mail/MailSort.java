@@ -0,0 +1,143 @@
+/*
+ *  MailSort.java
+ *
+ *  Copyright (C) 2025 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import jakarta.mail.Address;
+import jakarta.mail.FetchProfile;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.InternetAddress;
+import java.util.Date;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.eclipse.angus.mail.imap.SortTerm;
+
+/**
+ * Sort keys for {@link MailUtils#sort(Message[], boolean, MailSort...)} and
+ * {@link MailReader#getSortedMessages(boolean, MailSort...)}, each one maps to
+ * the IMAP SORT criterion of the same meaning (RFC 5256).
+ *
+ * @author franci
+ */
+public enum MailSort
+{
+    /** received date, the sent date if unknown */
+    RECEIVED(SortTerm.ARRIVAL),
+    /** sent date, the received date if unknown */
+    SENT(SortTerm.DATE),
+    SIZE(SortTerm.SIZE),
+    /** address of the first sender, ignoring case */
+    FROM(SortTerm.FROM),
+    /** subject without reply and forward prefixes, ignoring case */
+    SUBJECT(SortTerm.SUBJECT);
+
+    private static final Date NO_DATE = new Date(0);
+
+    final SortTerm term;
+
+    MailSort(SortTerm term)
+    {
+        this.term = term;
+    }
+
+    void addTo(FetchProfile profile)
+    {
+        profile.add(this==SIZE ? FetchProfile.Item.SIZE : FetchProfile.Item.ENVELOPE);
+    }
+
+    /**
+     * @return the key of the message, the lowest value if it cannot be read
+     */
+    Comparable<?> key(Message message)
+    {
+        try
+        {
+            return read(message);
+        }
+        catch (MessagingException ex)
+        {
+            Logger.getLogger(MailSort.class.getName()).log(Level.FINE, (String) null, ex);
+            return this==RECEIVED || this==SENT ? NO_DATE : this==SIZE ? (Comparable<?>) 0 : "";
+        }
+    }
+
+    private Comparable<?> read(Message message) throws MessagingException
+    {
+        switch (this)
+        {
+            case RECEIVED:
+                return date(message.getReceivedDate(), message.getSentDate());
+            case SENT:
+                return date(message.getSentDate(), message.getReceivedDate());
+            case SIZE:
+                return message.getSize();
+            case FROM:
+                Address[] from = message.getFrom();
+                if(from==null || from.length==0)
+                {
+                    return "";
+                }
+                String address = from[0] instanceof InternetAddress ? ((InternetAddress) from[0]).getAddress() : from[0].toString();
+                return address==null ? "" : address.toLowerCase(Locale.ROOT);
+            default:
+                return baseSubject(message.getSubject());
+        }
+    }
+
+    private static Date date(Date date, Date fallback)
+    {
+        return date!=null ? date : fallback!=null ? fallback : NO_DATE;
+    }
+
+    /**
+     * Simplified base subject of RFC 5256: leading "re:", "fw:" and "fwd:"
+     * and a trailing "(fwd)" are removed.
+     */
+    static String baseSubject(String subject)
+    {
+        if(subject==null)
+        {
+            return "";
+        }
+        String s = subject.trim().toLowerCase(Locale.ROOT);
+        boolean changed = true;
+        while(changed)
+        {
+            changed = false;
+            for(String prefix : new String[]{"re:", "fw:", "fwd:"})
+            {
+                if(s.startsWith(prefix))
+                {
+                    s = s.substring(prefix.length()).trim();
+                    changed = true;
+                }
+            }
+            if(s.endsWith("(fwd)"))
+            {
+                s = s.substring(0, s.length()-5).trim();
+                changed = true;
+            }
+        }
+        return s;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ *  MailTLS.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import java.security.GeneralSecurityException;
+import java.util.Properties;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * SSL context shared by {@link SMTP}, {@link IMAP} and {@link POP3}. Every
+ * connection made with the same instance uses the same
+ * {@link SSLSocketFactory} and client session cache, so reconnections and
+ * pooled connections to the same server can resume the TLS session instead
+ * of doing a full handshake.
+ *
+ * @author franci
+ */
+public class MailTLS
+{
+    public static final int DEFAULT_SESSION_CACHE_SIZE = 1024;
+    public static final int DEFAULT_SESSION_TIMEOUT_SECONDS = 24*60*60;
+
+    private static final String TLS = "TLS";
+
+    private static volatile MailTLS defaultTLS;
+
+    private final SSLContext context;
+    private final SSLSocketFactory socketFactory;
+    private volatile boolean checkServerIdentity = true;
+
+    public MailTLS(SSLContext context, int sessionCacheSize, int sessionTimeoutSeconds)
+    {
+        this.context = context;
+        SSLSessionContext sessions = context.getClientSessionContext();
+        if(sessions!=null)
+        {
+            sessions.setSessionCacheSize(sessionCacheSize);
+            sessions.setSessionTimeout(sessionTimeoutSeconds);
+        }
+        this.socketFactory = context.getSocketFactory();
+    }
+    public MailTLS(SSLContext context)
+    {
+        this(context, DEFAULT_SESSION_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT_SECONDS);
+    }
+    public MailTLS() throws GeneralSecurityException
+    {
+        this(newContext());
+    }
+
+    private static SSLContext newContext() throws GeneralSecurityException
+    {
+        SSLContext context = SSLContext.getInstance(TLS);
+        context.init(null, null, null);
+        return context;
+    }
+
+    /**
+     * @return the instance used by the mail clients that were not given one
+     * @throws GeneralSecurityException if the TLS context cannot be created
+     */
+    public static MailTLS getDefault() throws GeneralSecurityException
+    {
+        if(defaultTLS==null)
+        {
+            synchronized (MailTLS.class)
+            {
+                if(defaultTLS==null)
+                {
+                    defaultTLS = new MailTLS();
+                }
+            }
+        }
+        return defaultTLS;
+    }
+
+    public static void setDefault(MailTLS tls)
+    {
+        defaultTLS = tls;
+    }
+
+    /**
+     * @param checkServerIdentity false to accept certificates that do not match the server name
+     * @return this
+     */
+    public MailTLS setCheckServerIdentity(boolean checkServerIdentity)
+    {
+        this.checkServerIdentity = checkServerIdentity;
+        return this;
+    }
+
+    public SSLContext getContext()
+    {
+        return context;
+    }
+
+    public SSLSocketFactory getSocketFactory()
+    {
+        return socketFactory;
+    }
+
+    /**
+     * Sets the socket factory used for SSL and STARTTLS connections.
+     * @param props session properties
+     * @param protocol smtp, imap, pop3...
+     */
+    void apply(Properties props, String protocol)
+    {
+        props.put("mail."+protocol+".ssl.socketFactory", socketFactory);
+        props.put("mail."+protocol+".ssl.checkserveridentity", checkServerIdentity?"true":"false");
+    }
+
+    static void apply(MailTLS tls, Properties props, String protocol)
+    {
+        try
+        {
+            (tls!=null ? tls : getDefault()).apply(props, protocol);
+        }
+        catch (GeneralSecurityException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
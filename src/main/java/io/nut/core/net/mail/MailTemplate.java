@@ -0,0 +1,273 @@
+/*
+ *  MailTemplate.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mail-merge template for plain text mails. The subject and the body are
+ * compiled once into static and variable segments, placeholders are written
+ * as <code>${name}</code>. The static segments of the body are kept already
+ * encoded in UTF-8 and {@link #merge(Map, String, String, String, List)} only
+ * encodes the values, so {@link SMTP} can put the resulting bytes in the
+ * {@code MimeMessage} without re-encoding or scanning the whole text. Missing
+ * values are replaced by an empty string.
+ *
+ * @author franci
+ */
+public class MailTemplate
+{
+    static final String UTF_8 = "UTF-8";
+    static final String ENCODING_7BIT = "7bit";
+    static final String ENCODING_QUOTED_PRINTABLE = "quoted-printable";
+
+    private static final String OPEN = "${";
+    private static final String CLOSE = "}";
+    private static final int MAX_LINE = 998;
+
+    /**
+     * A mail produced by {@link MailTemplate}, the body is already encoded.
+     */
+    public static class Merged extends OutgoingMail
+    {
+        private static final long serialVersionUID = 1L;
+
+        final byte[] body;
+        final String transferEncoding;
+
+        Merged(String subject, byte[] body, String transferEncoding, String to, String cc, String bcc, List<MailAttachment> attachments)
+        {
+            super(subject, null, to, cc, bcc, attachments);
+            this.body = body;
+            this.transferEncoding = transferEncoding;
+        }
+
+        public String getText()
+        {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String getCharset()
+        {
+            return UTF_8;
+        }
+
+        @Override
+        public byte[] getEncodedBody()
+        {
+            return body;
+        }
+
+        @Override
+        public String getTransferEncoding()
+        {
+            return transferEncoding;
+        }
+    }
+
+    private final String[] subjectParts;
+    private final String[] subjectNames;
+    private final byte[][] bodyParts;
+    private final String[] bodyNames;
+    private final boolean bodySafe;
+    // bytes before the first and after the last line break of each body part, -1 after if it has none
+    private final int[] bodyHeads;
+    private final int[] bodyTails;
+    private final int bodySize;
+
+    public MailTemplate(String subject, String text)
+    {
+        List<String> parts = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        split(subject, parts, names);
+        this.subjectParts = parts.toArray(new String[0]);
+        this.subjectNames = names.toArray(new String[0]);
+
+        parts.clear();
+        names.clear();
+        split(text, parts, names);
+        this.bodyParts = new byte[parts.size()][];
+        this.bodyHeads = new int[bodyParts.length];
+        this.bodyTails = new int[bodyParts.length];
+        boolean safe = true;
+        int size = 0;
+        for(int i=0;i<bodyParts.length;i++)
+        {
+            byte[] part = parts.get(i).getBytes(StandardCharsets.UTF_8);
+            bodyParts[i] = part;
+            safe &= is7bit(part, 0)>=0;
+            size += part.length;
+            int first = indexOf(part, (byte) '\n');
+            int last = lastIndexOf(part, (byte) '\n');
+            bodyHeads[i] = first<0 ? part.length : first;
+            bodyTails[i] = last<0 ? -1 : part.length-last-1;
+        }
+        this.bodyNames = names.toArray(new String[0]);
+        this.bodySafe = safe;
+        this.bodySize = size;
+    }
+
+    private static void split(String template, List<String> parts, List<String> names)
+    {
+        int pos = 0;
+        int open;
+        while((open=template.indexOf(OPEN, pos))>=0)
+        {
+            int close = template.indexOf(CLOSE, open+OPEN.length());
+            if(close<0)
+            {
+                break;
+            }
+            parts.add(template.substring(pos, open));
+            names.add(template.substring(open+OPEN.length(), close));
+            pos = close+CLOSE.length();
+        }
+        parts.add(template.substring(pos));
+    }
+
+    /**
+     * @param data text to append to the current line
+     * @param line length of the current line
+     * @return the length of the last line after appending the data, -1 if it is not 7bit or a line is too long
+     */
+    private static int is7bit(byte[] data, int line)
+    {
+        for(byte b : data)
+        {
+            if(b<=0)
+            {
+                return -1;
+            }
+            line = (b=='\n') ? 0 : line+1;
+            if(line>MAX_LINE)
+            {
+                return -1;
+            }
+        }
+        return line;
+    }
+
+    private static int indexOf(byte[] data, byte value)
+    {
+        for(int i=0;i<data.length;i++)
+        {
+            if(data[i]==value)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(byte[] data, byte value)
+    {
+        for(int i=data.length-1;i>=0;i--)
+        {
+            if(data[i]==value)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Line length after a body part that is already known to be 7bit, only
+     * its first and last lines depend on the text before it.
+     */
+    private int appendPart(int i, int line)
+    {
+        if(line<0 || line+bodyHeads[i]>MAX_LINE)
+        {
+            return -1;
+        }
+        return bodyTails[i]<0 ? line+bodyHeads[i] : bodyTails[i];
+    }
+
+    private static String value(Map<String, ?> values, String name)
+    {
+        Object value = values.get(name);
+        return value==null ? "" : value.toString();
+    }
+
+    public String mergeSubject(Map<String, ?> values)
+    {
+        StringBuilder sb = new StringBuilder();
+        for(int i=0;i<subjectNames.length;i++)
+        {
+            sb.append(subjectParts[i]).append(value(values, subjectNames[i]));
+        }
+        return sb.append(subjectParts[subjectNames.length]).toString();
+    }
+
+    public byte[] mergeBody(Map<String, ?> values)
+    {
+        return mergeBody(values, null);
+    }
+
+    /**
+     * @param safe if not null, receives in its first item whether the body is 7bit, only the values are scanned
+     */
+    private byte[] mergeBody(Map<String, ?> values, boolean[] safe)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bodySize+bodyNames.length*32);
+        int line = bodySafe ? 0 : -1;
+        for(int i=0;i<bodyNames.length;i++)
+        {
+            out.write(bodyParts[i], 0, bodyParts[i].length);
+            byte[] data = value(values, bodyNames[i]).getBytes(StandardCharsets.UTF_8);
+            out.write(data, 0, data.length);
+            if(safe!=null)
+            {
+                line = appendPart(i, line);
+                line = line<0 ? -1 : is7bit(data, line);
+            }
+        }
+        byte[] last = bodyParts[bodyNames.length];
+        out.write(last, 0, last.length);
+        if(safe!=null)
+        {
+            safe[0] = appendPart(bodyNames.length, line)>=0;
+        }
+        return out.toByteArray();
+    }
+
+    public Merged merge(Map<String, ?> values, String to, String cc, String bcc, List<MailAttachment> attachments)
+    {
+        boolean[] safe = new boolean[1];
+        byte[] body = mergeBody(values, safe);
+        return new Merged(mergeSubject(values), body, safe[0] ? ENCODING_7BIT : ENCODING_QUOTED_PRINTABLE, to, cc, bcc, attachments);
+    }
+    public Merged merge(Map<String, ?> values, String to, String cc, String bcc)
+    {
+        return merge(values, to, cc, bcc, null);
+    }
+    public Merged merge(Map<String, ?> values, String to)
+    {
+        return merge(values, to, null, null);
+    }
+}
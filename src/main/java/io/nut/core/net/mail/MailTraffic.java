@@ -0,0 +1,655 @@
+/*
+ *  MailTraffic.java
+ *
+ *  Copyright (C) 2025 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import jakarta.mail.Provider;
+import jakarta.mail.Session;
+import jakarta.mail.URLName;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.channels.SocketChannel;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocketFactory;
+import org.eclipse.angus.mail.iap.ByteArray;
+import org.eclipse.angus.mail.iap.ProtocolException;
+import org.eclipse.angus.mail.iap.ResponseInputStream;
+import org.eclipse.angus.mail.imap.IMAPStore;
+import org.eclipse.angus.mail.imap.protocol.IMAPProtocol;
+import org.eclipse.angus.mail.util.MailLogger;
+
+/**
+ * Byte counters of the {@link IMAP} connections it is given to, see
+ * {@link IMAP#setTraffic(MailTraffic)}. The wire bytes are counted on the TCP
+ * socket, below TLS and COMPRESS=DEFLATE, and the response bytes once
+ * inflated, as the IMAP parser reads them, so their quotient is the
+ * compression ratio of the downloads (slightly lowered by the TLS framing).
+ *
+ * @author franci
+ */
+public class MailTraffic
+{
+    static final String PROPERTY = MailTraffic.class.getName();
+
+    private final AtomicLong wireIn = new AtomicLong();
+    private final AtomicLong wireOut = new AtomicLong();
+    private final AtomicLong responseBytes = new AtomicLong();
+    private volatile boolean compressed;
+
+    /**
+     * @return bytes received from the network
+     */
+    public long getWireIn()
+    {
+        return wireIn.get();
+    }
+
+    /**
+     * @return bytes sent to the network
+     */
+    public long getWireOut()
+    {
+        return wireOut.get();
+    }
+
+    /**
+     * @return bytes of the responses read, after decompression
+     */
+    public long getResponseBytes()
+    {
+        return responseBytes.get();
+    }
+
+    /**
+     * @return response bytes per byte received, 1 or less without compression
+     */
+    public double getCompressionRatio()
+    {
+        long in = wireIn.get();
+        return in==0 ? 1 : (double) responseBytes.get()/in;
+    }
+
+    /**
+     * @return true if the last connection negotiated COMPRESS=DEFLATE
+     */
+    public boolean isCompressed()
+    {
+        return compressed;
+    }
+
+    public void reset()
+    {
+        wireIn.set(0);
+        wireOut.set(0);
+        responseBytes.set(0);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "MailTraffic{" + "wireIn=" + wireIn + ", wireOut=" + wireOut + ", responseBytes=" + responseBytes + ", compressed=" + compressed + '}';
+    }
+
+    /**
+     * Sets the socket factories that count the traffic, the store must be
+     * created with {@link #provider(String)}.
+     * @param props session properties, with the SSL socket factory already set if SSL is used
+     * @param protocol imap
+     */
+    void apply(Properties props, String protocol)
+    {
+        props.put(PROPERTY, this);
+        props.put("mail."+protocol+".socketFactory", new CountingSocketFactory(this));
+        Object ssl = props.get("mail."+protocol+".ssl.socketFactory");
+        if(ssl instanceof SSLSocketFactory)
+        {
+            props.put("mail."+protocol+".ssl.socketFactory", new CountingSSLSocketFactory((SSLSocketFactory) ssl, this));
+        }
+    }
+
+    /**
+     * @param protocol imap
+     * @return the provider of {@link Store}, JavaMail only takes the class
+     * names of the registered providers from the session properties
+     */
+    static Provider provider(String protocol)
+    {
+        return new Provider(Provider.Type.STORE, protocol, Store.class.getName(), "io.nut", null);
+    }
+
+    /**
+     * IMAPStore whose protocol counts the response bytes, JavaMail creates
+     * it by reflection so it must be public.
+     */
+    public static class Store extends IMAPStore
+    {
+        public Store(Session session, URLName url)
+        {
+            super(session, url);
+        }
+
+        @Override
+        protected IMAPProtocol newIMAPProtocol(String host, int port) throws IOException, ProtocolException
+        {
+            MailTraffic traffic = (MailTraffic) session.getProperties().get(PROPERTY);
+            if(traffic==null)
+            {
+                return super.newIMAPProtocol(host, port);
+            }
+            traffic.compressed = false;
+            return new CountingProtocol(name, host, port, session.getProperties(), isSSL, logger);
+        }
+    }
+
+    /**
+     * The greeting is read by the super constructor, so the counters are
+     * taken from the properties instead of a field.
+     */
+    private static class CountingProtocol extends IMAPProtocol
+    {
+        private ResponseInputStream source;
+        private ResponseInputStream counting;
+
+        CountingProtocol(String name, String host, int port, Properties props, boolean isSSL, MailLogger logger) throws IOException, ProtocolException
+        {
+            super(name, host, port, props, isSSL, logger);
+        }
+
+        @Override
+        protected synchronized ResponseInputStream getInputStream()
+        {
+            // the stream is replaced when compression starts
+            ResponseInputStream current = super.getInputStream();
+            if(current!=source)
+            {
+                source = current;
+                counting = new CountingResponseInputStream(current, (MailTraffic) props.get(PROPERTY));
+            }
+            return counting;
+        }
+
+        @Override
+        public void compress() throws ProtocolException
+        {
+            super.compress();
+            ((MailTraffic) props.get(PROPERTY)).compressed = true;
+        }
+    }
+
+    private static class CountingResponseInputStream extends ResponseInputStream
+    {
+        private final ResponseInputStream in;
+        private final MailTraffic traffic;
+
+        CountingResponseInputStream(ResponseInputStream in, MailTraffic traffic)
+        {
+            super(new ByteArrayInputStream(new byte[0]));
+            this.in = in;
+            this.traffic = traffic;
+        }
+
+        @Override
+        public ByteArray readResponse() throws IOException
+        {
+            return readResponse(null);
+        }
+
+        @Override
+        public ByteArray readResponse(ByteArray ba) throws IOException
+        {
+            ByteArray response = in.readResponse(ba);
+            traffic.responseBytes.addAndGet(response.getCount());
+            return response;
+        }
+
+        @Override
+        public int available() throws IOException
+        {
+            return in.available();
+        }
+    }
+
+    private static class CountingSocketFactory extends SocketFactory
+    {
+        private final MailTraffic traffic;
+
+        CountingSocketFactory(MailTraffic traffic)
+        {
+            this.traffic = traffic;
+        }
+
+        @Override
+        public Socket createSocket()
+        {
+            return new CountingSocket(new Socket(), traffic);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException
+        {
+            return new CountingSocket(new Socket(host, port), traffic);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException
+        {
+            return new CountingSocket(new Socket(host, port, localHost, localPort), traffic);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException
+        {
+            return new CountingSocket(new Socket(host, port), traffic);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException
+        {
+            return new CountingSocket(new Socket(address, port, localAddress, localPort), traffic);
+        }
+    }
+
+    /**
+     * Layers TLS over a counting socket, JavaMail connects a plain socket and
+     * then calls {@link #createSocket(Socket, String, int, boolean)}.
+     */
+    private static class CountingSSLSocketFactory extends SSLSocketFactory
+    {
+        private final SSLSocketFactory factory;
+        private final MailTraffic traffic;
+
+        CountingSSLSocketFactory(SSLSocketFactory factory, MailTraffic traffic)
+        {
+            this.factory = factory;
+            this.traffic = traffic;
+        }
+
+        private Socket counting(Socket socket)
+        {
+            return socket instanceof CountingSocket ? socket : new CountingSocket(socket, traffic);
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException
+        {
+            return factory.createSocket(counting(socket), host, port, autoClose);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException
+        {
+            return factory.createSocket(counting(new Socket(host, port)), host, port, true);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException
+        {
+            return factory.createSocket(counting(new Socket(host, port, localHost, localPort)), host, port, true);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException
+        {
+            return factory.createSocket(counting(new Socket(host, port)), host.getHostName(), port, true);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException
+        {
+            return factory.createSocket(counting(new Socket(address, port, localAddress, localPort)), address.getHostName(), port, true);
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites()
+        {
+            return factory.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites()
+        {
+            return factory.getSupportedCipherSuites();
+        }
+    }
+
+    /**
+     * Socket delegating to another one that counts the bytes of its streams.
+     */
+    private static class CountingSocket extends Socket
+    {
+        private final Socket socket;
+        private final MailTraffic traffic;
+        private InputStream in;
+        private OutputStream out;
+
+        CountingSocket(Socket socket, MailTraffic traffic)
+        {
+            this.socket = socket;
+            this.traffic = traffic;
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException
+        {
+            if(in==null)
+            {
+                in = new FilterInputStream(socket.getInputStream())
+                {
+                    @Override
+                    public int read() throws IOException
+                    {
+                        int b = super.read();
+                        if(b>=0)
+                        {
+                            traffic.wireIn.incrementAndGet();
+                        }
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException
+                    {
+                        int n = super.read(b, off, len);
+                        if(n>0)
+                        {
+                            traffic.wireIn.addAndGet(n);
+                        }
+                        return n;
+                    }
+                };
+            }
+            return in;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException
+        {
+            if(out==null)
+            {
+                out = new FilterOutputStream(socket.getOutputStream())
+                {
+                    @Override
+                    public void write(int b) throws IOException
+                    {
+                        super.out.write(b);
+                        traffic.wireOut.incrementAndGet();
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException
+                    {
+                        super.out.write(b, off, len);
+                        traffic.wireOut.addAndGet(len);
+                    }
+                };
+            }
+            return out;
+        }
+
+        @Override
+        public void connect(SocketAddress endpoint, int timeout) throws IOException
+        {
+            socket.connect(endpoint, timeout);
+        }
+
+        @Override
+        public void connect(SocketAddress endpoint) throws IOException
+        {
+            socket.connect(endpoint);
+        }
+
+        @Override
+        public void bind(SocketAddress bindpoint) throws IOException
+        {
+            socket.bind(bindpoint);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            socket.close();
+        }
+
+        @Override
+        public void shutdownInput() throws IOException
+        {
+            socket.shutdownInput();
+        }
+
+        @Override
+        public void shutdownOutput() throws IOException
+        {
+            socket.shutdownOutput();
+        }
+
+        @Override
+        public boolean isConnected()
+        {
+            return socket.isConnected();
+        }
+
+        @Override
+        public boolean isBound()
+        {
+            return socket.isBound();
+        }
+
+        @Override
+        public boolean isClosed()
+        {
+            return socket.isClosed();
+        }
+
+        @Override
+        public boolean isInputShutdown()
+        {
+            return socket.isInputShutdown();
+        }
+
+        @Override
+        public boolean isOutputShutdown()
+        {
+            return socket.isOutputShutdown();
+        }
+
+        @Override
+        public InetAddress getInetAddress()
+        {
+            return socket.getInetAddress();
+        }
+
+        @Override
+        public InetAddress getLocalAddress()
+        {
+            return socket.getLocalAddress();
+        }
+
+        @Override
+        public int getPort()
+        {
+            return socket.getPort();
+        }
+
+        @Override
+        public int getLocalPort()
+        {
+            return socket.getLocalPort();
+        }
+
+        @Override
+        public SocketAddress getRemoteSocketAddress()
+        {
+            return socket.getRemoteSocketAddress();
+        }
+
+        @Override
+        public SocketAddress getLocalSocketAddress()
+        {
+            return socket.getLocalSocketAddress();
+        }
+
+        @Override
+        public void setSoTimeout(int timeout) throws SocketException
+        {
+            socket.setSoTimeout(timeout);
+        }
+
+        @Override
+        public int getSoTimeout() throws SocketException
+        {
+            return socket.getSoTimeout();
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) throws SocketException
+        {
+            socket.setTcpNoDelay(on);
+        }
+
+        @Override
+        public boolean getTcpNoDelay() throws SocketException
+        {
+            return socket.getTcpNoDelay();
+        }
+
+        @Override
+        public void setKeepAlive(boolean on) throws SocketException
+        {
+            socket.setKeepAlive(on);
+        }
+
+        @Override
+        public boolean getKeepAlive() throws SocketException
+        {
+            return socket.getKeepAlive();
+        }
+
+        @Override
+        public void setSoLinger(boolean on, int linger) throws SocketException
+        {
+            socket.setSoLinger(on, linger);
+        }
+
+        @Override
+        public int getSoLinger() throws SocketException
+        {
+            return socket.getSoLinger();
+        }
+
+        @Override
+        public void setSendBufferSize(int size) throws SocketException
+        {
+            socket.setSendBufferSize(size);
+        }
+
+        @Override
+        public int getSendBufferSize() throws SocketException
+        {
+            return socket.getSendBufferSize();
+        }
+
+        @Override
+        public void setReceiveBufferSize(int size) throws SocketException
+        {
+            socket.setReceiveBufferSize(size);
+        }
+
+        @Override
+        public int getReceiveBufferSize() throws SocketException
+        {
+            return socket.getReceiveBufferSize();
+        }
+
+        @Override
+        public void setTrafficClass(int tc) throws SocketException
+        {
+            socket.setTrafficClass(tc);
+        }
+
+        @Override
+        public int getTrafficClass() throws SocketException
+        {
+            return socket.getTrafficClass();
+        }
+
+        @Override
+        public void setReuseAddress(boolean on) throws SocketException
+        {
+            socket.setReuseAddress(on);
+        }
+
+        @Override
+        public boolean getReuseAddress() throws SocketException
+        {
+            return socket.getReuseAddress();
+        }
+
+        @Override
+        public void setOOBInline(boolean on) throws SocketException
+        {
+            socket.setOOBInline(on);
+        }
+
+        @Override
+        public boolean getOOBInline() throws SocketException
+        {
+            return socket.getOOBInline();
+        }
+
+        @Override
+        public void sendUrgentData(int data) throws IOException
+        {
+            socket.sendUrgentData(data);
+        }
+
+        @Override
+        public void setPerformancePreferences(int connectionTime, int latency, int bandwidth)
+        {
+            socket.setPerformancePreferences(connectionTime, latency, bandwidth);
+        }
+
+        /**
+         * The channel bypasses the counting streams, the bytes moved through
+         * it are not counted.
+         */
+        @Override
+        public SocketChannel getChannel()
+        {
+            return socket.getChannel();
+        }
+
+        @Override
+        public String toString()
+        {
+            return socket.toString();
+        }
+    }
+}
@@ -21,11 +21,18 @@
  */
 package io.nut.core.net.mail;
 
+import jakarta.mail.FetchProfile;
+import jakarta.mail.Folder;
 import jakarta.mail.Message;
 import jakarta.mail.MessagingException;
+import jakarta.mail.UIDFolder;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
-import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  *
@@ -33,19 +40,138 @@ import java.util.Date;
  */
 public class MailUtils
 {
+    /**
+     * Builds the profile used to load message attributes in one batch with
+     * {@link MailReader#fetch(Message[], FetchProfile)}.
+     * @param envelope from, to, subject, dates and the other envelope headers
+     * @param flags the message flags
+     * @param uid the UID of each message
+     * @param size the size of each message
+     * @param headers other headers to load
+     * @return the profile
+     */
+    public static FetchProfile newFetchProfile(boolean envelope, boolean flags, boolean uid, boolean size, String... headers)
+    {
+        FetchProfile profile = new FetchProfile();
+        if(envelope)
+        {
+            profile.add(FetchProfile.Item.ENVELOPE);
+        }
+        if(flags)
+        {
+            profile.add(FetchProfile.Item.FLAGS);
+        }
+        if(uid)
+        {
+            profile.add(UIDFolder.FetchProfileItem.UID);
+        }
+        if(size)
+        {
+            profile.add(FetchProfile.Item.SIZE);
+        }
+        for(String header : headers)
+        {
+            profile.add(header);
+        }
+        return profile;
+    }
+
+    /**
+     * Sorts messages by their received date, see {@link #sort(Message[], boolean, MailSort...)}.
+     * @param items the messages, sorted in place
+     * @return items
+     */
     public static Message[] sortByReceivedDate(Message[] items)
     {
-        Arrays.sort(items, Comparator.comparing(m -> 
+        return sort(items, false, MailSort.RECEIVED);
+    }
+
+    // the keys of a column come from the same MailSort, so they compare with each other
+    @SuppressWarnings("unchecked")
+    private static Comparable<Object> comparable(Comparable<?> key)
+    {
+        return (Comparable<Object>) key;
+    }
+
+    /**
+     * Sorts messages by several keys. The keys are loaded for all of them
+     * with one fetch per folder and read once per message before sorting, so
+     * the comparisons never go to the server. Messages with equal keys keep
+     * their order. To let an IMAP server sort a whole folder use
+     * {@link MailReader#getSortedMessages(boolean, MailSort...)}.
+     * @param items the messages, sorted in place
+     * @param descending true to reverse every key
+     * @param keys keys in order of precedence
+     * @return items
+     */
+    public static Message[] sort(Message[] items, boolean descending, MailSort... keys)
+    {
+        FetchProfile profile = new FetchProfile();
+        for(MailSort key : keys)
+        {
+            key.addTo(profile);
+        }
+        prefetch(items, profile);
+
+        @SuppressWarnings("unchecked")
+        final Comparable<Object>[][] values = (Comparable<Object>[][]) new Comparable<?>[items.length][keys.length];
+        Integer[] order = new Integer[items.length];
+        for(int i=0;i<items.length;i++)
         {
-            try 
+            order[i] = i;
+            for(int j=0;j<keys.length;j++)
             {
-                return m.getSentDate();
-            } 
-            catch (MessagingException e) 
+                values[i][j] = comparable(keys[j].key(items[i]));
+            }
+        }
+        final int sign = descending ? -1 : 1;
+        Arrays.sort(order, (a, b) ->
+        {
+            for(int j=0;j<keys.length;j++)
             {
-                return new Date(0);
+                int cmp = values[a][j].compareTo(values[b][j]);
+                if(cmp!=0)
+                {
+                    return sign*cmp;
+                }
             }
-        }));
+            return 0;
+        });
+        Message[] sorted = new Message[items.length];
+        for(int i=0;i<order.length;i++)
+        {
+            sorted[i] = items[order[i]];
+        }
+        System.arraycopy(sorted, 0, items, 0, sorted.length);
         return items;
     }
+
+    /**
+     * Loads the attributes in one batch per folder, messages without an open
+     * folder are skipped.
+     */
+    static void prefetch(Message[] items, FetchProfile profile)
+    {
+        Map<Folder, List<Message>> byFolder = new LinkedHashMap<>();
+        for(Message item : items)
+        {
+            Folder folder = item.getFolder();
+            if(folder!=null && folder.isOpen())
+            {
+                byFolder.computeIfAbsent(folder, k -> new ArrayList<>()).add(item);
+            }
+        }
+        for(Map.Entry<Folder, List<Message>> entry : byFolder.entrySet())
+        {
+            try
+            {
+                entry.getKey().fetch(entry.getValue().toArray(new Message[0]), profile);
+            }
+            catch (MessagingException ex)
+            {
+                // the keys are read one by one then
+                Logger.getLogger(MailUtils.class.getName()).log(Level.FINE, (String) null, ex);
+            }
+        }
+    }
 }
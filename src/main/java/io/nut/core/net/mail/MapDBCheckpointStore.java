@@ -0,0 +1,75 @@
+/*
+ *  MapDBCheckpointStore.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import java.io.File;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.HTreeMap;
+import org.mapdb.Serializer;
+
+/**
+ * {@link CheckpointStore} backed by a MapDB file, every save is committed in
+ * its own transaction.
+ *
+ * @author franci
+ */
+public class MapDBCheckpointStore implements CheckpointStore
+{
+    private static final String CHECKPOINTS = "checkpoints";
+
+    private final DB db;
+    private final HTreeMap<String, long[]> checkpoints;
+
+    public MapDBCheckpointStore(File file)
+    {
+        this.db = DBMaker.fileDB(file).fileMmapEnableIfSupported().transactionEnable().make();
+        this.checkpoints = db.hashMap(CHECKPOINTS, Serializer.STRING, Serializer.LONG_ARRAY).createOrOpen();
+    }
+
+    @Override
+    public ImapCheckpoint load(String key)
+    {
+        long[] value = checkpoints.get(key);
+        if(value==null)
+        {
+            return ImapCheckpoint.NONE;
+        }
+        return new ImapCheckpoint(value[0], value[1], value.length>2 ? value[2] : 0);
+    }
+
+    @Override
+    public synchronized void save(String key, ImapCheckpoint checkpoint)
+    {
+        checkpoints.put(key, new long[]{checkpoint.uidValidity, checkpoint.lastUID, checkpoint.highestModSeq});
+        db.commit();
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        if(!db.isClosed())
+        {
+            db.close();
+        }
+    }
+}
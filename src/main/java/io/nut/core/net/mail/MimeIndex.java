@@ -0,0 +1,158 @@
+/*
+ *  MimeIndex.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import jakarta.mail.Part;
+import jakarta.mail.internet.ParameterList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import org.eclipse.angus.mail.imap.protocol.BODYSTRUCTURE;
+
+/**
+ * MIME structure of one message built from its BODYSTRUCTURE, without
+ * downloading any body, see {@link IMAP#indexStructure(int, int)}. It lists
+ * the leaf parts with their IMAP section, so the ones worth downloading can
+ * be fetched with {@link IMAP#fetchPart(long, String, long, long, java.nio.channels.WritableByteChannel)}.
+ *
+ * @author franci
+ */
+public class MimeIndex
+{
+    public static class Entry
+    {
+        public final String section;
+        public final String contentType;
+        /** one of the {@code IMAP.TYPE_*} constants, 0 for other types */
+        public final int type;
+        public final String encoding;
+        /** size in bytes as stored on the server, still encoded */
+        public final int size;
+        public final String fileName;
+        public final boolean attachment;
+
+        Entry(String section, String contentType, int type, String encoding, int size, String fileName, boolean attachment)
+        {
+            this.section = section;
+            this.contentType = contentType;
+            this.type = type;
+            this.encoding = encoding;
+            this.size = size;
+            this.fileName = fileName;
+            this.attachment = attachment;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Entry{" + "section=" + section + ", contentType=" + contentType + ", size=" + size + ", fileName=" + fileName + ", attachment=" + attachment + '}';
+        }
+    }
+
+    public final int messageNumber;
+    public final long uid;
+    public final List<Entry> entries;
+    /** bit {@code 1<<type} set for each {@code IMAP.TYPE_*} found in the parts */
+    public final int types;
+    public final int attachmentCount;
+    public final long attachmentBytes;
+    public final long size;
+
+    MimeIndex(int messageNumber, long uid, List<Entry> entries)
+    {
+        this.messageNumber = messageNumber;
+        this.uid = uid;
+        this.entries = Collections.unmodifiableList(entries);
+        int typeBits = 0;
+        int count = 0;
+        long attached = 0;
+        long total = 0;
+        for(Entry item : entries)
+        {
+            typeBits |= 1<<item.type;
+            total += item.size;
+            if(item.attachment)
+            {
+                count++;
+                attached += item.size;
+            }
+        }
+        this.types = typeBits;
+        this.attachmentCount = count;
+        this.attachmentBytes = attached;
+        this.size = total;
+    }
+
+    /**
+     * @param type one of the {@code IMAP.TYPE_*} constants
+     * @return true if any part is of that type
+     */
+    public boolean hasType(int type)
+    {
+        return (types & (1<<type))!=0;
+    }
+
+    public boolean hasAttachments()
+    {
+        return attachmentCount>0;
+    }
+
+    static MimeIndex of(int messageNumber, long uid, BODYSTRUCTURE bs)
+    {
+        List<Entry> entries = new ArrayList<>();
+        collect(bs, "", entries);
+        return new MimeIndex(messageNumber, uid, entries);
+    }
+
+    private static void collect(BODYSTRUCTURE bs, String section, List<Entry> entries)
+    {
+        if(bs.isMulti())
+        {
+            for(int i=0;i<bs.bodies.length;i++)
+            {
+                collect(bs.bodies[i], section.isEmpty() ? Integer.toString(i+1) : section+"."+(i+1), entries);
+            }
+            return;
+        }
+        String type = bs.type==null ? "text" : bs.type.toLowerCase(Locale.ROOT);
+        String subtype = bs.subtype==null ? "plain" : bs.subtype.toLowerCase(Locale.ROOT);
+        String fileName = get(bs.dParams, "filename");
+        if(fileName==null)
+        {
+            fileName = get(bs.cParams, "name");
+        }
+        boolean attachment = bs.isNested() || Part.ATTACHMENT.equalsIgnoreCase(bs.disposition) || (bs.disposition==null && fileName!=null);
+        entries.add(new Entry(section.isEmpty() ? "1" : section, type+"/"+subtype, IMAP.typeOf(type), bs.encoding, Math.max(0, bs.size), fileName, attachment));
+    }
+
+    private static String get(ParameterList params, String name)
+    {
+        return params==null ? null : params.get(name);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "MimeIndex{" + "uid=" + uid + ", types=" + types + ", attachmentCount=" + attachmentCount + ", size=" + size + '}';
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ *  OutgoingMail.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable description of a plain text mail to be sent by {@link SMTP}.
+ *
+ * @author franci
+ */
+public class OutgoingMail implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    public final String subject;
+    public final String text;
+    public final String to;
+    public final String cc;
+    public final String bcc;
+    public final List<MailAttachment> attachments;
+
+    public OutgoingMail(String subject, String text, String to, String cc, String bcc, List<MailAttachment> attachments)
+    {
+        this.subject = subject;
+        this.text = text;
+        this.to = to;
+        this.cc = cc;
+        this.bcc = bcc;
+        this.attachments = attachments==null || attachments.isEmpty() ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(attachments));
+    }
+    public OutgoingMail(String subject, String text, String to, String cc, String bcc, MailAttachment... attachments)
+    {
+        this(subject, text, to, cc, bcc, Arrays.asList(attachments));
+    }
+    public OutgoingMail(String subject, String text, String to, String cc, String bcc)
+    {
+        this(subject, text, to, cc, bcc, Collections.emptyList());
+    }
+    public OutgoingMail(String subject, String text, String to, String cc)
+    {
+        this(subject, text, to, cc, null);
+    }
+    public OutgoingMail(String subject, String text, String to)
+    {
+        this(subject, text, to, null, null);
+    }
+
+    /**
+     * @return charset of the subject and of {@link #getEncodedBody()}, null for the default of the session
+     */
+    public String getCharset()
+    {
+        return null;
+    }
+
+    /**
+     * Lets subclasses hand {@link SMTP} a body already encoded in
+     * {@link #getCharset()}, so it is not encoded and scanned again.
+     * @return the encoded text, null to let {@link SMTP} encode {@link #text}
+     */
+    public byte[] getEncodedBody()
+    {
+        return null;
+    }
+
+    /**
+     * @return Content-Transfer-Encoding of {@link #getEncodedBody()}, null to let JavaMail choose it
+     */
+    public String getTransferEncoding()
+    {
+        return null;
+    }
+
+    public boolean hasAttachments()
+    {
+        return attachments!=null && !attachments.isEmpty();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "OutgoingMail{" + "subject=" + subject + ", to=" + to + ", cc=" + cc + ", bcc=" + bcc + '}';
+    }
+}
@@ -22,17 +22,24 @@
 package io.nut.core.net.mail;
 
 import io.nut.base.security.SecureChars;
+import jakarta.mail.FetchProfile;
 import jakarta.mail.Folder;
 import jakarta.mail.Message;
 import jakarta.mail.MessagingException;
 import jakarta.mail.Session;
 import jakarta.mail.Store;
+import jakarta.mail.UIDFolder;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.eclipse.angus.mail.pop3.POP3Folder;
+import org.eclipse.angus.mail.pop3.POP3Message;
+import org.eclipse.angus.mail.pop3.POP3Store;
 
 /**
  *
@@ -45,6 +52,7 @@ public class POP3 implements MailReader
     private static final String MAIL_POP3_PORT = "mail.pop3.port";
     private static final String MAIL_POP3_AUTH = "mail.pop3.auth";
     private static final String MAIL_POP3_SSL_ENABLE = "mail.pop3.ssl.enable";
+    private static final String MAIL_POP3_CLASS = "mail.pop3.class";
 
     public static final int SAFE_PORT_995 = 995;
     
@@ -60,6 +68,7 @@ public class POP3 implements MailReader
     
     private volatile Store store;
     private volatile Folder inbox;
+    private volatile MailTLS tls;
 
     public POP3(String host, int port, boolean auth, boolean sslEnable, boolean readonly, String username, SecureChars password)
     {
@@ -76,6 +85,16 @@ public class POP3 implements MailReader
         this(host, port, auth, sslEnable, readonly, username, new SecureChars(password));
     }
     
+    /**
+     * @param tls SSL context shared with other mail connections, null to use {@link MailTLS#getDefault()}
+     * @return this
+     */
+    public POP3 setTLS(MailTLS tls)
+    {
+        this.tls = tls;
+        return this;
+    }
+
     @Override
     public void connect() throws Exception
     {
@@ -86,6 +105,11 @@ public class POP3 implements MailReader
             props.put(MAIL_POP3_PORT, Integer.toString(port));
             props.put(MAIL_POP3_AUTH, auth);
             props.put(MAIL_POP3_SSL_ENABLE, sslEnable);
+            props.put(MAIL_POP3_CLASS, POP3Store.class.getName());
+            if(sslEnable)
+            {
+                MailTLS.apply(tls, props, POP3);
+            }
 
             Session session = Session.getInstance(props);
             store = session.getStore(POP3);
@@ -106,6 +130,59 @@ public class POP3 implements MailReader
         }
     }
     
+    @Override
+    public void fetch(Message[] messages, FetchProfile profile) throws MessagingException
+    {
+        synchronized (lock)
+        {
+            inbox.fetch(messages, profile);
+        }
+    }
+
+    @Override
+    public Message[] getMessages(FetchProfile profile) throws MessagingException
+    {
+        synchronized (lock)
+        {
+            Message[] messages = inbox.getMessages();
+            inbox.fetch(messages, profile);
+            return messages;
+        }
+    }
+
+    @Override
+    public int getMessageCount() throws MessagingException
+    {
+        synchronized (lock)
+        {
+            return inbox.getMessageCount();
+        }
+    }
+
+    @Override
+    public Message[] getMessages(int start, int end) throws MessagingException
+    {
+        synchronized (lock)
+        {
+            return inbox.getMessages(start, end);
+        }
+    }
+
+    @Override
+    public void release(Message[] messages)
+    {
+        synchronized (lock)
+        {
+            for(Message msg : messages)
+            {
+                if(msg instanceof POP3Message)
+                {
+                    ((POP3Message) msg).invalidate(true);
+                }
+            }
+        }
+    }
+
     @Override
     public Message[] getMessages() throws MessagingException
     {
@@ -115,26 +192,105 @@ public class POP3 implements MailReader
         }
     }
     
+    /**
+     * POP3 messages have no received date, the sent date is used instead and
+     * only the headers are downloaded to compare it. To poll a mailbox use
+     * {@link #getNewMessages(UidlStore, FetchProfile)}, which downloads
+     * nothing but the UIDL list.
+     */
     @Override
     public Message[] getMessages(Date after) throws MessagingException
+    {
+        if(after==null)
+        {
+            return getMessages();
+        }
+        return search(new MailQuery().receivedAfter(after));
+    }
+
+    /**
+     * @param message message of this mailbox
+     * @return the unique id given by the server, null if it does not support
+     * UIDL; a UIDL command is sent for this message alone unless the ids were
+     * already loaded for all of them, as {@link #getNewMessages(UidlStore, FetchProfile)}
+     * or a fetch of {@link UIDFolder.FetchProfileItem#UID} do
+     * @throws MessagingException if the UIDL command fails
+     */
+    public String getUIDL(Message message) throws MessagingException
     {
         synchronized (lock)
         {
-            ArrayList<Message> list = new ArrayList<>();
-            Message[] m = inbox.getMessages();
-            if(after==null)
-            {
-                return m;
-            }
-            for(Message item : m)
+            return ((POP3Folder) inbox).getUID(message);
+        }
+    }
+
+    /**
+     * Returns the messages whose UIDL is not in {@code seen}. Only the UIDL
+     * list is downloaded to find them; the UIDLs of the messages no longer
+     * in the mailbox are removed from {@code seen}. The returned messages
+     * are not added, call {@link #markSeen(UidlStore, Message...)} once they
+     * have been processed.
+     * @param seen UIDLs of the messages already retrieved
+     * @param profile items to fetch for the new messages only, null for none
+     * @return the new messages in mailbox order
+     * @throws MessagingException if the UIDL command fails or the server does not support it
+     * @throws IOException if {@code seen} cannot be written
+     */
+    public Message[] getNewMessages(UidlStore seen, FetchProfile profile) throws MessagingException, IOException
+    {
+        synchronized (lock)
+        {
+            Message[] messages = inbox.getMessages();
+            FetchProfile uidl = new FetchProfile();
+            uidl.add(UIDFolder.FetchProfileItem.UID);
+            inbox.fetch(messages, uidl);
+
+            long[] current = new long[messages.length];
+            List<Message> fresh = new ArrayList<>();
+            for(int i=0;i<messages.length;i++)
             {
-                if(item.getReceivedDate().compareTo(after)>0)
+                String uid = ((POP3Folder) inbox).getUID(messages[i]);
+                if(uid==null)
+                {
+                    // without UIDs the seen set would be emptied and everything retrieved again
+                    throw new MessagingException("the server does not support UIDL");
+                }
+                current[i] = UidlStore.hash(uid);
+                if(!seen.contains(current[i]))
                 {
-                    list.add(item);
+                    fresh.add(messages[i]);
                 }
             }
-            return list.toArray(new Message[0]);
+            Arrays.sort(current);
+            seen.retain(current);
+
+            Message[] result = fresh.toArray(new Message[0]);
+            if(profile!=null && result.length>0)
+            {
+                inbox.fetch(result, profile);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @param seen UIDLs of the messages already retrieved
+     * @param messages messages processed
+     * @return the number of messages that were not in {@code seen}
+     * @throws MessagingException if the UIDL command fails
+     * @throws IOException if {@code seen} cannot be written
+     */
+    public int markSeen(UidlStore seen, Message... messages) throws MessagingException, IOException
+    {
+        String[] uidls = new String[messages.length];
+        synchronized (lock)
+        {
+            for(int i=0;i<messages.length;i++)
+            {
+                uidls[i] = ((POP3Folder) inbox).getUID(messages[i]);
+            }
         }
+        return seen.add(uidls);
     }
  
     @Override
@@ -144,8 +300,14 @@ public class POP3 implements MailReader
         {
             try
             {
-                inbox.close(false);
-                store.close();
+                if(inbox!=null && inbox.isOpen())
+                {
+                    inbox.close(false);
+                }
+                if(store!=null)
+                {
+                    store.close();
+                }
             }
             catch (MessagingException ex)
             {
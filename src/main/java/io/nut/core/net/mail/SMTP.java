@@ -22,30 +22,48 @@
 package io.nut.core.net.mail;
 
 import io.nut.base.security.SecureChars;
+import jakarta.activation.DataHandler;
+import jakarta.mail.Address;
 import jakarta.mail.Message;
 import jakarta.mail.MessagingException;
+import jakarta.mail.Part;
 import jakarta.mail.NoSuchProviderException;
 import jakarta.mail.Session;
 import jakarta.mail.Transport;
 import jakarta.mail.internet.AddressException;
 import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeBodyPart;
 import jakarta.mail.internet.MimeMessage;
-import java.io.Closeable;
+import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.internet.MimePart;
+import jakarta.mail.util.ByteArrayDataSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.eclipse.angus.mail.smtp.SMTPTransport;
 
 /**
  *
  * @author franci
  */
-public class SMTP implements Closeable
+public class SMTP implements MailSender
 {
     private static final String MAIL_SMTP_AUTH              = "mail.smtp.auth";
     private static final String MAIL_SMTP_STARTTLS_ENABLE   = "mail.smtp.starttls.enable";
     private static final String MAIL_SMTP_HOST              = "mail.smtp.host";
     private static final String MAIL_SMTP_PORT              = "mail.smtp.port";
+    private static final String MAIL_SMTP_CLASS             = "mail.smtp.class";
+
+    private static final String UTF_8 = "UTF-8";
+    private static final String CONTENT_TYPE = "Content-Type";
+    private static final String TEXT_PLAIN_CHARSET = "text/plain; charset=";
+    private static final String CONTENT_TRANSFER_ENCODING = "Content-Transfer-Encoding";
+    private static final String BASE64 = "base64";
 
     public static final int SAFE_PORT_587 = 587;
     
@@ -84,6 +102,45 @@ public class SMTP implements Closeable
         this(host, port, auth, starttlsEnable, username, new SecureChars(password), from, null);
     }
     
+    public static final int MAX_THROTTLE_RETRIES = 5;
+
+    private volatile MailRateLimiter rateLimiter;
+    private volatile int maxRecipients;
+
+    /**
+     * @param rateLimiter limiter applied to every message sent, it can be shared with other SMTP instances
+     * @return this SMTP
+     */
+    public SMTP setRateLimiter(MailRateLimiter rateLimiter)
+    {
+        this.rateLimiter = rateLimiter;
+        return this;
+    }
+
+    /**
+     * Messages with more recipients are sent in several transactions of at
+     * most {@code maxRecipients} RCPT commands each.
+     * @param maxRecipients the limit, 0 for no limit
+     * @return this SMTP
+     */
+    public SMTP setMaxRecipients(int maxRecipients)
+    {
+        this.maxRecipients = maxRecipients;
+        return this;
+    }
+
+    private volatile MailTLS tls;
+
+    /**
+     * @param tls SSL context shared with other mail connections, null to use {@link MailTLS#getDefault()}
+     * @return this
+     */
+    public SMTP setTLS(MailTLS tls)
+    {
+        this.tls = tls;
+        return this;
+    }
+
     private volatile Session session;
     private volatile Transport transport;
     private volatile long lastUsed = 0;
@@ -97,6 +154,11 @@ public class SMTP implements Closeable
             props.put(MAIL_SMTP_STARTTLS_ENABLE, starttlsEnable?"true":"false");
             props.put(MAIL_SMTP_HOST, host);
             props.put(MAIL_SMTP_PORT, Integer.toString(port));
+            props.put(MAIL_SMTP_CLASS, SMTPTransport.class.getName());
+            if(starttlsEnable)
+            {
+                MailTLS.apply(tls, props, "smtp");
+            }
 
             session = Session.getInstance(props);
             transport = session.getTransport("smtp");
@@ -107,15 +169,22 @@ public class SMTP implements Closeable
         }
     }
 
+    /**
+     * Connects if the connection is closed, or reopens it if it has been idle
+     * for more than {@code idleTimeoutMillis}.
+     * @param idleTimeoutMillis maximum idle time, 0 to keep open connections whatever their idle time
+     * @return this
+     * @throws MessagingException if it cannot connect
+     */
     public SMTP reconnect(long idleTimeoutMillis) throws MessagingException
     {
         synchronized (lock)
         {
             long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
             long now = System.nanoTime();
-            if (transport != null && transport.isConnected() && (now - lastUsed) > idleTimeoutNanos)
+            if (idleTimeoutMillis > 0 && transport != null && transport.isConnected() && (now - lastUsed) > idleTimeoutNanos)
             {
-                close(); // reconectamos fresca
+                closeTransport(); // reconectamos fresca
             }
             if (transport == null || !transport.isConnected())
             {
@@ -125,6 +194,42 @@ public class SMTP implements Closeable
         }
     }    
 
+    /**
+     * Sends a NOOP so the server does not drop the idle connection and marks
+     * it as used, so {@link #reconnect(long)} keeps it.
+     * @return true if the connection is alive
+     */
+    public boolean keepAlive()
+    {
+        synchronized (lock)
+        {
+            if(ping())
+            {
+                lastUsed = System.nanoTime();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Sends a NOOP without marking the connection as used, so an idle pooled
+     * connection can still be evicted.
+     * @return true if the connection is alive
+     */
+    boolean ping()
+    {
+        synchronized (lock)
+        {
+            return transport!=null && transport.isConnected();
+        }
+    }
+
+    long idleNanos()
+    {
+        return System.nanoTime() - lastUsed;
+    }
+
     public boolean isConnected()
     {
         synchronized (lock)
@@ -133,47 +238,212 @@ public class SMTP implements Closeable
         }
     }
     
+    private void closeTransport()
+    {
+        try
+        {
+            if(transport!=null)
+            {
+                transport.close();
+            }
+        }
+        catch (MessagingException ex)
+        {
+            Logger.getLogger(SMTP.class.getName()).log(Level.SEVERE, (String) null, ex);
+        }
+    }
+
+    /**
+     * Closes the connection, keeping the queue of {@link #sendAsync(OutgoingMail)}.
+     */
+    void disconnect()
+    {
+        synchronized (lock)
+        {
+            closeTransport();
+        }
+    }
+
+    /**
+     * Closes the connection and the queue created by
+     * {@link #sendAsync(OutgoingMail)}, waiting for the mails already queued.
+     * A queue given through {@link #setSendQueue(SendQueue)} is left open.
+     */
     @Override
     public void close()
     {
-        synchronized (lock)
+        SendQueue queue = ownSendQueue;
+        if(queue!=null)
+        {
+            ownSendQueue = null;
+            queue.close();
+        }
+        disconnect();
+    }
+    
+    private volatile InternetAddress fromAddress;
+    private volatile InternetAddress[] replyToAddress;
+
+    private Message buildMessage(OutgoingMail mail) throws AddressException, MessagingException
+    {
+        if(fromAddress==null)
+        {
+            fromAddress = new InternetAddress(from);
+            replyToAddress = (replyTo!=null && !replyTo.isEmpty()) ? InternetAddress.parse(replyTo) : null;
+        }
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(fromAddress);
+        if(replyToAddress!=null)
+        {
+            message.setReplyTo(replyToAddress);
+        }
+        message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(mail.to));
+        if (mail.cc != null && !mail.cc.isEmpty())
+        {
+            message.setRecipients(Message.RecipientType.CC, InternetAddress.parse(mail.cc));
+        }
+        if (mail.bcc != null && !mail.bcc.isEmpty())
+        {
+            message.setRecipients(Message.RecipientType.BCC, InternetAddress.parse(mail.bcc));
+        }
+        message.setSubject(mail.subject, mail.getCharset());
+        if(mail.hasAttachments())
+        {
+            MimeMultipart multipart = new MimeMultipart();
+            MimeBodyPart textPart = new MimeBodyPart();
+            setBody(textPart, mail);
+            multipart.addBodyPart(textPart);
+            for(MailAttachment attachment : mail.attachments)
+            {
+                MimeBodyPart part = new MimeBodyPart();
+                part.setDataHandler(new DataHandler(attachment));
+                part.setFileName(attachment.getName());
+                part.setDisposition(Part.ATTACHMENT);
+                // an explicit encoding avoids reading the whole attachment to guess it
+                part.setHeader(CONTENT_TRANSFER_ENCODING, BASE64);
+                multipart.addBodyPart(part);
+            }
+            message.setContent(multipart);
+        }
+        else
         {
+            setBody(message, mail);
+        }
+        return message;
+    }
+
+    /**
+     * @param message the message
+     * @param reconnect true to reconnect once if the server drops the connection,
+     * only the recipients not yet accepted are sent again
+     * @throws MessagingException if the message is rejected or the connection fails
+     */
+    private void transmit(Message message, boolean reconnect) throws MessagingException
+    {
+        Address[] recipients = message.getAllRecipients();
+        if(recipients==null)
+        {
+            recipients = new Address[0];
+        }
+        int chunk = maxRecipients<=0 || recipients.length<=maxRecipients ? recipients.length : maxRecipients;
+        int i = 0;
+        do
+        {
+            Address[] part = chunk==recipients.length ? recipients : Arrays.copyOfRange(recipients, i, Math.min(recipients.length, i+chunk));
             try
             {
-                transport.close();
+                transmit(message, part);
             }
-            catch (MessagingException ex)
+            catch(MessagingException | IllegalStateException ex)
             {
-                Logger.getLogger(SMTP.class.getName()).log(Level.SEVERE, (String) null, ex);
+                if(!reconnect || transport.isConnected())
+                {
+                    throw ex;
+                }
+                reconnect = false;
+                connect();
+                transmit(message, part);
             }
+            i += chunk;
         }
+        while(i<recipients.length);
     }
-    
-    public void send(String subject, String text, String to, String cc, String bcc) throws AddressException, MessagingException
+
+    private void transmit(Message message, Address[] recipients) throws MessagingException
     {
-        synchronized (lock)
+        MailRateLimiter limiter = rateLimiter;
+        for(int attempt=0;;attempt++)
         {
-            Message message = new MimeMessage(session);
-            message.setFrom(new InternetAddress(from));
-            if(replyTo!=null && !replyTo.isEmpty())
+            if(limiter!=null)
+            {
+                try
+                {
+                    limiter.acquire();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new MessagingException("interrupted while waiting for the rate limiter", ex);
+                }
+            }
+            try
             {
-                message.setReplyTo(InternetAddress.parse(replyTo));
+                transport.sendMessage(message, recipients);
+                if(limiter!=null)
+                {
+                    limiter.onSuccess();
+                }
+                return;
             }
-            message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(to));
-            if (cc != null && !cc.isEmpty())
+            catch (MessagingException ex)
             {
-                message.setRecipients(Message.RecipientType.CC, InternetAddress.parse(cc));
+                if(limiter==null || attempt>=MAX_THROTTLE_RETRIES || !MailRateLimiter.isThrottle(ex))
+                {
+                    throw ex;
+                }
+                limiter.onThrottle();
+                if(!transport.isConnected())
+                {
+                    connect();
+                }
             }
-            if (bcc != null && !bcc.isEmpty())
+        }
+    }
+
+    private static void setBody(MimePart part, OutgoingMail mail) throws MessagingException
+    {
+        byte[] body = mail.getEncodedBody();
+        if(body!=null)
+        {
+            String contentType = TEXT_PLAIN_CHARSET+(mail.getCharset()!=null ? mail.getCharset() : UTF_8);
+            part.setDataHandler(new DataHandler(new ByteArrayDataSource(body, contentType)));
+            part.setHeader(CONTENT_TYPE, contentType);
+            if(mail.getTransferEncoding()!=null)
             {
-                message.setRecipients(Message.RecipientType.BCC, InternetAddress.parse(bcc));
+                part.setHeader(CONTENT_TRANSFER_ENCODING, mail.getTransferEncoding());
             }
-            message.setSubject(subject);
-            message.setText(text);
-            transport.sendMessage(message, message.getAllRecipients());
+        }
+        else
+        {
+            part.setText(mail.text);
+        }
+    }
+
+    @Override
+    public void send(OutgoingMail mail) throws AddressException, MessagingException
+    {
+        synchronized (lock)
+        {
+            Message message = buildMessage(mail);
+            transmit(message, false);
             lastUsed = System.nanoTime();
         }
     }
+
+    public void send(String subject, String text, String to, String cc, String bcc) throws AddressException, MessagingException
+    {
+        send(new OutgoingMail(subject, text, to, cc, bcc));
+    }
     public void send(String subject, String text, String to, String cc) throws AddressException, MessagingException
     {
         send(subject, text, to, cc, null);
@@ -182,5 +452,93 @@ public class SMTP implements Closeable
     {
         send(subject, text, to, null, null);
     }
-    
+
+    private volatile SendQueue sendQueue;
+    private volatile SendQueue ownSendQueue;
+
+    public SMTP setSendQueue(SendQueue sendQueue)
+    {
+        this.sendQueue = sendQueue;
+        return this;
+    }
+
+    private SendQueue getSendQueue()
+    {
+        synchronized (lock)
+        {
+            if(sendQueue==null)
+            {
+                sendQueue = ownSendQueue = new SendQueue(SendQueue.newFixedExecutor(1), SendQueue.DEFAULT_CAPACITY, SendQueue.DEFAULT_OFFER_TIMEOUT_MILLIS);
+            }
+            return sendQueue;
+        }
+    }
+
+    /**
+     * Queues the mail and returns without waiting for the server. Messages
+     * sent through the same SMTP are delivered one at a time, use
+     * {@link SmtpPool#sendAsync(OutgoingMail)} to send them concurrently.
+     * @param mail the mail to send
+     * @return a future completed once the server accepts the message
+     */
+    public CompletableFuture<Void> sendAsync(OutgoingMail mail)
+    {
+        return getSendQueue().submit(() ->
+        {
+            send(mail);
+            return null;
+        });
+    }
+    public CompletableFuture<Void> sendAsync(String subject, String text, String to, String cc, String bcc)
+    {
+        return sendAsync(new OutgoingMail(subject, text, to, cc, bcc));
+    }
+    public CompletableFuture<Void> sendAsync(String subject, String text, String to)
+    {
+        return sendAsync(new OutgoingMail(subject, text, to));
+    }
+
+    /**
+     * Sends every mail over the current connection, reconnecting once per
+     * mail if the server drops it; with {@link #setMaxRecipients(int)} only
+     * the recipient chunks not yet accepted are sent again. Failures do not
+     * abort the batch, they are reported in the returned list, one result per
+     * mail and in order; unchecked exceptions are reported wrapped in a
+     * {@link MessagingException}.
+     * @param mails the mails to send
+     * @return the result of each mail
+     */
+    @Override
+    public List<SendResult> sendBatch(Iterable<OutgoingMail> mails)
+    {
+        List<SendResult> results = new ArrayList<>();
+        synchronized (lock)
+        {
+            for(OutgoingMail mail : mails)
+            {
+                MessagingException error = null;
+                try
+                {
+                    Message message = buildMessage(mail);
+                    if(transport==null)
+                    {
+                        connect();
+                    }
+                    transmit(message, true);
+                    lastUsed = System.nanoTime();
+                }
+                catch(MessagingException ex)
+                {
+                    error = ex;
+                }
+                catch(RuntimeException ex)
+                {
+                    // e.g. a malformed mail or a closed transport, the rest of the batch goes on
+                    error = new MessagingException(String.valueOf(ex), ex);
+                }
+                results.add(new SendResult(mail, error));
+            }
+        }
+        return results;
+    }
 }
@@ -0,0 +1,150 @@
+/*
+ *  SendQueue.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import java.io.Closeable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded submission queue used by the asynchronous send methods. At most
+ * {@code capacity} tasks can be queued or running; when it is full
+ * {@link #submit(Callable)} blocks the caller up to {@code offerTimeoutMillis}
+ * and then fails the returned future with a {@link RejectedExecutionException}.
+ *
+ * @author franci
+ */
+public class SendQueue implements Closeable
+{
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final long DEFAULT_OFFER_TIMEOUT_MILLIS = 30_000;
+
+    private final ExecutorService executor;
+    private final Semaphore slots;
+    private final long offerTimeoutMillis;
+
+    public SendQueue(ExecutorService executor, int capacity, long offerTimeoutMillis)
+    {
+        this.executor = executor;
+        this.slots = new Semaphore(capacity);
+        this.offerTimeoutMillis = offerTimeoutMillis;
+    }
+    public SendQueue(int threads, int capacity)
+    {
+        this(newExecutor(threads), capacity, DEFAULT_OFFER_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Creates a virtual thread per task executor when running on Java 21 or
+     * later, otherwise a fixed pool of daemon threads.
+     * @param threads number of threads used when virtual threads are not available
+     * @return the executor
+     */
+    public static ExecutorService newExecutor(int threads)
+    {
+        try
+        {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException | RuntimeException ex)
+        {
+            return newFixedExecutor(threads);
+        }
+    }
+
+    public static ExecutorService newFixedExecutor(int threads)
+    {
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r ->
+        {
+            Thread t = new Thread(r, "SendQueue-"+count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public <T> CompletableFuture<T> submit(Callable<T> task)
+    {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try
+        {
+            if(!slots.tryAcquire(offerTimeoutMillis, TimeUnit.MILLISECONDS))
+            {
+                future.completeExceptionally(new RejectedExecutionException("send queue is full"));
+                return future;
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(ex);
+            return future;
+        }
+        try
+        {
+            executor.execute(() ->
+            {
+                try
+                {
+                    future.complete(task.call());
+                }
+                catch (Throwable ex)
+                {
+                    future.completeExceptionally(ex);
+                }
+                finally
+                {
+                    slots.release();
+                }
+            });
+        }
+        catch (RejectedExecutionException ex)
+        {
+            slots.release();
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    @Override
+    public void close()
+    {
+        executor.shutdown();
+        try
+        {
+            executor.awaitTermination(offerTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ex)
+        {
+            Logger.getLogger(SendQueue.class.getName()).log(Level.SEVERE, (String) null, ex);
+            Thread.currentThread().interrupt();
+        }
+    }
+}
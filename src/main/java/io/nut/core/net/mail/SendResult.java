@@ -0,0 +1,65 @@
+/*
+ *  SendResult.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import jakarta.mail.MessagingException;
+
+/**
+ * Outcome of sending one {@link OutgoingMail} inside a batch.
+ *
+ * @author franci
+ */
+public class SendResult
+{
+    public final OutgoingMail mail;
+    public final MessagingException error;
+
+    public SendResult(OutgoingMail mail, MessagingException error)
+    {
+        this.mail = mail;
+        this.error = error;
+    }
+
+    public boolean isSent()
+    {
+        return error==null;
+    }
+
+    public static int countSent(Iterable<SendResult> results)
+    {
+        int count = 0;
+        for(SendResult item : results)
+        {
+            if(item.isSent())
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SendResult{" + "mail=" + mail + ", error=" + error + '}';
+    }
+}
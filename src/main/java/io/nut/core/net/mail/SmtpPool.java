@@ -0,0 +1,438 @@
+/*
+ *  SmtpPool.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import io.nut.base.security.SecureChars;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.AddressException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of authenticated {@link SMTP} connections shared by concurrent callers.
+ * Each pooled {@link SMTP} keeps its own transport, so up to {@code maxSize}
+ * messages can be in flight at the same time. Idle connections are reopened
+ * by {@link SMTP#reconnect(long)} only if they were dropped, and the ones above
+ * {@code minSize} are closed once they exceed {@code idleTimeoutMillis}, the
+ * rest are kept warm by {@link #keepAlive()}.
+ *
+ * @author franci
+ */
+public class SmtpPool implements MailSender
+{
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 30_000;
+
+    private final String host;
+    private final int port;
+    private final boolean auth;
+    private final boolean starttlsEnable;
+    private final String username;
+    private final SecureChars password;
+    private final String from;
+    private final String replyTo;
+
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeoutMillis;
+
+    private final Semaphore permits;
+    private final LinkedBlockingDeque<SMTP> idle = new LinkedBlockingDeque<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    private volatile long maxWaitMillis = DEFAULT_MAX_WAIT_MILLIS;
+    private volatile SendQueue sendQueue;
+    private volatile SendQueue ownSendQueue;
+    private volatile MailRateLimiter rateLimiter;
+    private volatile int maxRecipients;
+    private volatile MailTLS tls;
+    private volatile ScheduledExecutorService evictor;
+    private volatile boolean closed;
+
+    public SmtpPool(String host, int port, boolean auth, boolean starttlsEnable, String username, SecureChars password, String from, String replyTo, int minSize, int maxSize, long idleTimeoutMillis)
+    {
+        if(minSize<0 || maxSize<1 || minSize>maxSize)
+        {
+            throw new IllegalArgumentException("invalid pool size min="+minSize+" max="+maxSize);
+        }
+        this.host = host;
+        this.port = port;
+        this.auth = auth;
+        this.starttlsEnable = starttlsEnable;
+        this.username = username;
+        this.password = password;
+        this.from = from;
+        this.replyTo = replyTo;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.permits = new Semaphore(maxSize, true);
+    }
+    public SmtpPool(String host, int port, boolean auth, boolean starttlsEnable, String username, char[] password, String from, String replyTo, int minSize, int maxSize, long idleTimeoutMillis)
+    {
+        this(host, port, auth, starttlsEnable, username, new SecureChars(password), from, replyTo, minSize, maxSize, idleTimeoutMillis);
+    }
+    public SmtpPool(String host, int port, boolean auth, boolean starttlsEnable, String username, SecureChars password, String from, int minSize, int maxSize, long idleTimeoutMillis)
+    {
+        this(host, port, auth, starttlsEnable, username, password, from, null, minSize, maxSize, idleTimeoutMillis);
+    }
+
+    public SmtpPool setMaxWaitMillis(long maxWaitMillis)
+    {
+        this.maxWaitMillis = maxWaitMillis;
+        return this;
+    }
+
+    /**
+     * Sets the queue used by {@link #sendAsync(OutgoingMail)}, by default a
+     * queue of {@link SendQueue#DEFAULT_CAPACITY} tasks running on
+     * {@code maxSize} threads, so queued mails wait for a free thread instead
+     * of timing out in {@link #borrow()}. The given queue is not closed with
+     * the pool.
+     * @param sendQueue the queue
+     * @return this pool
+     */
+    public SmtpPool setSendQueue(SendQueue sendQueue)
+    {
+        this.sendQueue = sendQueue;
+        return this;
+    }
+
+    private synchronized SendQueue getSendQueue()
+    {
+        if(sendQueue==null)
+        {
+            sendQueue = ownSendQueue = new SendQueue(SendQueue.newFixedExecutor(maxSize), SendQueue.DEFAULT_CAPACITY, SendQueue.DEFAULT_OFFER_TIMEOUT_MILLIS);
+        }
+        return sendQueue;
+    }
+
+    /**
+     * @param rateLimiter limiter shared by every pooled connection
+     * @return this pool
+     */
+    public SmtpPool setRateLimiter(MailRateLimiter rateLimiter)
+    {
+        this.rateLimiter = rateLimiter;
+        return this;
+    }
+
+    /**
+     * @param maxRecipients maximum recipients per SMTP transaction, see {@link SMTP#setMaxRecipients(int)}
+     * @return this pool
+     */
+    public SmtpPool setMaxRecipients(int maxRecipients)
+    {
+        this.maxRecipients = maxRecipients;
+        return this;
+    }
+
+    /**
+     * @param tls SSL context shared by every pooled connection so they can resume TLS sessions
+     * @return this pool
+     */
+    public SmtpPool setTLS(MailTLS tls)
+    {
+        this.tls = tls;
+        return this;
+    }
+
+    SMTP newSmtp()
+    {
+        return new SMTP(host, port, auth, starttlsEnable, username, password, from, replyTo).setRateLimiter(rateLimiter).setMaxRecipients(maxRecipients).setTLS(tls);
+    }
+
+    /**
+     * Opens {@code minSize} connections and starts the background evictor.
+     * @return this pool
+     * @throws MessagingException if a connection cannot be opened
+     */
+    public SmtpPool start() throws MessagingException
+    {
+        while(size.get()<minSize)
+        {
+            SMTP smtp = newSmtp().connect();
+            size.incrementAndGet();
+            idle.offerFirst(smtp);
+        }
+        if(evictor==null && idleTimeoutMillis>0)
+        {
+            evictor = Executors.newSingleThreadScheduledExecutor(r ->
+            {
+                Thread t = new Thread(r, "SmtpPool-evictor");
+                t.setDaemon(true);
+                return t;
+            });
+            long period = Math.max(1, idleTimeoutMillis/2);
+            evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    /**
+     * Takes a connected {@link SMTP} from the pool, opening a new one if none
+     * is idle and the pool has not reached {@code maxSize}. The caller must
+     * give it back with {@link #release(SMTP)} or {@link #invalidate(SMTP)}.
+     * @param timeoutMillis maximum time to wait for a free connection
+     * @return a connected SMTP
+     * @throws MessagingException if no connection was available in time or it cannot connect
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public SMTP borrow(long timeoutMillis) throws MessagingException, InterruptedException
+    {
+        if(closed)
+        {
+            throw new IllegalStateException("SmtpPool is closed");
+        }
+        if(!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS))
+        {
+            throw new MessagingException("no SMTP connection available after "+timeoutMillis+"ms");
+        }
+        try
+        {
+            SMTP smtp = idle.pollFirst();
+            if(smtp==null)
+            {
+                smtp = newSmtp();
+                size.incrementAndGet();
+            }
+            try
+            {
+                // only evictIdle expires connections, so the minSize ones kept warm by keepAlive are reused as they are
+                return smtp.reconnect(0);
+            }
+            catch(MessagingException ex)
+            {
+                size.decrementAndGet();
+                smtp.close();
+                throw ex;
+            }
+        }
+        catch(MessagingException | RuntimeException ex)
+        {
+            permits.release();
+            throw ex;
+        }
+    }
+    public SMTP borrow() throws MessagingException, InterruptedException
+    {
+        return borrow(maxWaitMillis);
+    }
+
+    /**
+     * Gives back a healthy connection obtained with {@link #borrow(long)}.
+     * @param smtp the connection
+     */
+    public void release(SMTP smtp)
+    {
+        if(closed)
+        {
+            size.decrementAndGet();
+            smtp.close();
+        }
+        else
+        {
+            idle.offerFirst(smtp);
+        }
+        permits.release();
+    }
+
+    /**
+     * Discards a broken connection obtained with {@link #borrow(long)}.
+     * @param smtp the connection
+     */
+    public void invalidate(SMTP smtp)
+    {
+        size.decrementAndGet();
+        smtp.close();
+        permits.release();
+    }
+
+    @Override
+    public void send(OutgoingMail mail) throws AddressException, MessagingException, InterruptedException
+    {
+        SMTP smtp = borrow();
+        try
+        {
+            smtp.send(mail);
+        }
+        catch(MessagingException | RuntimeException ex)
+        {
+            if(smtp.isConnected())
+            {
+                release(smtp);
+            }
+            else
+            {
+                invalidate(smtp);
+            }
+            throw ex;
+        }
+        release(smtp);
+    }
+    public void send(String subject, String text, String to, String cc, String bcc) throws AddressException, MessagingException, InterruptedException
+    {
+        send(new OutgoingMail(subject, text, to, cc, bcc));
+    }
+    public void send(String subject, String text, String to, String cc) throws AddressException, MessagingException, InterruptedException
+    {
+        send(subject, text, to, cc, null);
+    }
+    public void send(String subject, String text, String to) throws AddressException, MessagingException, InterruptedException
+    {
+        send(subject, text, to, null, null);
+    }
+
+    /**
+     * Queues the mail to be sent by the first free pooled connection.
+     * @param mail the mail to send
+     * @return a future completed once the server accepts the message
+     */
+    public CompletableFuture<Void> sendAsync(OutgoingMail mail)
+    {
+        return getSendQueue().submit(() ->
+        {
+            send(mail);
+            return null;
+        });
+    }
+    public CompletableFuture<Void> sendAsync(String subject, String text, String to, String cc, String bcc)
+    {
+        return sendAsync(new OutgoingMail(subject, text, to, cc, bcc));
+    }
+    public CompletableFuture<Void> sendAsync(String subject, String text, String to)
+    {
+        return sendAsync(new OutgoingMail(subject, text, to));
+    }
+
+    /**
+     * Sends the whole batch over one pooled connection.
+     * @param mails the mails to send
+     * @return the result of each mail, see {@link SMTP#sendBatch(Iterable)}
+     * @throws MessagingException if no connection could be obtained
+     * @throws InterruptedException if interrupted while waiting for a connection
+     */
+    @Override
+    public List<SendResult> sendBatch(Iterable<OutgoingMail> mails) throws MessagingException, InterruptedException
+    {
+        SMTP smtp = borrow();
+        try
+        {
+            return smtp.sendBatch(mails);
+        }
+        finally
+        {
+            if(smtp.isConnected())
+            {
+                release(smtp);
+            }
+            else
+            {
+                invalidate(smtp);
+            }
+        }
+    }
+
+    /**
+     * Closes idle connections above {@code minSize} that have not been used
+     * for more than {@code idleTimeoutMillis}.
+     * @return the number of connections closed
+     */
+    public int evictIdle()
+    {
+        long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        int count = 0;
+        for(Iterator<SMTP> it = idle.descendingIterator(); it.hasNext(); )
+        {
+            SMTP smtp = it.next();
+            if(size.get()<=minSize)
+            {
+                break;
+            }
+            if(smtp.idleNanos()>idleTimeoutNanos && idle.removeLastOccurrence(smtp))
+            {
+                size.decrementAndGet();
+                smtp.close();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Pings every idle connection so the server does not drop them. Pings do
+     * not count as use, connections above {@code minSize} are still evicted
+     * once idle for {@code idleTimeoutMillis}.
+     * @return the number of idle connections found dead and closed
+     */
+    public int keepAlive()
+    {
+        int count = 0;
+        for(SMTP smtp : idle.toArray(new SMTP[0]))
+        {
+            if(!smtp.ping() && idle.remove(smtp))
+            {
+                size.decrementAndGet();
+                smtp.close();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getSize()
+    {
+        return size.get();
+    }
+
+    public int getIdleCount()
+    {
+        return idle.size();
+    }
+
+    @Override
+    public void close()
+    {
+        // a queue given by setSendQueue may be shared, its owner closes it
+        if(ownSendQueue!=null)
+        {
+            ownSendQueue.close();
+        }
+        closed = true;
+        if(evictor!=null)
+        {
+            evictor.shutdownNow();
+        }
+        SMTP smtp;
+        while((smtp=idle.pollFirst())!=null)
+        {
+            size.decrementAndGet();
+            smtp.close();
+        }
+    }
+}
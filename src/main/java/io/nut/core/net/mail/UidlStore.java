@@ -0,0 +1,280 @@
+/*
+ *  UidlStore.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Set of the POP3 UIDLs already retrieved from one mailbox, used by
+ * {@link POP3#getNewMessages(UidlStore, jakarta.mail.FetchProfile)}. Each
+ * UIDL is kept as a 64 bit hash in a sorted array, 8 bytes per message
+ * whatever the UIDL length, and looked up by binary search.
+ * <p>
+ * New UIDLs are appended to the file, so marking messages one at a time
+ * costs one small write each. The file is compacted, rewritten through a
+ * temporary file and an atomic rename as {@link FileCheckpointStore} does,
+ * when UIDLs are removed or the appended ones outgrow the compacted part. A
+ * null path keeps the set in memory only.
+ *
+ * @author franci
+ */
+public class UidlStore implements Closeable
+{
+    private static final int MAGIC = 0x55494431;
+
+    private final Object lock = new Object();
+
+    private final Path path;
+    private final Path temp;
+
+    private long[] hashes = new long[0];
+    // hashes appended to the file after the compacted part
+    private int appended;
+
+    public UidlStore(Path path) throws IOException
+    {
+        this.path = path;
+        this.temp = path!=null ? path.resolveSibling(path.getFileName()+".tmp") : null;
+        if(path!=null && Files.exists(path))
+        {
+            try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path))))
+            {
+                if(in.readInt()!=MAGIC)
+                {
+                    throw new IOException("invalid uidl file "+path);
+                }
+                int count = in.readInt();
+                long[] values = new long[Math.max(16, count)];
+                for(int i=0;i<count;i++)
+                {
+                    values[i] = in.readLong();
+                }
+                try
+                {
+                    for(;;)
+                    {
+                        long h = in.readLong();
+                        if(appended+count==values.length)
+                        {
+                            values = Arrays.copyOf(values, values.length*2);
+                        }
+                        values[count+appended++] = h;
+                    }
+                }
+                catch (EOFException ex)
+                {
+                    // end of the appended hashes, a partial one left by a crash is dropped
+                }
+                update(values, count+appended, false);
+            }
+        }
+    }
+
+    static long hash(String uidl)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(uidl.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for(int i=0;i<8;i++)
+            {
+                h = (h<<8) | (digest[i] & 0xFF);
+            }
+            return h;
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public int size()
+    {
+        synchronized (lock)
+        {
+            return hashes.length;
+        }
+    }
+
+    public boolean contains(String uidl)
+    {
+        return contains(hash(uidl));
+    }
+
+    boolean contains(long hash)
+    {
+        synchronized (lock)
+        {
+            return Arrays.binarySearch(hashes, hash)>=0;
+        }
+    }
+
+    /**
+     * @param uidls UIDLs retrieved, null items are ignored
+     * @return the number of UIDLs that were not in the set
+     * @throws IOException if the file cannot be written
+     */
+    public int add(String... uidls) throws IOException
+    {
+        synchronized (lock)
+        {
+            long[] added = new long[uidls.length];
+            int count = 0;
+            for(String uidl : uidls)
+            {
+                if(uidl!=null)
+                {
+                    long h = hash(uidl);
+                    if(Arrays.binarySearch(hashes, h)<0)
+                    {
+                        added[count++] = h;
+                    }
+                }
+            }
+            if(count==0)
+            {
+                return 0;
+            }
+            int before = hashes.length;
+            long[] values = Arrays.copyOf(hashes, before+count);
+            System.arraycopy(added, 0, values, before, count);
+            int n = update(values, values.length, false);
+            append(added, count);
+            return n-before;
+        }
+    }
+
+    /**
+     * Removes the UIDLs of the messages deleted from the server, so the set
+     * never grows beyond the size of the mailbox.
+     * @param current sorted hashes of the UIDLs currently in the mailbox
+     * @return the number of UIDLs removed
+     * @throws IOException if the file cannot be written
+     */
+    int retain(long[] current) throws IOException
+    {
+        synchronized (lock)
+        {
+            long[] values = new long[hashes.length];
+            int count = 0;
+            for(long h : hashes)
+            {
+                if(Arrays.binarySearch(current, h)>=0)
+                {
+                    values[count++] = h;
+                }
+            }
+            int removed = hashes.length-count;
+            if(removed>0 || appended>hashes.length/2)
+            {
+                update(values, count, true);
+            }
+            return removed;
+        }
+    }
+
+    private int update(long[] values, int count, boolean write) throws IOException
+    {
+        Arrays.sort(values, 0, count);
+        int n = 0;
+        for(int i=0;i<count;i++)
+        {
+            if(n==0 || values[n-1]!=values[i])
+            {
+                values[n++] = values[i];
+            }
+        }
+        hashes = Arrays.copyOf(values, n);
+        if(write)
+        {
+            write();
+        }
+        return n;
+    }
+
+    private void append(long[] added, int count) throws IOException
+    {
+        if(path==null)
+        {
+            return;
+        }
+        if(!Files.exists(path))
+        {
+            write();
+            return;
+        }
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path, StandardOpenOption.APPEND))))
+        {
+            for(int i=0;i<count;i++)
+            {
+                out.writeLong(added[i]);
+            }
+        }
+        appended += count;
+    }
+
+    private void write() throws IOException
+    {
+        if(path==null)
+        {
+            return;
+        }
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp))))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(hashes.length);
+            for(long h : hashes)
+            {
+                out.writeLong(h);
+            }
+        }
+        try
+        {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException ex)
+        {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        appended = 0;
+    }
+
+    @Override
+    public void close()
+    {
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *  CheckpointStoreTest.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author franci
+ */
+public class CheckpointStoreTest
+{
+    @TempDir
+    Path dir;
+
+    private static void check(CheckpointStore store) throws IOException
+    {
+        assertEquals(ImapCheckpoint.NONE, store.load("bob@localhost/INBOX"));
+        store.save("bob@localhost/INBOX", new ImapCheckpoint(7, 42));
+        store.save("alice@localhost/INBOX", new ImapCheckpoint(3, 1, 99));
+        store.save("bob@localhost/INBOX", new ImapCheckpoint(7, 43));
+    }
+
+    @Test
+    void testFileStore() throws IOException
+    {
+        Path file = dir.resolve("checkpoints.properties");
+        try(CheckpointStore store = new FileCheckpointStore(file))
+        {
+            check(store);
+        }
+        try(CheckpointStore store = new FileCheckpointStore(file))
+        {
+            assertEquals(new ImapCheckpoint(7, 43), store.load("bob@localhost/INBOX"));
+            assertEquals(new ImapCheckpoint(3, 1, 99), store.load("alice@localhost/INBOX"));
+        }
+        // written before the MODSEQ was kept
+        Files.write(file, "bob@localhost/INBOX=7\\:43\n".getBytes());
+        try(CheckpointStore store = new FileCheckpointStore(file))
+        {
+            assertEquals(new ImapCheckpoint(7, 43), store.load("bob@localhost/INBOX"));
+        }
+    }
+
+    @Test
+    void testMapDBStore() throws IOException
+    {
+        Path file = dir.resolve("checkpoints.db");
+        try(CheckpointStore store = new MapDBCheckpointStore(file.toFile()))
+        {
+            check(store);
+        }
+        try(CheckpointStore store = new MapDBCheckpointStore(file.toFile()))
+        {
+            assertEquals(new ImapCheckpoint(7, 43), store.load("bob@localhost/INBOX"));
+            assertEquals(new ImapCheckpoint(3, 1, 99), store.load("alice@localhost/INBOX"));
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ *  ImapIdleServiceTest.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import com.icegreen.greenmail.configuration.GreenMailConfiguration;
+import com.icegreen.greenmail.junit5.GreenMailExtension;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import io.nut.base.security.SecureChars;
+import static io.nut.core.net.mail.SMTPTest.ALICE;
+import static io.nut.core.net.mail.SMTPTest.ALICE_LOCALHOST;
+import static io.nut.core.net.mail.SMTPTest.ALICE_PASS;
+import static io.nut.core.net.mail.SMTPTest.BOB;
+import static io.nut.core.net.mail.SMTPTest.BOB_LOCALHOST;
+import static io.nut.core.net.mail.SMTPTest.BOB_PASS;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author franci
+ */
+public class ImapIdleServiceTest
+{
+    @RegisterExtension
+    static GreenMailExtension greenMail = new GreenMailExtension(ServerSetupTest.SMTP_IMAP)
+            .withConfiguration(GreenMailConfiguration.aConfig()
+            .withUser(ALICE_LOCALHOST, ALICE, ALICE_PASS)
+            .withUser(BOB_LOCALHOST, BOB, BOB_PASS));
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testIdle() throws Exception
+    {
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        IMAP imap = new IMAP(greenMail.getImap().getBindTo(), greenMail.getImap().getPort(), false, false, false, BOB, new SecureChars(BOB_PASS.toCharArray()));
+        IMAP.ImapListener listener = (message, uidValidity, uid) ->
+        {
+            try
+            {
+                received.add(message.getSubject());
+            }
+            catch (MessagingException ex)
+            {
+                received.add(ex.toString());
+            }
+        };
+        try( SMTP smtp = new SMTP(greenMail.getSmtp().getBindTo(), greenMail.getSmtp().getPort(), false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray()), ALICE_LOCALHOST).connect();
+             CheckpointStore store = new FileCheckpointStore(dir.resolve("checkpoints.properties"));
+             ImapIdleService service = new ImapIdleService(imap, listener, null).setCheckpointStore(store).setRenewMillis(200).setBackoff(50, 500).start() )
+        {
+            smtp.send(TEST_SUBJECT+0, TEST_BODY, BOB_LOCALHOST);
+            assertEquals(TEST_SUBJECT+0, received.poll(10, TimeUnit.SECONDS));
+
+            // the service catches up after the connection is lost
+            imap.close();
+            smtp.send(TEST_SUBJECT+1, TEST_BODY, BOB_LOCALHOST);
+            assertEquals(TEST_SUBJECT+1, received.poll(10, TimeUnit.SECONDS));
+
+            Thread.sleep(500);
+            smtp.send(TEST_SUBJECT+2, TEST_BODY, BOB_LOCALHOST);
+            assertEquals(TEST_SUBJECT+2, received.poll(10, TimeUnit.SECONDS));
+            assertNull(received.poll(500, TimeUnit.MILLISECONDS));
+
+            assertEquals(service.getCheckpoint(), store.load(imap.getCheckpointKey()));
+            assertTrue(service.getCheckpoint().lastUID>=3);
+        }
+    }
+
+    @Test
+    void testListenerFailure() throws Exception
+    {
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        BlockingQueue<String> dead = new LinkedBlockingQueue<>();
+        AtomicInteger calls = new AtomicInteger();
+        IMAP imap = new IMAP(greenMail.getImap().getBindTo(), greenMail.getImap().getPort(), false, false, false, BOB, new SecureChars(BOB_PASS.toCharArray()));
+        IMAP.ImapListener listener = (message, uidValidity, uid) ->
+        {
+            String subject = subject(message);
+            received.add(subject);
+            // the first one fails once, the second one always
+            if((subject.equals(TEST_SUBJECT+1) && calls.getAndIncrement()==0) || subject.equals(TEST_SUBJECT+2))
+            {
+                throw new IllegalStateException("listener failure");
+            }
+        };
+        try( SMTP smtp = new SMTP(greenMail.getSmtp().getBindTo(), greenMail.getSmtp().getPort(), false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray()), ALICE_LOCALHOST).connect();
+             ImapIdleService service = new ImapIdleService(imap, listener, null).setRenewMillis(200).setBackoff(50, 500)
+                     .setMaxAttempts(2).setDeadLetter((message, uidValidity, uid) -> dead.add(subject(message))).start() )
+        {
+            smtp.send(TEST_SUBJECT+1, TEST_BODY, BOB_LOCALHOST);
+            assertEquals(TEST_SUBJECT+1, received.poll(10, TimeUnit.SECONDS));
+            assertEquals(TEST_SUBJECT+1, received.poll(10, TimeUnit.SECONDS));
+
+            smtp.send(TEST_SUBJECT+2, TEST_BODY, BOB_LOCALHOST);
+            assertEquals(TEST_SUBJECT+2, received.poll(10, TimeUnit.SECONDS));
+            assertEquals(TEST_SUBJECT+2, received.poll(10, TimeUnit.SECONDS));
+            assertEquals(TEST_SUBJECT+2, dead.poll(10, TimeUnit.SECONDS));
+
+            // the dead letter does not hold the checkpoint back
+            smtp.send(TEST_SUBJECT+3, TEST_BODY, BOB_LOCALHOST);
+            assertEquals(TEST_SUBJECT+3, received.poll(10, TimeUnit.SECONDS));
+            for(int i=0;i<100 && service.getCheckpoint().lastUID<3;i++)
+            {
+                Thread.sleep(10);
+            }
+            assertEquals(3, service.getCheckpoint().lastUID);
+            assertNull(received.poll(500, TimeUnit.MILLISECONDS));
+            assertNull(dead.poll());
+        }
+    }
+
+    private static String subject(Message message)
+    {
+        try
+        {
+            return message.getSubject();
+        }
+        catch (MessagingException ex)
+        {
+            return ex.toString();
+        }
+    }
+
+    private static final String TEST_SUBJECT = "Test Subject";
+    private static final String TEST_BODY = "This is the email body!";
+}
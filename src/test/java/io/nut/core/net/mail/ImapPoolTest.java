@@ -0,0 +1,112 @@
+/*
+ *  ImapPoolTest.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import com.icegreen.greenmail.configuration.GreenMailConfiguration;
+import com.icegreen.greenmail.junit5.GreenMailExtension;
+import com.icegreen.greenmail.store.MailFolder;
+import com.icegreen.greenmail.util.GreenMailUtil;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import io.nut.base.security.SecureChars;
+import static io.nut.core.net.mail.SMTPTest.ALICE;
+import static io.nut.core.net.mail.SMTPTest.ALICE_LOCALHOST;
+import static io.nut.core.net.mail.SMTPTest.ALICE_PASS;
+import static io.nut.core.net.mail.SMTPTest.BOB;
+import static io.nut.core.net.mail.SMTPTest.BOB_LOCALHOST;
+import static io.nut.core.net.mail.SMTPTest.BOB_PASS;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+/**
+ *
+ * @author franci
+ */
+public class ImapPoolTest
+{
+    @RegisterExtension
+    static GreenMailExtension greenMail = new GreenMailExtension(ServerSetupTest.SMTP_IMAP)
+            .withConfiguration(GreenMailConfiguration.aConfig().withUser(ALICE_LOCALHOST, ALICE, ALICE_PASS).withUser(BOB_LOCALHOST, BOB, BOB_PASS));
+
+    private static final String ARCHIVE = "Archive";
+
+    @Test
+    void testPool() throws Exception
+    {
+        MailFolder archive = greenMail.getManagers().getImapHostManager().createMailbox(greenMail.getUserManager().getUser(BOB), ARCHIVE);
+        for(int i=0;i<2;i++)
+        {
+            archive.store(GreenMailUtil.createTextEmail(BOB_LOCALHOST, ALICE_LOCALHOST, "archived "+i, "body", greenMail.getSmtp().getServerSetup()));
+        }
+        GreenMailUtil.sendTextEmail(BOB_LOCALHOST, ALICE_LOCALHOST, "inbox", "body", greenMail.getSmtp().getServerSetup());
+        GreenMailUtil.sendTextEmail(ALICE_LOCALHOST, BOB_LOCALHOST, "inbox", "body", greenMail.getSmtp().getServerSetup());
+        assertTrue(greenMail.waitForIncomingEmail(5000, 2));
+
+        String host = greenMail.getImap().getBindTo();
+        int port = greenMail.getImap().getPort();
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        try( ImapPool pool = new ImapPool(3, 60_000).start()
+                .addAccount(BOB, host, port, false, false, true, BOB, new SecureChars(BOB_PASS.toCharArray()), 2)
+                .addAccount(ALICE, host, port, false, false, true, ALICE, new SecureChars(ALICE_PASS.toCharArray()), 1) )
+        {
+            List<Future<Integer>> futures = new ArrayList<>();
+            for(int i=0;i<4;i++)
+            {
+                futures.add(executor.submit(() -> pool.execute(BOB, ARCHIVE, imap -> imap.getMessageCount())));
+                futures.add(executor.submit(() -> pool.execute(BOB, IMAP.INBOX, imap -> imap.getMessageCount())));
+                futures.add(executor.submit(() -> pool.execute(ALICE, IMAP.INBOX, imap -> imap.getMessageCount())));
+            }
+            for(int i=0;i<futures.size();i++)
+            {
+                assertEquals(i%3==0 ? 2 : 1, futures.get(i).get());
+            }
+            assertTrue(pool.getSize()<=3);
+            assertTrue(pool.getSize(BOB)<=2);
+            assertEquals(1, pool.getSize(ALICE));
+            assertEquals(pool.getSize(), pool.getIdleCount());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        // an idle connection is switched to another folder instead of opening a new one
+        try( ImapPool pool = new ImapPool(1, 0).addAccount(BOB, host, port, false, false, true, BOB, new SecureChars(BOB_PASS.toCharArray()), 1) )
+        {
+            IMAP inbox = pool.borrow(BOB, IMAP.INBOX);
+            assertEquals(1, inbox.getMessageCount());
+            pool.release(inbox);
+
+            IMAP imap = pool.borrow(BOB, ARCHIVE);
+            assertSame(inbox, imap);
+            assertEquals(ARCHIVE, imap.getFolder());
+            assertEquals(2, imap.getMessageCount());
+            pool.release(imap);
+            assertEquals(1, pool.getSize());
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ *  MailCacheTest.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import com.icegreen.greenmail.configuration.GreenMailConfiguration;
+import com.icegreen.greenmail.junit5.GreenMailExtension;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import io.nut.base.security.SecureChars;
+import static io.nut.core.net.mail.SMTPTest.ALICE;
+import static io.nut.core.net.mail.SMTPTest.ALICE_LOCALHOST;
+import static io.nut.core.net.mail.SMTPTest.ALICE_PASS;
+import static io.nut.core.net.mail.SMTPTest.BOB;
+import static io.nut.core.net.mail.SMTPTest.BOB_LOCALHOST;
+import static io.nut.core.net.mail.SMTPTest.BOB_PASS;
+import jakarta.mail.Message;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author franci
+ */
+public class MailCacheTest
+{
+    @RegisterExtension
+    static GreenMailExtension greenMail = new GreenMailExtension(ServerSetupTest.SMTP_IMAP)
+            .withConfiguration(GreenMailConfiguration.aConfig().withUser(ALICE_LOCALHOST, ALICE, ALICE_PASS).withUser(BOB_LOCALHOST, BOB, BOB_PASS));
+
+    private static final String FOLDER = "bob@localhost/INBOX";
+
+    @TempDir
+    Path dir;
+
+    private static byte[] raw(int n)
+    {
+        return ("Subject: message "+n+"\r\n\r\nbody "+n+"\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    void testEvictionAndValidity() throws Exception
+    {
+        File file = dir.resolve("cache.db").toFile();
+        long entrySize = raw(0).length;
+        try( MailCache cache = new MailCache(file, entrySize*3) )
+        {
+            assertTrue(cache.validate(FOLDER, 7));
+            for(int i=1;i<=5;i++)
+            {
+                Map<Long, byte[]> items = new LinkedHashMap<>();
+                items.put((long) i, raw(i));
+                cache.putAll(FOLDER, items, true);
+            }
+            assertEquals(3, cache.size());
+            assertTrue(cache.getBytes()<=entrySize*3);
+            assertNull(cache.get(FOLDER, 2));
+            assertEquals("message 5", cache.get(FOLDER, 5).getSubject());
+
+            // a hit keeps the entry, the least recently used one is evicted
+            assertNotNull(cache.get(FOLDER, 3));
+            Map<Long, byte[]> items = new LinkedHashMap<>();
+            items.put(6L, raw(6));
+            cache.putAll(FOLDER, items, true);
+            assertNotNull(cache.get(FOLDER, 3));
+            assertNull(cache.get(FOLDER, 4));
+        }
+        try( MailCache cache = new MailCache(file, entrySize*3) )
+        {
+            assertTrue(cache.validate(FOLDER, 7));
+            assertEquals(3, cache.size());
+            assertFalse(cache.validate(FOLDER, 8));
+            assertEquals(0, cache.size());
+            assertEquals(0, cache.getBytes());
+        }
+    }
+
+    @Test
+    void testImapCache() throws Exception
+    {
+        try( SMTP smtp = new SMTP(greenMail.getSmtp().getBindTo(), greenMail.getSmtp().getPort(), false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray()), ALICE_LOCALHOST).connect() )
+        {
+            for(int i=0;i<3;i++)
+            {
+                smtp.send("subject "+i, "body "+i, BOB_LOCALHOST);
+            }
+        }
+        assertTrue(greenMail.waitForIncomingEmail(5000, 3));
+
+        String host = greenMail.getImap().getBindTo();
+        int port = greenMail.getImap().getPort();
+        try( MailCache cache = new MailCache(dir.resolve("imap.db").toFile()) )
+        {
+            for(int round=0;round<2;round++)
+            {
+                try( IMAP imap = new IMAP(host, port, false, false, false, BOB, new SecureChars(BOB_PASS.toCharArray())).setCache(cache, true) )
+                {
+                    imap.connect();
+                    List<Message> messages = imap.getCachedMessages();
+                    assertEquals(3, messages.size());
+                    assertEquals(3, cache.size());
+                    long bytes = cache.getBytes();
+                    for(int i=0;i<3;i++)
+                    {
+                        assertTrue(messages.get(i) instanceof MailCache.CachedMessage);
+                        assertEquals("subject "+i, messages.get(i).getSubject());
+                        assertEquals("body "+i, String.valueOf(messages.get(i).getContent()).trim());
+                        assertEquals(i+1, imap.getUID(messages.get(i)));
+                    }
+                    assertEquals(bytes, cache.getBytes());
+
+                    // the MailReader methods keep returning live messages
+                    Message[] live = imap.getMessages();
+                    assertFalse(live[0] instanceof MailCache.CachedMessage);
+                    assertEquals(1, live[0].getMessageNumber());
+                    assertEquals(3, imap.getUIDs(live).length);
+                }
+            }
+            // headers only
+            try( IMAP imap = new IMAP(host, port, false, false, false, BOB, new SecureChars(BOB_PASS.toCharArray())).setCache(cache, false) )
+            {
+                imap.connect();
+                cache.invalidate(imap.getCheckpointKey());
+                List<Message> messages = imap.getCachedMessagesByUID(2, 3);
+                assertEquals(2, messages.size());
+                assertEquals("subject 1", messages.get(0).getSubject());
+                assertFalse(((MailCache.CachedMessage) messages.get(0)).isComplete());
+                assertEquals(2, cache.size());
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ *  MailDedupTest.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import jakarta.mail.Message;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.Properties;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author franci
+ */
+public class MailDedupTest
+{
+    @TempDir
+    Path dir;
+
+    @Test
+    void testKeys() throws Exception
+    {
+        Session session = Session.getInstance(new Properties());
+        MimeMessage a = new MimeMessage(session);
+        a.setHeader("Message-ID", " <1234@example.com> ");
+        assertEquals("id:1234@example.com", MailDedup.keyOf(a));
+
+        Message[] copies = new Message[2];
+        for(int i=0;i<copies.length;i++)
+        {
+            copies[i] = new MimeMessage(session);
+            copies[i].setFrom(new InternetAddress("alice@localhost"));
+            copies[i].setRecipient(Message.RecipientType.TO, new InternetAddress("bob@localhost"));
+            copies[i].setSubject("no id");
+            copies[i].setSentDate(new Date(1_700_000_000_000L));
+            copies[i].setHeader("Received", "by mx"+i);
+        }
+        assertTrue(MailDedup.keyOf(copies[0]).startsWith("hash:"));
+        assertEquals(MailDedup.keyOf(copies[0]), MailDedup.keyOf(copies[1]));
+        copies[1].setSubject("other");
+        assertNotEquals(MailDedup.keyOf(copies[0]), MailDedup.keyOf(copies[1]));
+    }
+
+    @Test
+    void testAdd()
+    {
+        File file = dir.resolve("dedup.db").toFile();
+        try(MailDedup dedup = new MailDedup(file, 10_000))
+        {
+            for(int i=0;i<5000;i++)
+            {
+                assertTrue(dedup.add("id:"+i+"@example.com"));
+            }
+            assertFalse(dedup.add("id:7@example.com"));
+            assertEquals(5000, dedup.size());
+        }
+        try(MailDedup dedup = new MailDedup(file, 10_000))
+        {
+            assertEquals(5000, dedup.size());
+            for(int i=0;i<5000;i++)
+            {
+                assertTrue(dedup.contains("id:"+i+"@example.com"));
+            }
+            int unknown = 0;
+            for(int i=5000;i<15000;i++)
+            {
+                if(!dedup.contains("id:"+i+"@example.com"))
+                {
+                    unknown++;
+                }
+            }
+            assertEquals(10000, unknown);
+            // most of the unknown keys never reach the exact set
+            assertTrue(dedup.getLookups()-5000<1000, "lookups="+dedup.getLookups());
+            assertEquals(dedup.getLookups()-5000, dedup.getFalsePositives());
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ *  MailOutboxTest.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import com.icegreen.greenmail.configuration.GreenMailConfiguration;
+import com.icegreen.greenmail.junit5.GreenMailExtension;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import io.nut.base.security.SecureChars;
+import static io.nut.core.net.mail.SMTPTest.ALICE;
+import static io.nut.core.net.mail.SMTPTest.ALICE_LOCALHOST;
+import static io.nut.core.net.mail.SMTPTest.ALICE_PASS;
+import static io.nut.core.net.mail.SMTPTest.BOB;
+import static io.nut.core.net.mail.SMTPTest.BOB_LOCALHOST;
+import static io.nut.core.net.mail.SMTPTest.BOB_PASS;
+import jakarta.mail.MessagingException;
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.angus.mail.smtp.SMTPSendFailedException;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author franci
+ */
+public class MailOutboxTest
+{
+    @RegisterExtension
+    static GreenMailExtension greenMail = new GreenMailExtension(ServerSetupTest.SMTP)
+            .withConfiguration(GreenMailConfiguration.aConfig().withUser(ALICE_LOCALHOST, ALICE, ALICE_PASS).withUser(BOB_LOCALHOST, BOB, BOB_PASS));
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testOutbox() throws Exception
+    {
+        String host = greenMail.getSmtp().getBindTo();
+        int port = greenMail.getSmtp().getPort();
+        File file = tempDir.resolve("outbox.db").toFile();
+
+        try( SMTP smtp = new SMTP(host, port, false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray()), ALICE_LOCALHOST) )
+        {
+            try( MailOutbox outbox = new MailOutbox(file, smtp) )
+            {
+                outbox.enqueue(new OutgoingMail("subject 1", "body 1", BOB_LOCALHOST));
+                outbox.enqueue(new OutgoingMail("subject 2", "body 2", "bob@@localhost"));
+                outbox.enqueue(new OutgoingMail("subject 3", "body 3", BOB_LOCALHOST));
+                assertEquals(3, outbox.size());
+            }
+            try( MailOutbox outbox = new MailOutbox(file, smtp).setPollMillis(10).start() )
+            {
+                assertTrue(greenMail.waitForIncomingEmail(5000, 2));
+                for(int i=0;i<100 && outbox.size()>0;i++)
+                {
+                    Thread.sleep(10);
+                }
+                assertEquals(0, outbox.size());
+                assertEquals(1, outbox.getFailed().size());
+                assertEquals("subject 2", outbox.getFailed().values().iterator().next().subject);
+            }
+        }
+    }
+
+    @Test
+    void testErrors() throws Exception
+    {
+        AtomicInteger calls = new AtomicInteger();
+        MailSender sender = new MailSender()
+        {
+            @Override
+            public void send(OutgoingMail mail)
+            {
+                throw new UnsupportedOperationException();
+            }
+            @Override
+            public List<SendResult> sendBatch(Iterable<OutgoingMail> mails)
+            {
+                calls.incrementAndGet();
+                List<SendResult> results = new ArrayList<>();
+                for(OutgoingMail mail : mails)
+                {
+                    int code = mail.subject.equals("rejected") ? 550 : 451;
+                    results.add(new SendResult(mail, new SMTPSendFailedException("DATA", code, code+" error", null, null, null, null)));
+                }
+                return results;
+            }
+            @Override
+            public void close()
+            {
+            }
+        };
+        try( MailOutbox outbox = new MailOutbox(tempDir.resolve("errors.db").toFile(), sender) )
+        {
+            outbox.enqueue(new OutgoingMail("rejected", "body", BOB_LOCALHOST));
+            outbox.enqueue(new OutgoingMail("deferred", "body", BOB_LOCALHOST));
+            outbox.dispatch();
+            assertEquals(1, outbox.size());
+            assertEquals("rejected", outbox.getFailed().values().iterator().next().subject);
+        }
+        assertTrue(MailOutbox.isPermanent(new MessagingException("wrapped", new SMTPSendFailedException("RCPT", 553, "553 error", null, null, null, null))));
+        assertFalse(MailOutbox.isPermanent(new MessagingException("closed")));
+
+        calls.set(0);
+        MailSender broken = new MailSender()
+        {
+            @Override
+            public void send(OutgoingMail mail)
+            {
+                throw new IllegalStateException("closed");
+            }
+            @Override
+            public List<SendResult> sendBatch(Iterable<OutgoingMail> mails)
+            {
+                calls.incrementAndGet();
+                throw new IllegalStateException("closed");
+            }
+            @Override
+            public void close()
+            {
+            }
+        };
+        try( MailOutbox outbox = new MailOutbox(tempDir.resolve("broken.db").toFile(), broken).setPollMillis(1).setBackoff(100, 1_000) )
+        {
+            outbox.enqueue(new OutgoingMail("subject", "body", BOB_LOCALHOST));
+            outbox.start();
+            Thread.sleep(250);
+        }
+        assertTrue(calls.get()>=1 && calls.get()<=3, "calls="+calls.get());
+    }
+
+    @Test
+    void testGroupCommit() throws Exception
+    {
+        List<String> sent = new ArrayList<>();
+        MailSender sender = new MailSender()
+        {
+            @Override
+            public void send(OutgoingMail mail)
+            {
+                throw new UnsupportedOperationException();
+            }
+            @Override
+            public List<SendResult> sendBatch(Iterable<OutgoingMail> mails)
+            {
+                List<SendResult> results = new ArrayList<>();
+                for(OutgoingMail mail : mails)
+                {
+                    sent.add(mail.subject);
+                    MessagingException error = mail.subject.equals("deferred") ? new SMTPSendFailedException("DATA", 451, "451 error", null, null, null, null) : null;
+                    results.add(new SendResult(mail, error));
+                }
+                return results;
+            }
+            @Override
+            public void close()
+            {
+            }
+        };
+        File file = tempDir.resolve("group.db").toFile();
+        try( MailOutbox outbox = new MailOutbox(file, sender).setCommitMillis(60_000) )
+        {
+            outbox.enqueue(new OutgoingMail("deferred", "body", BOB_LOCALHOST));
+            outbox.enqueue(new OutgoingMail("subject 2", "body", BOB_LOCALHOST));
+        }
+        // the uncommitted group is written on close
+        try( MailOutbox outbox = new MailOutbox(file, sender).setCommitMillis(60_000).setBackoff(60_000, 60_000) )
+        {
+            assertEquals(2, outbox.size());
+            assertEquals(1, outbox.dispatch());
+            assertEquals(1, outbox.size());
+            // the deferred mail is not due yet
+            assertEquals(0, outbox.dispatch());
+            assertEquals(2, sent.size());
+        }
+        try( MailOutbox outbox = new MailOutbox(file, sender) )
+        {
+            assertEquals(0, outbox.dispatch());
+            assertEquals(1, outbox.size());
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ *  MailRateLimiterTest.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author franci
+ */
+public class MailRateLimiterTest
+{
+    @Test
+    void testAcquire() throws InterruptedException
+    {
+        MailRateLimiter limiter = new MailRateLimiter(100, 10, 5);
+        long t0 = System.nanoTime();
+        for(int i=0;i<15;i++)
+        {
+            limiter.acquire();
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-t0);
+        assertTrue(millis>=90, "millis="+millis);
+    }
+
+    @Test
+    void testAdaptive()
+    {
+        MailRateLimiter limiter = new MailRateLimiter(100, 10, 5);
+        assertEquals(100, limiter.getRate(), 0.001);
+        limiter.onThrottle();
+        assertEquals(50, limiter.getRate(), 0.001);
+        limiter.onThrottle();
+        limiter.onThrottle();
+        limiter.onThrottle();
+        assertEquals(10, limiter.getRate(), 0.001);
+        for(int i=0;i<200;i++)
+        {
+            limiter.onSuccess();
+        }
+        assertEquals(100, limiter.getRate(), 0.001);
+
+        assertTrue(MailRateLimiter.isThrottle(421));
+        assertFalse(MailRateLimiter.isThrottle(550));
+    }
+}
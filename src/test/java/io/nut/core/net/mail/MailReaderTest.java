@@ -23,6 +23,8 @@ package io.nut.core.net.mail;
 
 import com.icegreen.greenmail.configuration.GreenMailConfiguration;
 import com.icegreen.greenmail.junit5.GreenMailExtension;
+import com.icegreen.greenmail.store.MailFolder;
+import com.icegreen.greenmail.user.GreenMailUser;
 import com.icegreen.greenmail.util.ServerSetupTest;
 import io.nut.base.security.SecureChars;
 import static io.nut.core.net.mail.SMTPTest.ALICE;
@@ -31,11 +33,34 @@ import static io.nut.core.net.mail.SMTPTest.ALICE_PASS;
 import static io.nut.core.net.mail.SMTPTest.BOB;
 import static io.nut.core.net.mail.SMTPTest.BOB_LOCALHOST;
 import static io.nut.core.net.mail.SMTPTest.BOB_PASS;
+import jakarta.mail.FetchProfile;
+import jakarta.mail.Flags;
 import jakarta.mail.Message;
 import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.UIDFolder;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeUtility;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Stream;
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
 import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.api.io.TempDir;
 
 /**
  *
@@ -43,6 +68,9 @@ import org.junit.jupiter.api.extension.RegisterExtension;
  */
 public class MailReaderTest
 {
+    @TempDir
+    Path tempDir;
+
     @RegisterExtension
     static GreenMailExtension greenMail = new GreenMailExtension(ServerSetupTest.SMTP_POP3_IMAP)
             .withConfiguration(GreenMailConfiguration.aConfig()
@@ -86,6 +114,611 @@ public class MailReaderTest
         }
     }
     
+    @Test
+    void testFetchProfile() throws Exception 
+    {
+        try( SMTP smtp = new SMTP(greenMail.getSmtp().getBindTo(), greenMail.getSmtp().getPort(), false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray()), ALICE_LOCALHOST).connect() )
+        {
+            for(int i=0;i<3;i++)
+            {
+                smtp.send(TEST_SUBJECT+i, THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST);
+            }
+        }
+        assertTrue(greenMail.waitForIncomingEmail(5000, 3));
+
+        FetchProfile profile = MailUtils.newFetchProfile(true, true, true, true, "Message-ID");
+        try( IMAP imap = new IMAP(greenMail.getImap().getBindTo(), greenMail.getImap().getPort(), false, false, false, BOB, new SecureChars(BOB_PASS.toCharArray())) )
+        {
+            imap.connect();
+            Message[] messages = imap.getMessages(profile);
+            assertEquals(3, messages.length);
+            for(int i=0;i<3;i++)
+            {
+                assertEquals(TEST_SUBJECT+i, messages[i].getSubject());
+                assertNotNull(messages[i].getHeader("Message-ID"));
+            }
+            messages = imap.getMessagesByUID(2, UIDFolder.LASTUID, profile);
+            assertEquals(2, messages.length);
+            assertEquals(TEST_SUBJECT+1, messages[0].getSubject());
+        }
+        try( MailReader pop3 = new POP3(greenMail.getPop3().getBindTo(), greenMail.getPop3().getPort(), false, false, false, BOB, new SecureChars(BOB_PASS.toCharArray())) )
+        {
+            pop3.connect();
+            Message[] messages = pop3.getMessages(profile);
+            assertEquals(3, messages.length);
+            assertEquals(TEST_SUBJECT+2, messages[2].getSubject());
+        }
+    }
+
+    @Test
+    void testSyncSince() throws Exception
+    {
+        try( SMTP smtp = new SMTP(greenMail.getSmtp().getBindTo(), greenMail.getSmtp().getPort(), false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray()), ALICE_LOCALHOST).connect() )
+        {
+            smtp.send(TEST_SUBJECT+0, THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST);
+            smtp.send(TEST_SUBJECT+1, THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST);
+            assertTrue(greenMail.waitForIncomingEmail(5000, 2));
+
+            ImapSync sync;
+            try( IMAP imap = new IMAP(greenMail.getImap().getBindTo(), greenMail.getImap().getPort(), false, false, false, BOB, new SecureChars(BOB_PASS.toCharArray())) )
+            {
+                imap.connect();
+                sync = imap.syncSince(ImapCheckpoint.NONE, null);
+                assertEquals(2, sync.messages.length);
+                assertFalse(sync.isReset());
+
+                ImapSync empty = imap.syncSince(sync.checkpoint, null);
+                assertEquals(0, empty.messages.length);
+                assertEquals(sync.checkpoint, empty.checkpoint);
+            }
+
+            smtp.send(TEST_SUBJECT+2, THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST);
+            assertTrue(greenMail.waitForIncomingEmail(5000, 3));
+
+            try( IMAP imap = new IMAP(greenMail.getImap().getBindTo(), greenMail.getImap().getPort(), false, false, false, BOB, new SecureChars(BOB_PASS.toCharArray())) )
+            {
+                imap.connect();
+                ImapSync next = imap.syncSince(sync.checkpoint, MailUtils.newFetchProfile(true, false, true, false));
+                assertEquals(1, next.messages.length);
+                assertEquals(TEST_SUBJECT+2, next.messages[0].getSubject());
+                assertTrue(next.checkpoint.lastUID>sync.checkpoint.lastUID);
+
+                ImapCheckpoint stale = new ImapCheckpoint(sync.checkpoint.uidValidity+1, sync.checkpoint.lastUID);
+                ImapSync reset = imap.syncSince(stale, null);
+                assertTrue(reset.isReset());
+                assertEquals(3, reset.messages.length);
+            }
+        }
+    }
+
+    @Test
+    void testResync() throws Exception
+    {
+        // GreenMail has neither CONDSTORE nor QRESYNC, so only the fallback
+        // that fetches the flags of every known message is covered here
+        try( SMTP smtp = new SMTP(greenMail.getSmtp().getBindTo(), greenMail.getSmtp().getPort(), false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray()), ALICE_LOCALHOST).connect() )
+        {
+            smtp.send(TEST_SUBJECT+0, THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST);
+            smtp.send(TEST_SUBJECT+1, THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST);
+            assertTrue(greenMail.waitForIncomingEmail(5000, 2));
+
+            ImapSync sync;
+            try( IMAP imap = new IMAP(greenMail.getImap().getBindTo(), greenMail.getImap().getPort(), false, false, false, BOB, new SecureChars(BOB_PASS.toCharArray())) )
+            {
+                imap.connect();
+                sync = imap.syncSince(ImapCheckpoint.NONE, null);
+                assertEquals(2, sync.messages.length);
+                sync.messages[0].setFlag(Flags.Flag.FLAGGED, true);
+            }
+
+            smtp.send(TEST_SUBJECT+2, THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST);
+            assertTrue(greenMail.waitForIncomingEmail(5000, 3));
+
+            try( IMAP imap = new IMAP(greenMail.getImap().getBindTo(), greenMail.getImap().getPort(), false, false, false, BOB, new SecureChars(BOB_PASS.toCharArray())) )
+            {
+                imap.connect();
+                ImapSync resync = imap.resync(sync.checkpoint, null);
+                assertEquals(1, resync.messages.length);
+                assertEquals(TEST_SUBJECT+2, resync.messages[0].getSubject());
+                assertTrue(resync.checkpoint.lastUID>sync.checkpoint.lastUID);
+                assertTrue(resync.changed.length>=1);
+                assertTrue(resync.changed[0].isSet(Flags.Flag.FLAGGED));
+                assertFalse(imap.hasCondStore());
+                assertEquals(0, resync.checkpoint.highestModSeq);
+                assertNull(resync.vanished);
+            }
+        }
+    }
+
+    @Test
+    void testSearch() throws Exception
+    {
+        try( SMTP smtp = new SMTP(greenMail.getSmtp().getBindTo(), greenMail.getSmtp().getPort(), false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray()), ALICE_LOCALHOST).connect() )
+        {
+            smtp.send("Invoice 1", THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST);
+            smtp.send("Invoice 2", THIS_IS_THE_EMAIL_BODY+THIS_IS_THE_EMAIL_BODY+THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST);
+            smtp.send(TEST_SUBJECT, THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST, ALICE_LOCALHOST);
+        }
+        assertTrue(greenMail.waitForIncomingEmail(5000, 4));
+
+        Date yesterday = new Date(System.currentTimeMillis()-24*60*60*1000L);
+        Date tomorrow = new Date(System.currentTimeMillis()+24*60*60*1000L);
+        MailReader[] readers =
+        {
+            new IMAP(greenMail.getImap().getBindTo(), greenMail.getImap().getPort(), false, false, false, BOB, new SecureChars(BOB_PASS.toCharArray())),
+            new POP3(greenMail.getPop3().getBindTo(), greenMail.getPop3().getPort(), false, false, false, BOB, new SecureChars(BOB_PASS.toCharArray()))
+        };
+        for(MailReader reader : readers)
+        {
+            try( MailReader mr = reader )
+            {
+                mr.connect();
+                assertEquals(3, mr.search(new MailQuery()).length);
+                assertEquals(2, mr.search(new MailQuery().subject("invoice")).length);
+                assertEquals(3, mr.search(new MailQuery().from(ALICE_LOCALHOST).recipient(BOB_LOCALHOST)).length);
+                assertEquals(1, mr.search(new MailQuery().recipient(ALICE_LOCALHOST)).length);
+                assertEquals(1, mr.search(new MailQuery().subject("invoice").largerThan(mr.search(new MailQuery().subject("invoice 1"))[0].getSize())).length);
+                assertEquals(3, mr.search(new MailQuery().receivedAfter(yesterday).receivedBefore(tomorrow)).length);
+                assertEquals(0, mr.search(new MailQuery().receivedAfter(tomorrow)).length);
+                assertEquals(3, mr.search(new MailQuery().header("Message-ID", "@")).length);
+                assertEquals(3, mr.getMessages(yesterday).length);
+            }
+        }
+    }
+
+    @Test
+    void testStream() throws Exception
+    {
+        try( SMTP smtp = new SMTP(greenMail.getSmtp().getBindTo(), greenMail.getSmtp().getPort(), false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray()), ALICE_LOCALHOST).connect() )
+        {
+            for(int i=0;i<7;i++)
+            {
+                smtp.send(TEST_SUBJECT+i, THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST);
+            }
+        }
+        assertTrue(greenMail.waitForIncomingEmail(5000, 7));
+
+        FetchProfile profile = MailUtils.newFetchProfile(true, false, false, false);
+        try( IMAP imap = new IMAP(greenMail.getImap().getBindTo(), greenMail.getImap().getPort(), false, false, false, BOB, new SecureChars(BOB_PASS.toCharArray())) )
+        {
+            imap.connect();
+            try( Stream<Message> stream = imap.stream(3, profile) )
+            {
+                assertEquals(7, stream.count());
+            }
+            try( MailIterator it = imap.iterateByUID(2, 3, profile) )
+            {
+                for(int i=1;i<7;i++)
+                {
+                    assertTrue(it.hasNext());
+                    assertEquals(TEST_SUBJECT+i, it.next().getSubject());
+                }
+                assertFalse(it.hasNext());
+            }
+            try( Stream<Message> stream = imap.stream(2, profile) )
+            {
+                assertEquals(TEST_SUBJECT+0, stream.findFirst().get().getSubject());
+            }
+        }
+        try( MailReader pop3 = new POP3(greenMail.getPop3().getBindTo(), greenMail.getPop3().getPort(), false, false, false, BOB, new SecureChars(BOB_PASS.toCharArray())) )
+        {
+            pop3.connect();
+            try( Stream<Message> stream = pop3.stream(3, profile) )
+            {
+                String[] subjects = stream.map(m ->
+                {
+                    try
+                    {
+                        return m.getSubject();
+                    }
+                    catch (MessagingException ex)
+                    {
+                        throw new IllegalStateException(ex);
+                    }
+                }).toArray(String[]::new);
+                assertEquals(7, subjects.length);
+                assertEquals(TEST_SUBJECT+6, subjects[6]);
+            }
+        }
+    }
+
+    @Test
+    void testFetchPart() throws Exception
+    {
+        byte[] data = new byte[300*1024];
+        for(int i=0;i<data.length;i++)
+        {
+            data[i] = (byte) (i*31);
+        }
+        OutgoingMail mail = new OutgoingMail(TEST_SUBJECT, THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST, null, null,
+                MailAttachment.of("data.bin", ByteBuffer.wrap(data), MailAttachment.APPLICATION_OCTET_STREAM));
+        try( SMTP smtp = new SMTP(greenMail.getSmtp().getBindTo(), greenMail.getSmtp().getPort(), false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray()), ALICE_LOCALHOST).connect() )
+        {
+            smtp.send(mail);
+        }
+        assertTrue(greenMail.waitForIncomingEmail(5000, 1));
+
+        try( IMAP imap = new IMAP(greenMail.getImap().getBindTo(), greenMail.getImap().getPort(), false, false, false, BOB, new SecureChars(BOB_PASS.toCharArray())).setPartChunkSize(16*1024) )
+        {
+            imap.connect();
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            long count = imap.fetchPart(1, "2", 0, -1, Channels.newChannel(encoded));
+            assertEquals(encoded.size(), count);
+            assertArrayEquals(data, readAll(MimeUtility.decode(new ByteArrayInputStream(encoded.toByteArray()), "base64")));
+
+            ByteArrayOutputStream range = new ByteArrayOutputStream();
+            assertEquals(50, imap.fetchPart(1, "2", 40_000, 50, Channels.newChannel(range)));
+            assertArrayEquals(Arrays.copyOfRange(encoded.toByteArray(), 40_000, 40_050), range.toByteArray());
+
+            // resumes an interrupted download
+            Path file = tempDir.resolve("data.b64");
+            Files.write(file, Arrays.copyOf(encoded.toByteArray(), 12345));
+            assertEquals(encoded.size(), imap.downloadPart(1, "2", file));
+            assertArrayEquals(encoded.toByteArray(), Files.readAllBytes(file));
+            assertEquals(encoded.size(), imap.downloadPart(1, "2", file));
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while((n=in.read(buf))>0)
+        {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    void testIndexStructure() throws Exception
+    {
+        OutgoingMail mail = new OutgoingMail(TEST_SUBJECT, THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST, null, null,
+                MailAttachment.of("pixel.png", ByteBuffer.wrap(new byte[300]), "image/png"),
+                MailAttachment.of("hello.txt", ByteBuffer.wrap("hello".getBytes(StandardCharsets.US_ASCII)), "text/plain"));
+        try( SMTP smtp = new SMTP(greenMail.getSmtp().getBindTo(), greenMail.getSmtp().getPort(), false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray()), ALICE_LOCALHOST).connect() )
+        {
+            smtp.send(mail);
+            smtp.send(TEST_SUBJECT, THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST);
+        }
+        assertTrue(greenMail.waitForIncomingEmail(5000, 2));
+
+        try( IMAP imap = new IMAP(greenMail.getImap().getBindTo(), greenMail.getImap().getPort(), false, false, false, BOB, new SecureChars(BOB_PASS.toCharArray())) )
+        {
+            imap.connect();
+            MimeIndex[] index = imap.indexStructure(1, 2);
+            assertEquals(2, index.length);
+
+            assertEquals(1, index[0].uid);
+            assertEquals(3, index[0].entries.size());
+            assertTrue(index[0].hasType(IMAP.TYPE_TEXT));
+            assertTrue(index[0].hasType(IMAP.TYPE_IMAGE));
+            assertFalse(index[0].hasType(IMAP.TYPE_VIDEO));
+            assertEquals(2, index[0].attachmentCount);
+            MimeIndex.Entry png = index[0].entries.get(1);
+            assertEquals("2", png.section);
+            assertEquals("image/png", png.contentType);
+            assertEquals("pixel.png", png.fileName);
+            assertEquals("base64", png.encoding.toLowerCase());
+            assertTrue(png.size>=400);
+            assertFalse(index[0].entries.get(0).attachment);
+
+            assertEquals(2, index[1].uid);
+            assertEquals(1, index[1].entries.size());
+            assertEquals("1", index[1].entries.get(0).section);
+            assertFalse(index[1].hasAttachments());
+
+            assertEquals(2, imap.indexStructure(imap.getMessages()).length);
+        }
+    }
+
+    @Test
+    void testConvert() throws Exception
+    {
+        OutgoingMail mail = new OutgoingMail(TEST_SUBJECT, THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST, null, null,
+                MailAttachment.of("pixel.png", ByteBuffer.wrap(new byte[300]), "image/png"),
+                MailAttachment.of("hello.txt", ByteBuffer.wrap("hello".getBytes(StandardCharsets.US_ASCII)), "text/plain"));
+        try( SMTP smtp = new SMTP(greenMail.getSmtp().getBindTo(), greenMail.getSmtp().getPort(), false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray()), ALICE_LOCALHOST).connect() )
+        {
+            smtp.send(mail);
+            for(int i=1;i<5;i++)
+            {
+                smtp.send(TEST_SUBJECT+i, THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST);
+            }
+        }
+        assertTrue(greenMail.waitForIncomingEmail(5000, 5));
+
+        MailReader[] readers =
+        {
+            new IMAP(greenMail.getImap().getBindTo(), greenMail.getImap().getPort(), false, false, false, BOB, new SecureChars(BOB_PASS.toCharArray())),
+            new POP3(greenMail.getPop3().getBindTo(), greenMail.getPop3().getPort(), false, false, false, BOB, new SecureChars(BOB_PASS.toCharArray()))
+        };
+        try( MailConverter converter = new MailConverter(2) )
+        {
+            for(MailReader reader : readers)
+            {
+                try( MailReader mr = reader )
+                {
+                    mr.connect();
+                    List<MailData> all = new ArrayList<>();
+                    assertEquals(5, converter.convert(mr, 2, all::addAll));
+                    assertEquals(5, all.size());
+
+                    MailData first = all.get(0);
+                    assertEquals(1, first.messageNumber);
+                    assertEquals(mr instanceof IMAP ? 1 : -1, first.uid);
+                    assertEquals(TEST_SUBJECT, first.subject);
+                    assertEquals(ALICE_LOCALHOST, first.from.get(0));
+                    assertEquals(BOB_LOCALHOST, first.to.get(0));
+                    assertNotNull(first.messageId);
+                    assertNotNull(first.getSentDate());
+                    assertEquals(THIS_IS_THE_EMAIL_BODY, first.text.trim());
+                    assertEquals(2, first.attachments.size());
+                    assertEquals("pixel.png", first.attachments.get(0).fileName);
+                    assertEquals("image/png", first.attachments.get(0).contentType);
+                    assertEquals(first.messageId, first.getHeader("message-id"));
+
+                    for(int i=1;i<5;i++)
+                    {
+                        assertEquals(TEST_SUBJECT+i, all.get(i).subject);
+                        assertTrue(all.get(i).attachments.isEmpty());
+                    }
+                    assertThrows(UnsupportedOperationException.class, () -> first.attachments.clear());
+
+                    List<MailData> some = converter.convert(mr.getMessages(4, 5));
+                    assertEquals(2, some.size());
+                    assertEquals(TEST_SUBJECT+4, some.get(1).subject);
+                }
+            }
+
+            // a message that cannot be parsed keeps its place
+            Session session = Session.getInstance(new Properties());
+            MimeMessage good = new MimeMessage(session);
+            good.setSubject(TEST_SUBJECT);
+            good.setText(THIS_IS_THE_EMAIL_BODY);
+            good.saveChanges();
+            MimeMessage bad = new MimeMessage(session, new ByteArrayInputStream("Subject: bad\r\nContent-Type: multipart/mixed; boundary=xyz\r\n\r\nno parts\r\n".getBytes(StandardCharsets.US_ASCII)));
+            List<MailData> data = converter.convert(new Message[]{bad, good});
+            assertEquals(2, data.size());
+            assertTrue(data.get(0).isFailed());
+            assertNotNull(data.get(0).error);
+            assertFalse(data.get(1).isFailed());
+            assertEquals(TEST_SUBJECT, data.get(1).subject);
+        }
+    }
+
+    @Test
+    void testDedup() throws Exception
+    {
+        try( SMTP smtp = new SMTP(greenMail.getSmtp().getBindTo(), greenMail.getSmtp().getPort(), false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray()), ALICE_LOCALHOST).connect() )
+        {
+            smtp.send(TEST_SUBJECT+0, THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST, ALICE_LOCALHOST);
+            smtp.send(TEST_SUBJECT+1, THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST);
+        }
+        assertTrue(greenMail.waitForIncomingEmail(5000, 3));
+
+        try( MailDedup dedup = new MailDedup(null, 1000);
+             IMAP bob = new IMAP(greenMail.getImap().getBindTo(), greenMail.getImap().getPort(), false, false, false, BOB, new SecureChars(BOB_PASS.toCharArray()));
+             POP3 alice = new POP3(greenMail.getPop3().getBindTo(), greenMail.getPop3().getPort(), false, false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray())) )
+        {
+            bob.connect();
+            Message[] fresh = dedup.unseen(bob, bob.getMessages());
+            assertEquals(2, fresh.length);
+            assertEquals(2, dedup.add(fresh));
+            assertEquals(0, dedup.unseen(bob, bob.getMessages()).length);
+
+            alice.connect();
+            Message[] copies = alice.getMessages();
+            assertEquals(1, copies.length);
+            assertEquals(0, dedup.unseen(alice, copies).length);
+        }
+    }
+
+    @Test
+    void testNewMessages() throws Exception
+    {
+        try( SMTP smtp = new SMTP(greenMail.getSmtp().getBindTo(), greenMail.getSmtp().getPort(), false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray()), ALICE_LOCALHOST).connect() )
+        {
+            for(int i=0;i<3;i++)
+            {
+                smtp.send(TEST_SUBJECT+i, THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST);
+            }
+        }
+        assertTrue(greenMail.waitForIncomingEmail(5000, 3));
+
+        Path file = tempDir.resolve("uidl.bin");
+        try( UidlStore seen = new UidlStore(file);
+             POP3 pop3 = new POP3(greenMail.getPop3().getBindTo(), greenMail.getPop3().getPort(), false, false, false, BOB, new SecureChars(BOB_PASS.toCharArray())) )
+        {
+            pop3.connect();
+            Message[] fresh = pop3.getNewMessages(seen, null);
+            assertEquals(3, fresh.length);
+            assertNotNull(pop3.getUIDL(fresh[0]));
+            assertEquals(2, pop3.markSeen(seen, fresh[0], fresh[1]));
+            assertEquals(0, pop3.markSeen(seen, fresh[1]));
+            assertTrue(seen.contains(pop3.getUIDL(fresh[0])));
+        }
+
+        try( UidlStore seen = new UidlStore(file);
+             POP3 pop3 = new POP3(greenMail.getPop3().getBindTo(), greenMail.getPop3().getPort(), false, false, false, BOB, new SecureChars(BOB_PASS.toCharArray())) )
+        {
+            assertEquals(2, seen.size());
+            pop3.connect();
+            Message[] fresh = pop3.getNewMessages(seen, MailUtils.newFetchProfile(true, false, false, false));
+            assertEquals(1, fresh.length);
+            assertEquals(TEST_SUBJECT+2, fresh[0].getSubject());
+            // a new UIDL is appended, the file is not rewritten
+            long before = Files.size(file);
+            assertEquals(1, pop3.markSeen(seen, fresh));
+            assertEquals(before+8, Files.size(file));
+            assertEquals(0, pop3.getNewMessages(seen, null).length);
+        }
+
+        GreenMailUser user = greenMail.getUserManager().getUser(BOB);
+        greenMail.getManagers().getImapHostManager().getInbox(user).deleteAllMessages();
+        try( SMTP smtp = new SMTP(greenMail.getSmtp().getBindTo(), greenMail.getSmtp().getPort(), false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray()), ALICE_LOCALHOST).connect() )
+        {
+            smtp.send(TEST_SUBJECT+3, THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST);
+        }
+        assertTrue(greenMail.waitForIncomingEmail(5000, 1));
+
+        try( UidlStore seen = new UidlStore(file);
+             POP3 pop3 = new POP3(greenMail.getPop3().getBindTo(), greenMail.getPop3().getPort(), false, false, false, BOB, new SecureChars(BOB_PASS.toCharArray())) )
+        {
+            // the appended UIDL is read back
+            assertEquals(3, seen.size());
+            pop3.connect();
+            assertEquals(1, pop3.getNewMessages(seen, null).length);
+            assertEquals(0, seen.size());
+        }
+    }
+
+    @Test
+    void testBulk() throws Exception
+    {
+        GreenMailUser user = greenMail.getUserManager().getUser(BOB);
+        MailFolder archive = greenMail.getManagers().getImapHostManager().createMailbox(user, "Archive");
+        MailFolder inbox = greenMail.getManagers().getImapHostManager().getInbox(user);
+        try( SMTP smtp = new SMTP(greenMail.getSmtp().getBindTo(), greenMail.getSmtp().getPort(), false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray()), ALICE_LOCALHOST).connect() )
+        {
+            for(int i=0;i<5;i++)
+            {
+                smtp.send(TEST_SUBJECT+i, THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST);
+            }
+        }
+        assertTrue(greenMail.waitForIncomingEmail(5000, 5));
+
+        try( IMAP imap = new IMAP(greenMail.getImap().getBindTo(), greenMail.getImap().getPort(), false, false, false, BOB, new SecureChars(BOB_PASS.toCharArray())) )
+        {
+            imap.connect();
+            long[] uids = imap.getUIDs(imap.getMessages());
+            assertEquals(5, uids.length);
+
+            Flags seen = new Flags(Flags.Flag.SEEN);
+            seen.add("processed");
+            imap.setFlags(new long[]{uids[3], uids[0], uids[1], uids[4]}, seen, true);
+            imap.setFlags(new long[]{uids[4]}, new Flags(Flags.Flag.SEEN), false);
+            Message[] messages = imap.getMessages();
+            imap.fetch(messages, MailUtils.newFetchProfile(false, true, false, false));
+            assertTrue(messages[0].isSet(Flags.Flag.SEEN));
+            assertTrue(messages[1].getFlags().contains("processed"));
+            assertFalse(messages[2].isSet(Flags.Flag.SEEN));
+            assertFalse(messages[4].isSet(Flags.Flag.SEEN));
+
+            imap.copy(new long[]{uids[2]}, "Archive");
+            assertEquals(1, archive.getMessageCount());
+            imap.move(new long[]{uids[1], uids[0]}, "Archive");
+            assertEquals(3, archive.getMessageCount());
+            assertEquals(3, inbox.getMessageCount());
+
+            imap.expunge(new long[]{uids[4]});
+            assertEquals(2, inbox.getMessageCount());
+            assertEquals(TEST_SUBJECT+2, inbox.getMessages().get(0).getMimeMessage().getSubject());
+        }
+    }
+
+    @Test
+    void testSort() throws Exception
+    {
+        try( SMTP smtp = new SMTP(greenMail.getSmtp().getBindTo(), greenMail.getSmtp().getPort(), false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray()), ALICE_LOCALHOST).connect() )
+        {
+            smtp.send("beta", THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST);
+            smtp.send("gamma", THIS_IS_THE_EMAIL_BODY+THIS_IS_THE_EMAIL_BODY+THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST);
+            smtp.send("alpha", THIS_IS_THE_EMAIL_BODY+THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST);
+        }
+        assertTrue(greenMail.waitForIncomingEmail(5000, 3));
+
+        MailReader[] readers =
+        {
+            new IMAP(greenMail.getImap().getBindTo(), greenMail.getImap().getPort(), false, false, false, BOB, new SecureChars(BOB_PASS.toCharArray())),
+            new POP3(greenMail.getPop3().getBindTo(), greenMail.getPop3().getPort(), false, false, false, BOB, new SecureChars(BOB_PASS.toCharArray()))
+        };
+        for(MailReader reader : readers)
+        {
+            try( MailReader mr = reader )
+            {
+                mr.connect();
+                Message[] bySubject = mr.getSortedMessages(false, MailSort.SUBJECT);
+                assertEquals("alpha", bySubject[0].getSubject());
+                assertEquals("beta", bySubject[1].getSubject());
+                assertEquals("gamma", bySubject[2].getSubject());
+
+                Message[] bySize = mr.getSortedMessages(true, MailSort.SIZE);
+                assertEquals("gamma", bySize[0].getSubject());
+                assertEquals("beta", bySize[2].getSubject());
+            }
+        }
+
+        Session session = Session.getInstance(new Properties());
+        Message[] items = new Message[3];
+        String[] subjects = {"Re: b", "a", "Fwd: RE: a"};
+        for(int i=0;i<items.length;i++)
+        {
+            items[i] = new MimeMessage(session);
+            items[i].setFrom(new InternetAddress(i==1 ? BOB_LOCALHOST : ALICE_LOCALHOST));
+            items[i].setSubject(subjects[i]);
+            items[i].setSentDate(new Date(1_000_000L*(3-i)));
+        }
+        MailUtils.sortByReceivedDate(items);
+        assertEquals("Fwd: RE: a", items[0].getSubject());
+        assertEquals("Re: b", items[2].getSubject());
+
+        MailUtils.sort(items, false, MailSort.SUBJECT, MailSort.FROM);
+        assertEquals("Fwd: RE: a", items[0].getSubject());
+        assertEquals("a", items[1].getSubject());
+        assertEquals("Re: b", items[2].getSubject());
+    }
+
+    @Test
+    void testTraffic() throws Exception
+    {
+        try( SMTP smtp = new SMTP(greenMail.getSmtp().getBindTo(), greenMail.getSmtp().getPort(), false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray()), ALICE_LOCALHOST).connect() )
+        {
+            smtp.send(TEST_SUBJECT, THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST);
+        }
+        assertTrue(greenMail.waitForIncomingEmail(5000, 1));
+
+        MailTraffic traffic = new MailTraffic();
+        try( IMAP imap = new IMAP(greenMail.getImap().getBindTo(), greenMail.getImap().getPort(), false, false, false, BOB, new SecureChars(BOB_PASS.toCharArray())).setTraffic(traffic) )
+        {
+            imap.connect();
+            long before = traffic.getResponseBytes();
+            Message[] messages = imap.getMessages();
+            assertEquals(THIS_IS_THE_EMAIL_BODY, ((String) messages[0].getContent()).trim());
+            assertTrue(traffic.getResponseBytes()>before+THIS_IS_THE_EMAIL_BODY.length());
+            assertTrue(traffic.getWireIn()>=traffic.getResponseBytes());
+            assertTrue(traffic.getWireOut()>0);
+            assertFalse(traffic.isCompressed());
+        }
+    }
+
+    @Test
+    void testKeepAlive() throws Exception 
+    {
+        SMTP smtp = new SMTP(greenMail.getSmtp().getBindTo(), greenMail.getSmtp().getPort(), false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray()), ALICE_LOCALHOST);
+        IMAP imap = new IMAP(greenMail.getImap().getBindTo(), greenMail.getImap().getPort(), false, false, false, BOB, new SecureChars(BOB_PASS.toCharArray()));
+        POP3 pop3 = new POP3(greenMail.getPop3().getBindTo(), greenMail.getPop3().getPort(), false, false, false, BOB, new SecureChars(BOB_PASS.toCharArray()));
+        try( MailKeepAlive keepAlive = new MailKeepAlive().add(smtp).add(imap).add(pop3) )
+        {
+            assertTrue(keepAlive.warmUp(5000).isEmpty());
+            assertTrue(smtp.isConnected());
+            assertTrue(imap.isConnected());
+            assertTrue(pop3.isConnected());
+            assertEquals(0, keepAlive.ping());
+
+            smtp.close();
+            assertEquals(1, keepAlive.ping());
+            assertTrue(smtp.isConnected());
+        }
+        finally
+        {
+            smtp.close();
+            imap.close();
+            pop3.close();
+        }
+    }
+
     private static final String TEST_SUBJECT = "Test Subject";
     private static final String THIS_IS_THE_EMAIL_BODY = "This is the email body!";
 }
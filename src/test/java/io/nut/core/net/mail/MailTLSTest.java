@@ -0,0 +1,115 @@
+/*
+ *  MailTLSTest.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import com.icegreen.greenmail.configuration.GreenMailConfiguration;
+import com.icegreen.greenmail.junit5.GreenMailExtension;
+import com.icegreen.greenmail.util.ServerSetup;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import io.nut.base.security.SecureChars;
+import static io.nut.core.net.mail.SMTPTest.BOB;
+import static io.nut.core.net.mail.SMTPTest.BOB_LOCALHOST;
+import static io.nut.core.net.mail.SMTPTest.BOB_PASS;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+/**
+ *
+ * @author franci
+ */
+public class MailTLSTest
+{
+    @RegisterExtension
+    static GreenMailExtension greenMail = new GreenMailExtension(new ServerSetup[]{ServerSetupTest.IMAPS, ServerSetupTest.POP3S})
+            .withConfiguration(GreenMailConfiguration.aConfig().withUser(BOB_LOCALHOST, BOB, BOB_PASS));
+
+    private static SSLContext trustAll() throws Exception
+    {
+        TrustManager tm = new X509TrustManager()
+        {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType)
+            {
+            }
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType)
+            {
+            }
+            @Override
+            public X509Certificate[] getAcceptedIssuers()
+            {
+                return new X509Certificate[0];
+            }
+        };
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[]{tm}, null);
+        return context;
+    }
+
+    @Test
+    void testSharedContext() throws Exception
+    {
+        MailTLS tls = new MailTLS(trustAll()).setCheckServerIdentity(false);
+        for(int i=0;i<2;i++)
+        {
+            try( IMAP imap = new IMAP(greenMail.getImaps().getBindTo(), greenMail.getImaps().getPort(), false, true, false, BOB, new SecureChars(BOB_PASS.toCharArray())).setTLS(tls) )
+            {
+                imap.connect();
+                assertEquals(0, imap.getMessages().length);
+            }
+            try( POP3 pop3 = new POP3(greenMail.getPop3s().getBindTo(), greenMail.getPop3s().getPort(), false, true, false, BOB, new SecureChars(BOB_PASS.toCharArray())).setTLS(tls) )
+            {
+                pop3.connect();
+                assertEquals(0, pop3.getMessages().length);
+            }
+        }
+        assertFalse(Collections.list(tls.getContext().getClientSessionContext().getIds()).isEmpty());
+    }
+
+    @Test
+    void testTraffic() throws Exception
+    {
+        MailTLS tls = new MailTLS(trustAll()).setCheckServerIdentity(false);
+        try( IMAP imap = new IMAP(greenMail.getImaps().getBindTo(), greenMail.getImaps().getPort(), false, true, false, BOB, new SecureChars(BOB_PASS.toCharArray())).setTLS(tls).setCompress(true) )
+        {
+            // compression alone does not install the counting sockets
+            assertNull(imap.getTraffic());
+            MailTraffic traffic = new MailTraffic();
+            imap.setTraffic(traffic);
+            imap.connect();
+            assertEquals(0, imap.getMessages().length);
+            // GreenMail does not advertise COMPRESS=DEFLATE
+            assertFalse(traffic.isCompressed());
+            assertTrue(traffic.getResponseBytes()>0);
+            assertTrue(traffic.getWireOut()>0);
+            // TLS framing and handshake
+            assertTrue(traffic.getWireIn()>traffic.getResponseBytes());
+            assertTrue(traffic.getCompressionRatio()<1);
+        }
+    }
+}
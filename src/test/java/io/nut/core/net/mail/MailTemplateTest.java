@@ -0,0 +1,114 @@
+/*
+ *  MailTemplateTest.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import com.icegreen.greenmail.configuration.GreenMailConfiguration;
+import com.icegreen.greenmail.junit5.GreenMailExtension;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import io.nut.base.security.SecureChars;
+import static io.nut.core.net.mail.SMTPTest.ALICE;
+import static io.nut.core.net.mail.SMTPTest.ALICE_LOCALHOST;
+import static io.nut.core.net.mail.SMTPTest.ALICE_PASS;
+import static io.nut.core.net.mail.SMTPTest.BOB;
+import static io.nut.core.net.mail.SMTPTest.BOB_LOCALHOST;
+import static io.nut.core.net.mail.SMTPTest.BOB_PASS;
+import jakarta.mail.internet.MimeMessage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+/**
+ *
+ * @author franci
+ */
+public class MailTemplateTest
+{
+    @RegisterExtension
+    static GreenMailExtension greenMail = new GreenMailExtension(ServerSetupTest.SMTP)
+            .withConfiguration(GreenMailConfiguration.aConfig().withUser(ALICE_LOCALHOST, ALICE, ALICE_PASS).withUser(BOB_LOCALHOST, BOB, BOB_PASS));
+
+    @Test
+    void testMerge()
+    {
+        MailTemplate template = new MailTemplate("Hello ${name}", "Dear ${name},\nyour code is ${code}.\n${missing}");
+        Map<String, Object> values = new HashMap<>();
+        values.put("name", "Bob");
+        values.put("code", 1234);
+
+        MailTemplate.Merged mail = template.merge(values, BOB_LOCALHOST);
+        assertEquals("Hello Bob", mail.subject);
+        assertEquals("Dear Bob,\nyour code is 1234.\n", mail.getText());
+        assertEquals(MailTemplate.ENCODING_7BIT, mail.transferEncoding);
+
+        values.put("name", "B\u00f3b");
+        mail = template.merge(values, BOB_LOCALHOST);
+        assertEquals("Hello B\u00f3b", mail.subject);
+        assertEquals(MailTemplate.ENCODING_QUOTED_PRINTABLE, mail.transferEncoding);
+        assertEquals(MailTemplate.UTF_8, mail.getCharset());
+        assertSame(mail.getEncodedBody(), mail.getEncodedBody());
+
+        // line lengths are followed across the static parts and the values
+        char[] half = new char[600];
+        Arrays.fill(half, 'x');
+        MailTemplate lines = new MailTemplate("lines", new String(half)+"${a}${b}");
+        values.put("a", new String(half));
+        values.put("b", "");
+        assertEquals(MailTemplate.ENCODING_QUOTED_PRINTABLE, lines.merge(values, BOB_LOCALHOST).getTransferEncoding());
+        values.put("a", "\n"+new String(half));
+        assertEquals(MailTemplate.ENCODING_7BIT, lines.merge(values, BOB_LOCALHOST).getTransferEncoding());
+        values.put("b", new String(half));
+        assertEquals(MailTemplate.ENCODING_QUOTED_PRINTABLE, lines.merge(values, BOB_LOCALHOST).getTransferEncoding());
+
+        assertEquals("no placeholders", new MailTemplate("no placeholders", "${").merge(values, BOB_LOCALHOST).subject);
+    }
+
+    @Test
+    void testSend() throws Exception
+    {
+        String host = greenMail.getSmtp().getBindTo();
+        int port = greenMail.getSmtp().getPort();
+
+        MailTemplate template = new MailTemplate("Hello ${name}", "Dear ${name}, welcome.");
+        List<OutgoingMail> mails = new ArrayList<>();
+        for(String name : new String[]{"Bob", "B\u00f3b"})
+        {
+            Map<String, String> values = new HashMap<>();
+            values.put("name", name);
+            mails.add(template.merge(values, BOB_LOCALHOST));
+        }
+        try( SMTP smtp = new SMTP(host, port, false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray()), ALICE_LOCALHOST).connect() )
+        {
+            assertEquals(2, SendResult.countSent(smtp.sendBatch(mails)));
+        }
+        assertTrue(greenMail.waitForIncomingEmail(5000, 2));
+        MimeMessage[] received = greenMail.getReceivedMessages();
+        assertEquals("Hello Bob", received[0].getSubject());
+        assertEquals("Dear Bob, welcome.", received[0].getContent().toString().trim());
+        assertEquals("Hello B\u00f3b", received[1].getSubject());
+        assertEquals("Dear B\u00f3b, welcome.", received[1].getContent().toString().trim());
+    }
+}
@@ -29,9 +29,28 @@ import io.nut.base.crypto.Rand;
 import io.nut.base.security.SecureChars;
 import jakarta.mail.MessagingException;
 import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
 import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.api.io.TempDir;
 
 /**
  *
@@ -76,6 +95,221 @@ public class SMTPTest
         assertEquals(BOB_LOCALHOST, receivedMessage.getAllRecipients()[0].toString());
     }
     
+    @Test
+    void testSendBatch() throws MessagingException 
+    {
+        String host = greenMail.getSmtp().getBindTo();
+        int port = greenMail.getSmtp().getPort();
+
+        List<OutgoingMail> mails = new ArrayList<>();
+        mails.add(new OutgoingMail(TEST_SUBJECT+" 1", THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST));
+        mails.add(new OutgoingMail(TEST_SUBJECT+" 2", THIS_IS_THE_EMAIL_BODY, "bob@@localhost"));
+        mails.add(new OutgoingMail(TEST_SUBJECT+" 3", THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST, ALICE_LOCALHOST));
+        mails.add(new OutgoingMail(TEST_SUBJECT+" 4", THIS_IS_THE_EMAIL_BODY, null));
+
+        try( SMTP smtp = new SMTP(host, port, false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray()), ALICE_LOCALHOST).connect() )
+        {
+            List<SendResult> results = smtp.sendBatch(mails);
+            assertEquals(4, results.size());
+            assertTrue(results.get(0).isSent());
+            assertFalse(results.get(1).isSent());
+            assertTrue(results.get(2).isSent());
+            // an unchecked exception is reported as well
+            assertFalse(results.get(3).isSent());
+            assertTrue(results.get(3).error.getCause() instanceof RuntimeException);
+
+            // the batch reconnects if the connection was dropped
+            smtp.disconnect();
+            results = smtp.sendBatch(mails.subList(0, 1));
+            assertEquals(1, SendResult.countSent(results));
+        }
+        
+        assertTrue(greenMail.waitForIncomingEmail(5000, 4));
+    }
+
+    private static int countThreads(String prefix)
+    {
+        int count = 0;
+        for(Thread t : Thread.getAllStackTraces().keySet())
+        {
+            if(t.isAlive() && t.getName().startsWith(prefix))
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    void testSendAsync() throws Exception 
+    {
+        String host = greenMail.getSmtp().getBindTo();
+        int port = greenMail.getSmtp().getPort();
+
+        int threads = countThreads("SendQueue-");
+        try( SMTP smtp = new SMTP(host, port, false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray()), ALICE_LOCALHOST).connect() )
+        {
+            smtp.sendAsync(TEST_SUBJECT+" 1", THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST).get();
+            smtp.sendAsync(TEST_SUBJECT+" 2", THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST).get();
+            assertEquals(threads+1, countThreads("SendQueue-"));
+        }
+        for(int i=0;i<100 && countThreads("SendQueue-")>threads;i++)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(threads, countThreads("SendQueue-"));
+        assertTrue(greenMail.waitForIncomingEmail(5000, 2));
+    }
+
+    @Test
+    void testMaxRecipients() throws Exception 
+    {
+        String host = greenMail.getSmtp().getBindTo();
+        int port = greenMail.getSmtp().getPort();
+
+        String to = "a@localhost,b@localhost,c@localhost";
+        String cc = "d@localhost,e@localhost";
+        MailRateLimiter limiter = new MailRateLimiter(1000);
+        try( SMTP smtp = new SMTP(host, port, false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray()), ALICE_LOCALHOST).setMaxRecipients(2).setRateLimiter(limiter).connect() )
+        {
+            smtp.send(TEST_SUBJECT, THIS_IS_THE_EMAIL_BODY, to, cc);
+        }
+        assertTrue(greenMail.waitForIncomingEmail(5000, 5));
+        MimeMessage[] received = greenMail.getReceivedMessages();
+        assertEquals(5, received.length);
+        assertEquals(received[0].getMessageID(), received[4].getMessageID());
+    }
+
+    @Test
+    void testThrottleAtRcpt() throws Exception
+    {
+        List<String> commands = Collections.synchronizedList(new ArrayList<>());
+        try( ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress()) )
+        {
+            Thread thread = new Thread(() -> throttlingServer(server, commands));
+            thread.setDaemon(true);
+            thread.start();
+
+            MailRateLimiter limiter = new MailRateLimiter(1000, 1, 10);
+            try( SMTP smtp = new SMTP(server.getInetAddress().getHostAddress(), server.getLocalPort(), false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray()), ALICE_LOCALHOST).setRateLimiter(limiter).connect() )
+            {
+                smtp.send(TEST_SUBJECT, THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST);
+            }
+            thread.join(5000);
+            // the 451 to RCPT TO halved the rate and the message was sent again
+            assertTrue(limiter.getRate()<1000);
+            assertEquals(2, commands.stream().filter(c -> c.startsWith("RCPT")).count());
+            assertEquals(1, commands.stream().filter(c -> c.equals("DATA")).count());
+        }
+    }
+
+    /**
+     * Minimal SMTP server answering 451 to the first RCPT TO.
+     */
+    private static void throttlingServer(ServerSocket server, List<String> commands)
+    {
+        try( Socket socket = server.accept();
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+             Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII) )
+        {
+            out.write("220 localhost ESMTP\r\n");
+            out.flush();
+            boolean throttled = false;
+            String line;
+            while((line=in.readLine())!=null)
+            {
+                commands.add(line);
+                String command = line.toUpperCase();
+                String reply;
+                if(command.startsWith("EHLO"))
+                {
+                    reply = "250 localhost";
+                }
+                else if(command.startsWith("RCPT") && !throttled)
+                {
+                    throttled = true;
+                    reply = "451 4.7.1 try again later";
+                }
+                else if(command.equals("DATA"))
+                {
+                    out.write("354 go ahead\r\n");
+                    out.flush();
+                    while((line=in.readLine())!=null && !line.equals("."))
+                    {
+                    }
+                    reply = "250 queued";
+                }
+                else if(command.equals("QUIT"))
+                {
+                    out.write("221 bye\r\n");
+                    out.flush();
+                    return;
+                }
+                else
+                {
+                    reply = "250 ok";
+                }
+                out.write(reply+"\r\n");
+                out.flush();
+            }
+        }
+        catch (IOException ex)
+        {
+            // the client closed the connection
+        }
+    }
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testSendAttachments() throws Exception 
+    {
+        String host = greenMail.getSmtp().getBindTo();
+        int port = greenMail.getSmtp().getPort();
+
+        byte[] data = new byte[1024*1024];
+        for(int i=0;i<data.length;i++)
+        {
+            data[i] = (byte) i;
+        }
+        Path file = tempDir.resolve("report.bin");
+        Files.write(file, data);
+
+        OutgoingMail mail = new OutgoingMail(TEST_SUBJECT, THIS_IS_THE_EMAIL_BODY, BOB_LOCALHOST, null, null, 
+                MailAttachment.of(file, MailAttachment.APPLICATION_OCTET_STREAM), 
+                MailAttachment.mapped(file, MailAttachment.APPLICATION_OCTET_STREAM),
+                MailAttachment.of("hello.txt", ByteBuffer.wrap("hello".getBytes(StandardCharsets.US_ASCII)), "text/plain"));
+
+        try( SMTP smtp = new SMTP(host, port, false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray()), ALICE_LOCALHOST).connect() )
+        {
+            smtp.send(mail);
+        }
+        
+        assertTrue(greenMail.waitForIncomingEmail(5000, 1));
+        MimeMessage received = greenMail.getReceivedMessages()[0];
+        MimeMultipart multipart = (MimeMultipart) received.getContent();
+        assertEquals(4, multipart.getCount());
+        assertEquals(THIS_IS_THE_EMAIL_BODY, multipart.getBodyPart(0).getContent().toString().trim());
+        assertEquals("report.bin", multipart.getBodyPart(1).getFileName());
+        assertArrayEquals(data, readAll(multipart.getBodyPart(1).getInputStream()));
+        assertArrayEquals(data, readAll(multipart.getBodyPart(2).getInputStream()));
+        assertEquals("hello.txt", multipart.getBodyPart(3).getFileName());
+        assertArrayEquals("hello".getBytes(StandardCharsets.US_ASCII), readAll(multipart.getBodyPart(3).getInputStream()));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while((n=in.read(buf))>0)
+        {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
     private static final String TEST_SUBJECT = "Test Subject";
     private static final String THIS_IS_THE_EMAIL_BODY = "This is the email body!";
     
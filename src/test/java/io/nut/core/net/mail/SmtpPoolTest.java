@@ -0,0 +1,137 @@
+/*
+ *  SmtpPoolTest.java
+ *
+ *  Copyright (C) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ *
+ */
+package io.nut.core.net.mail;
+
+import com.icegreen.greenmail.configuration.GreenMailConfiguration;
+import com.icegreen.greenmail.junit5.GreenMailExtension;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import io.nut.base.security.SecureChars;
+import static io.nut.core.net.mail.SMTPTest.ALICE;
+import static io.nut.core.net.mail.SMTPTest.ALICE_LOCALHOST;
+import static io.nut.core.net.mail.SMTPTest.ALICE_PASS;
+import static io.nut.core.net.mail.SMTPTest.BOB;
+import static io.nut.core.net.mail.SMTPTest.BOB_LOCALHOST;
+import static io.nut.core.net.mail.SMTPTest.BOB_PASS;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+/**
+ *
+ * @author franci
+ */
+public class SmtpPoolTest
+{
+    @RegisterExtension
+    static GreenMailExtension greenMail = new GreenMailExtension(ServerSetupTest.SMTP)
+            .withConfiguration(GreenMailConfiguration.aConfig().withUser(ALICE_LOCALHOST, ALICE, ALICE_PASS).withUser(BOB_LOCALHOST, BOB, BOB_PASS));
+
+    @Test
+    void testConcurrentSend() throws Exception
+    {
+        String host = greenMail.getSmtp().getBindTo();
+        int port = greenMail.getSmtp().getPort();
+
+        final int count = 20;
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try( SmtpPool pool = new SmtpPool(host, port, false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray()), ALICE_LOCALHOST, 1, 3, 60_000).start() )
+        {
+            assertEquals(1, pool.getSize());
+            List<Future<?>> futures = new ArrayList<>();
+            for(int i=0;i<count;i++)
+            {
+                final int n = i;
+                futures.add(executor.submit(() -> { pool.send("subject "+n, "body "+n, BOB_LOCALHOST); return null; }));
+            }
+            for(Future<?> item : futures)
+            {
+                item.get();
+            }
+            assertTrue(pool.getSize()<=3);
+            assertEquals(pool.getSize(), pool.getIdleCount());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        assertTrue(greenMail.waitForIncomingEmail(5000, count));
+        assertEquals(count, greenMail.getReceivedMessages().length);
+    }
+
+    @Test
+    void testSendAsync() throws Exception
+    {
+        String host = greenMail.getSmtp().getBindTo();
+        int port = greenMail.getSmtp().getPort();
+
+        final int count = 10;
+        try( SendQueue queue = new SendQueue(SendQueue.newFixedExecutor(2), 4, 5_000) )
+        {
+            try( SmtpPool pool = new SmtpPool(host, port, false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray()), ALICE_LOCALHOST, 0, 2, 60_000) )
+            {
+                pool.setSendQueue(queue);
+                List<CompletableFuture<Void>> futures = new ArrayList<>();
+                for(int i=0;i<count;i++)
+                {
+                    futures.add(pool.sendAsync("subject "+i, "body "+i, BOB_LOCALHOST));
+                }
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+            }
+            // the queue was given to the pool, it is still open
+            queue.submit(() -> null).get();
+        }
+        assertTrue(greenMail.waitForIncomingEmail(5000, count));
+    }
+
+    @Test
+    void testEvictIdle() throws Exception
+    {
+        String host = greenMail.getSmtp().getBindTo();
+        int port = greenMail.getSmtp().getPort();
+
+        try( SmtpPool pool = new SmtpPool(host, port, false, false, ALICE, new SecureChars(ALICE_PASS.toCharArray()), ALICE_LOCALHOST, 1, 2, 1) )
+        {
+            SMTP a = pool.borrow();
+            SMTP b = pool.borrow();
+            assertNotSame(a, b);
+            pool.release(a);
+            pool.release(b);
+            assertEquals(2, pool.getSize());
+            Thread.sleep(10);
+            assertEquals(0, pool.keepAlive());
+            assertEquals(1, pool.evictIdle());
+            assertEquals(1, pool.getSize());
+
+            // the connection kept by minSize is reused without a new handshake
+            SMTP c = pool.borrow();
+            assertTrue(c==a || c==b);
+            assertTrue(c.idleNanos()>=10_000_000L);
+            pool.release(c);
+        }
+    }
+}